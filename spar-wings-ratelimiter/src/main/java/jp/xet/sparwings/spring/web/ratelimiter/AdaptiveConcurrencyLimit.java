@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Concurrency limit which adapts to the latency, based on gradient of round trip time.
+ * 
+ * <p>By Little's law, the number of in-flight requests is {@code throughput * rtt}. Without queueing,
+ * the round trip time is {@code rttNoLoad}, so the concurrency which the server can actually handle is
+ * {@code inFlight * rttNoLoad / rtt}, and the rest is waiting in some queue. The limit is updated once per
+ * {@code sampleWindow} completions as:</p>
+ * 
+ * <pre>
+ * gradient = clamp(rttTolerance * rttNoLoad / rtt, 0.5, 1.0)
+ * newLimit = limit * gradient + sqrt(limit)
+ * limit    = limit * (1 - smoothing) + newLimit * smoothing
+ * </pre>
+ * 
+ * <p>The {@code sqrt(limit)} term is the allowed queue size, which lets the limit grow while latency is
+ * stable. The limit does not grow while less than half of it is used. {@code rttNoLoad} is the minimum
+ * of window averages, and it is re-probed every {@code probeInterval} windows to follow changes of
+ * the downstream.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ * @see ConcurrencyLimitingInterceptor
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimit {
+	
+	private static final int DEFAULT_INITIAL_LIMIT = 20;
+	
+	private static final int DEFAULT_MIN_LIMIT = 1;
+	
+	private static final int DEFAULT_MAX_LIMIT = 1000;
+	
+	private static final int DEFAULT_SAMPLE_WINDOW = 100;
+	
+	private static final int DEFAULT_PROBE_INTERVAL = 100;
+	
+	private static final double DEFAULT_SMOOTHING = 0.2;
+	
+	private static final double DEFAULT_RTT_TOLERANCE = 1.5;
+	
+	private static final double MIN_GRADIENT = 0.5;
+	
+	@Getter
+	@Setter
+	private int minLimit = DEFAULT_MIN_LIMIT;
+	
+	@Getter
+	@Setter
+	private int maxLimit = DEFAULT_MAX_LIMIT;
+	
+	/**
+	 * Number of completions to update the limit.
+	 */
+	@Getter
+	@Setter
+	private int sampleWindow = DEFAULT_SAMPLE_WINDOW;
+	
+	/**
+	 * Number of windows to re-probe {@code rttNoLoad}.
+	 */
+	@Getter
+	@Setter
+	private int probeInterval = DEFAULT_PROBE_INTERVAL;
+	
+	/**
+	 * Weight of new limit, in {@code (0, 1]}.
+	 */
+	@Getter
+	@Setter
+	private double smoothing = DEFAULT_SMOOTHING;
+	
+	/**
+	 * Ratio of round trip time to {@code rttNoLoad} which is not regarded as queueing.
+	 */
+	@Getter
+	@Setter
+	private double rttTolerance = DEFAULT_RTT_TOLERANCE;
+	
+	private volatile double limit;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	
+	private final AtomicLong sampleCount = new AtomicLong();
+	
+	private final AtomicLong sampleSum = new AtomicLong();
+	
+	private final ReentrantLock updateLock = new ReentrantLock();
+	
+	// guarded by updateLock
+	private double rttNoLoad;
+	
+	// guarded by updateLock
+	private int windows;
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @since 1.2
+	 */
+	public AdaptiveConcurrencyLimit() {
+		this(DEFAULT_INITIAL_LIMIT);
+	}
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param initialLimit initial limit
+	 * @since 1.2
+	 */
+	public AdaptiveConcurrencyLimit(int initialLimit) {
+		limit = initialLimit;
+	}
+	
+	/**
+	 * Try to start a request.
+	 * 
+	 * @return {@code true} if the request is admitted, and {@link #release(long)} must be called after it
+	 * @since 1.2
+	 */
+	public boolean tryAcquire() {
+		int current;
+		do {
+			current = inFlight.get();
+			if (current >= getLimit()) {
+				return false;
+			}
+		} while (inFlight.compareAndSet(current, current + 1) == false);
+		maxInFlight.accumulateAndGet(current + 1, Math::max);
+		return true;
+	}
+	
+	/**
+	 * Finish the request which was admitted by {@link #tryAcquire()}.
+	 * 
+	 * @param rttNanos round trip time of the request in nanosec
+	 * @since 1.2
+	 */
+	public void release(long rttNanos) {
+		inFlight.decrementAndGet();
+		sampleSum.addAndGet(rttNanos);
+		if (sampleCount.incrementAndGet() >= sampleWindow && updateLock.tryLock()) {
+			try {
+				update();
+			} finally {
+				updateLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Return current limit.
+	 * 
+	 * @return the limit
+	 * @since 1.2
+	 */
+	public int getLimit() {
+		return (int) limit;
+	}
+	
+	/**
+	 * Return the number of in-flight requests.
+	 * 
+	 * @return the number of in-flight requests
+	 * @since 1.2
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	private void update() {
+		long count = sampleCount.getAndSet(0);
+		long sum = sampleSum.getAndSet(0);
+		int used = maxInFlight.getAndSet(inFlight.get());
+		if (count <= 0) {
+			return;
+		}
+		double rtt = Math.max(1d, (double) sum / count);
+		if (rttNoLoad <= 0 || ++windows >= probeInterval) {
+			rttNoLoad = rtt;
+			windows = 0;
+		} else {
+			rttNoLoad = Math.min(rttNoLoad, rtt);
+		}
+		
+		double gradient = Math.max(MIN_GRADIENT, Math.min(1d, rttTolerance * rttNoLoad / rtt));
+		double newLimit = limit * gradient + Math.sqrt(limit);
+		if (newLimit > limit && used < limit / 2) {
+			newLimit = limit; // application limited, latency tells nothing about the capacity
+		}
+		newLimit = limit * (1 - smoothing) + newLimit * smoothing;
+		newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		if ((int) newLimit != (int) limit) {
+			log.debug("Concurrency limit {} -> {} (rtt {} ns, no-load rtt {} ns)",
+					(int) limit, (int) newLimit, (long) rtt, (long) rttNoLoad);
+		}
+		limit = newLimit;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation which uses fixed memory regardless of the number of
+ * limitation units, by sharing counters of count-min sketch among units.
+ * 
+ * <p>Each counter holds theoretical arrival time (in nanosec) of the token bucket, so counters decay
+ * linearly with {@code fillRate} without any background task. The time to refill a consumption is rounded up
+ * to nanosec, so that even a small consumption against a high {@code fillRate} is never free. The units are
+ * hashed to one counter per row, and the smallest counter is the estimation of the unit. As counters are only
+ * overestimated by other units, the limiter never admits a unit which the exact token bucket
+ * ({@link InMemoryRateLimitService}) rejects except by time rounding, and it may falsely reject light units
+ * which collide with heavy ones.</p>
+ * 
+ * <p>Error bound: the sketch has {@code ceil(e / epsilon)} columns and {@code ceil(ln(1 / delta))} rows,
+ * and with probability {@code 1 - delta}, estimated consumption in flight of a unit exceeds the true one
+ * by at most {@code epsilon} times the total consumption in flight of all units. Memory is
+ * {@code 8 * columns * rows} bytes.</p>
+ * 
+ * <p>Like {@link InMemoryRateLimitService}, rejected requests are also debited.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class ApproximateRateLimitService extends AbstractRateLimitService {
+	
+	private static final double DEFAULT_EPSILON = 0.0001;
+	
+	private static final double DEFAULT_DELTA = 0.001;
+	
+	private static final long NANOS_PER_MILLI = 1000000L;
+	
+	/** Number of columns. */
+	@Getter
+	private final int width;
+	
+	/** Number of rows. */
+	@Getter
+	private final int depth;
+	
+	private final AtomicLongArray counters;
+	
+	private final long seed = ThreadLocalRandom.current().nextLong();
+	
+	
+	/**
+	 * Create instance with default error bound ({@code epsilon = 0.0001, delta = 0.001}).
+	 * 
+	 * @since 1.2
+	 */
+	public ApproximateRateLimitService() {
+		this(DEFAULT_EPSILON, DEFAULT_DELTA);
+	}
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param epsilon relative error of estimation to the total consumption in flight
+	 * @param delta probability that the error exceeds {@code epsilon}
+	 * @throws IllegalArgumentException if {@code epsilon} or {@code delta} is not in {@code (0, 1)}
+	 * @since 1.2
+	 */
+	public ApproximateRateLimitService(double epsilon, double delta) {
+		if (epsilon <= 0 || epsilon >= 1) {
+			throw new IllegalArgumentException("epsilon must be in (0, 1): " + epsilon);
+		}
+		if (delta <= 0 || delta >= 1) {
+			throw new IllegalArgumentException("delta must be in (0, 1): " + delta);
+		}
+		width = (int) Math.ceil(Math.E / epsilon);
+		depth = (int) Math.ceil(Math.log(1 / delta));
+		counters = new AtomicLongArray(width * depth);
+		log.debug("Count-min sketch of {} x {} is allocated", depth, width);
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec() * NANOS_PER_MILLI;
+		long increment = -Math.floorDiv(-consumption * NANOS_PER_MILLI, descriptor.getFillRate()); // round up
+		long estimate = Long.MAX_VALUE;
+		for (int index : indexes(descriptor.getLimitationUnitName())) {
+			long updated = counters.updateAndGet(index, tat -> Math.max(tat, now) + increment);
+			estimate = Math.min(estimate, updated);
+		}
+		return descriptor.setCurrentBudget(computeBudget(descriptor, estimate, now));
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec() * NANOS_PER_MILLI;
+		long estimate = Long.MAX_VALUE;
+		for (int index : indexes(descriptor.getLimitationUnitName())) {
+			estimate = Math.min(estimate, Math.max(counters.get(index), now));
+		}
+		return descriptor.setCurrentBudget(computeBudget(descriptor, estimate, now));
+	}
+	
+	private long computeBudget(RateLimitDescriptor descriptor, long tat, long now) {
+		return descriptor.getMaxBudget() - (tat - now) * descriptor.getFillRate() / NANOS_PER_MILLI;
+	}
+	
+	private int[] indexes(String limitationUnitName) {
+		// seeded FNV-1a and double hashing, to be robust against crafted colliding names
+		long h1 = seed ^ 0xcbf29ce484222325L;
+		for (int i = 0; i < limitationUnitName.length(); i++) {
+			h1 ^= limitationUnitName.charAt(i);
+			h1 *= 0x100000001b3L;
+		}
+		h1 = mix(h1);
+		long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1L;
+		int[] indexes = new int[depth];
+		for (int row = 0; row < depth; row++) {
+			indexes[row] = row * width + (int) Math.floorMod(h1 + row * h2, (long) width);
+		}
+		return indexes;
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
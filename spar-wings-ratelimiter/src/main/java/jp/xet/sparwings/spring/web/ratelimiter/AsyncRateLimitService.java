@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.CompletionStage;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Non-blocking variant of {@link RateLimitService}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ * @see AsyncRateLimitingFilter
+ */
+public interface AsyncRateLimitService {
+	
+	/**
+	 * Consume the budget without blocking the calling thread.
+	 * 
+	 * <p>The request is examined by the calling thread, so that the returned stage does not refer
+	 * the request.</p>
+	 * 
+	 * @param request the request
+	 * @param consumption amount to consume
+	 * @return stage of {@link RateLimitDescriptor}, which is completed with {@code null}
+	 *         if limitation is not applied
+	 * @since 1.2
+	 */
+	CompletionStage<RateLimitDescriptor> consumeAsync(HttpServletRequest request, long consumption);
+}
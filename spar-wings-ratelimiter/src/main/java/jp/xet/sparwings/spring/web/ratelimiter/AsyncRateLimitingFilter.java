@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Servlet {@link Filter} implementation to apply rate limit without parking container threads.
+ * 
+ * <p>If the consumption is not completed immediately, the request is put into asynchronous mode and
+ * the container thread is released. When the consumption is completed, the request is dispatched again
+ * (as {@code ASYNC} dispatch, which this filter passes through) if it is admitted, or completed with
+ * {@code 429 Too Many Requests} if it is rejected. If the consumption fails or does not complete within
+ * {@code asyncTimeout}, the request is admitted.</p>
+ * 
+ * <p>Filters after this filter are invoked in the {@code ASYNC} dispatch, so those must be registered
+ * for {@code ASYNC} dispatcher type. Putting this filter at the end of the chain is recommended.
+ * Unlike {@link RateLimitingInterceptor}, the cost is computed from the request only, because
+ * handler is not resolved yet.</p>
+ * 
+ * <p>If {@link #setMaxShapingDelay(long) maxShapingDelay} is set, the request over budget is not rejected
+ * but held in asynchronous mode until the deficit is refilled, as long as the wait does not exceed
+ * {@code maxShapingDelay} (shaping mode). The budget of the held request is already consumed, so the
+ * following requests are delayed in turn, and bursts are converted into a steady stream. The held requests
+ * are dispatched by {@link HashedTimerWheel}, without parking any thread.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class AsyncRateLimitingFilter extends OncePerRequestFilter {
+	
+	private static final long DEFAULT_CONSUMPTION = 100L;
+	
+	private static final long DEFAULT_ASYNC_TIMEOUT = 5000L;
+	
+	private static final long SHAPING_TICK_MILLIS = 10L;
+	
+	private static final int SHAPING_WHEEL_SIZE = 512;
+	
+	private final AsyncRateLimitService rateLimitService;
+	
+	@Getter
+	@Setter
+	private boolean responseHeader = true;
+	
+	@NonNull
+	@Getter
+	@Setter
+	private ToLongFunction<HttpServletRequest> costStrategy = request -> DEFAULT_CONSUMPTION;
+	
+	/**
+	 * Timeout of asynchronous mode in millisec.
+	 */
+	@Getter
+	@Setter
+	private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+	
+	/**
+	 * Maximum millisec to hold the request over budget. {@code 0} to reject immediately.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private long maxShapingDelay;
+	
+	/**
+	 * Metrics to record allowed and rejected requests and the latency of consumption. {@code null} to disable.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private RateLimitMetrics metrics;
+	
+	private final HashedTimerWheel timerWheel =
+			new HashedTimerWheel(SHAPING_TICK_MILLIS, SHAPING_WHEEL_SIZE, "rate-limit-shaping");
+	
+	private final LongAdder shapedCount = new LongAdder();
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param rateLimitService {@link AsyncRateLimitService}
+	 * @since 1.2
+	 */
+	public AsyncRateLimitingFilter(AsyncRateLimitService rateLimitService) {
+		this.rateLimitService = rateLimitService;
+	}
+	
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		long cost = costStrategy.applyAsLong(request);
+		long startNanos = System.nanoTime();
+		CompletableFuture<RateLimitDescriptor> future;
+		try {
+			future = rateLimitService.consumeAsync(request, cost).toCompletableFuture();
+		} catch (RuntimeException e) {
+			log.warn("Failed to consume rate limit budget, pass through", e);
+			filterChain.doFilter(request, response);
+			return;
+		}
+		
+		if (future.isDone() || request.isAsyncSupported() == false) {
+			RateLimitDescriptor desc;
+			try {
+				desc = future.join();
+			} catch (RuntimeException e) {
+				log.warn("Failed to consume rate limit budget, pass through", e);
+				desc = null;
+			}
+			recordLatency(startNanos);
+			long delay = evaluate(response, desc, cost, request.isAsyncSupported());
+			if (delay == 0) {
+				filterChain.doFilter(request, response);
+			} else if (delay > 0) {
+				AsyncContext asyncContext = request.startAsync(request, response);
+				asyncContext.setTimeout(asyncTimeout + delay);
+				shape(asyncContext, delay);
+			}
+			return;
+		}
+		
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(asyncTimeout + maxShapingDelay);
+		AtomicBoolean handled = new AtomicBoolean();
+		asyncContext.addListener(new TimeoutListener(handled));
+		future.whenComplete((desc, e) -> {
+			if (handled.compareAndSet(false, true) == false) {
+				return;
+			}
+			recordLatency(startNanos);
+			try {
+				if (e != null) {
+					log.warn("Failed to consume rate limit budget, pass through", e);
+				}
+				long delay = evaluate(response, e == null ? desc : null, cost, true);
+				if (delay == 0) {
+					asyncContext.dispatch();
+				} else if (delay > 0) {
+					shape(asyncContext, delay);
+				} else {
+					asyncContext.complete();
+				}
+			} catch (IOException | RuntimeException ex) {
+				log.error("Failed to complete rate limited request", ex);
+				asyncContext.complete();
+			}
+		});
+	}
+	
+	@Override
+	public void destroy() {
+		timerWheel.stop();
+		super.destroy();
+	}
+	
+	/**
+	 * Return the number of requests which were delayed in shaping mode.
+	 * 
+	 * @return shaped count
+	 * @since 1.2
+	 */
+	public long getShapedCount() {
+		return shapedCount.sum();
+	}
+	
+	/**
+	 * Decide how to handle the request.
+	 * 
+	 * @return {@code 0} to admit now, positive millisec to admit after delay, or negative if rejected
+	 */
+	private long evaluate(HttpServletResponse response, RateLimitDescriptor desc, long cost, boolean shapable)
+			throws IOException {
+		if (desc == null) {
+			return 0; // through
+		}
+		if (responseHeader) {
+			RateLimitResponseHeaders.setStatus(response, desc, cost);
+		}
+		if (desc.getCurrentBudget() < 0) {
+			// the cost is already consumed, so the request can go when the deficit is refilled
+			long delay = -Math.floorDiv(desc.getCurrentBudget(), desc.getFillRate());
+			if (shapable && delay <= maxShapingDelay) {
+				recordResult(desc, true);
+				return delay;
+			}
+			recordResult(desc, false);
+			long millisecsToWait = desc.computeWaitMillisecsToConsume(cost);
+			if (responseHeader) {
+				RateLimitResponseHeaders.setRetryAfter(response, millisecsToWait);
+			}
+			response.sendError(HttpStatus.TOO_MANY_REQUESTS.value());
+			return -1;
+		}
+		recordResult(desc, true);
+		return 0;
+	}
+	
+	private void recordLatency(long startNanos) {
+		if (metrics != null) {
+			metrics.recordLatency(rateLimitService.getClass().getSimpleName(), System.nanoTime() - startNanos);
+		}
+	}
+	
+	private void recordResult(RateLimitDescriptor desc, boolean allowed) {
+		if (metrics != null) {
+			if (allowed) {
+				metrics.recordAllowed();
+			} else {
+				metrics.recordRejected(desc.getLimitationUnitName());
+			}
+		}
+	}
+	
+	private void shape(AsyncContext asyncContext, long delay) {
+		shapedCount.increment();
+		timerWheel.schedule(() -> {
+			try {
+				asyncContext.dispatch();
+			} catch (IllegalStateException e) {
+				log.warn("Shaped request was already completed", e);
+			}
+		}, delay);
+	}
+	
+	
+	/**
+	 * Admit the request if the consumption is not completed within the timeout.
+	 */
+	@RequiredArgsConstructor
+	private static final class TimeoutListener implements AsyncListener {
+		
+		private final AtomicBoolean handled;
+		
+		
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			if (handled.compareAndSet(false, true)) {
+				log.warn("Rate limit consumption timed out, pass through");
+				event.getAsyncContext().dispatch();
+			}
+		}
+		
+		@Override
+		public void onComplete(AsyncEvent event) {
+			// nothing to do
+		}
+		
+		@Override
+		public void onError(AsyncEvent event) {
+			// nothing to do
+		}
+		
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// nothing to do
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Client side of {@link ClusteredRateLimitService}, which forwards consumption to single peer node.
+ * 
+ * <p>Requests are queued and sent by single sender thread. While a frame is in flight, following requests
+ * are accumulated and sent together in the next frame, so the batch size adapts to the load without
+ * linger. When the peer is unreachable, the requests fail immediately until {@code retryInterval}
+ * elapses.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+final class ClusterPeer implements Closeable {
+	
+	private static final long POLL_MILLIS = 100L;
+	
+	/** Maximum length of {@link DataOutputStream#writeUTF(String)} */
+	private static final int MAX_UTF_LENGTH = 65535;
+	
+	private final String node;
+	
+	private final int timeoutMillis;
+	
+	private final int maxBatchSize;
+	
+	private final long retryIntervalNanos;
+	
+	private final BlockingQueue<Pending> queue;
+	
+	private final Thread sender;
+	
+	private volatile boolean closed;
+	
+	private volatile long downUntilNanos;
+	
+	private volatile boolean down;
+	
+	// accessed only by sender thread
+	private Socket socket;
+	
+	private DataInputStream in;
+	
+	private DataOutputStream out;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param node peer node in {@code host:port} form
+	 * @param timeoutMillis connect and read timeout in millisec
+	 * @param maxBatchSize maximum number of requests in single frame
+	 * @param retryIntervalMillis millisec to fail fast after the peer became unreachable
+	 */
+	ClusterPeer(String node, int timeoutMillis, int maxBatchSize, long retryIntervalMillis) {
+		this.node = node;
+		this.timeoutMillis = timeoutMillis;
+		this.maxBatchSize = Math.min(maxBatchSize, ClusterServer.MAX_FRAME_ENTRIES);
+		retryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(retryIntervalMillis);
+		queue = new LinkedBlockingQueue<>(this.maxBatchSize * 16);
+		sender = new Thread(this::run, "rate-limit-peer-" + node);
+		sender.setDaemon(true);
+	}
+	
+	/**
+	 * Start the sender thread.
+	 */
+	void start() {
+		sender.start();
+	}
+	
+	/**
+	 * Forward the consumption to the peer.
+	 * 
+	 * @param recovery initial descriptor of the limitation unit
+	 * @param consumption amount to consume
+	 * @return future of the result, which fails if the peer is unreachable or the limitation unit name is
+	 *     too long to be sent
+	 */
+	CompletableFuture<RateLimitDescriptor> submit(RateLimitDescriptor recovery, long consumption) {
+		Pending pending = new Pending(recovery, consumption);
+		if (isTooLongToWrite(recovery.getLimitationUnitName())) {
+			// reject only this entry, the frame would break the connection for every other unit
+			pending.future.completeExceptionally(new IOException("Limitation unit name is too long to forward"));
+		} else if (closed || (down && System.nanoTime() - downUntilNanos < 0) || queue.offer(pending) == false) {
+			pending.future.completeExceptionally(new IOException("Peer " + node + " is not available"));
+		}
+		return pending.future;
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		sender.interrupt();
+		disconnect();
+	}
+	
+	private void run() {
+		List<Pending> batch = new ArrayList<>(maxBatchSize);
+		while (closed == false) {
+			try {
+				Pending first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, maxBatchSize - 1);
+				send(batch);
+				down = false;
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				if (down == false) {
+					log.warn("Rate limit peer {} is unreachable: {}", node, e.toString());
+				}
+				disconnect();
+				downUntilNanos = System.nanoTime() + retryIntervalNanos;
+				down = true;
+				fail(batch, e);
+				List<Pending> queued = new ArrayList<>();
+				queue.drainTo(queued);
+				fail(queued, e);
+			} finally {
+				batch.clear();
+			}
+		}
+		disconnect();
+		List<Pending> queued = new ArrayList<>();
+		queue.drainTo(queued);
+		fail(queued, new IOException("Peer " + node + " is closed"));
+	}
+	
+	private void send(List<Pending> batch) throws IOException {
+		if (socket == null) {
+			connect();
+		}
+		out.writeInt(batch.size());
+		for (Pending pending : batch) {
+			RateLimitDescriptor recovery = pending.recovery;
+			out.writeUTF(recovery.getLimitationUnitName());
+			out.writeLong(recovery.getFillRate());
+			out.writeLong(recovery.getMaxBudget());
+			out.writeLong(recovery.getCurrentBudget());
+			out.writeLong(pending.consumption);
+		}
+		out.flush();
+		int count = in.readInt();
+		if (count != batch.size()) {
+			throw new IOException("Unexpected response size " + count + " from " + node);
+		}
+		for (Pending pending : batch) {
+			RateLimitDescriptor recovery = pending.recovery;
+			long currentBudget = in.readLong();
+			long lastUpdateTime = in.readLong();
+			pending.future.complete(new RateLimitDescriptor(recovery.getLimitationUnitName(),
+					recovery.getFillRate(), recovery.getMaxBudget(), currentBudget, lastUpdateTime));
+		}
+	}
+	
+	private void connect() throws IOException {
+		int separator = node.lastIndexOf(':');
+		Socket s = new Socket();
+		try {
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(timeoutMillis);
+			s.connect(new InetSocketAddress(node.substring(0, separator),
+					Integer.parseInt(node.substring(separator + 1))), timeoutMillis);
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			out.writeInt(ClusterServer.MAGIC);
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		socket = s;
+		log.info("Connected to rate limit peer {}", node);
+	}
+	
+	private void disconnect() {
+		Socket s = socket;
+		socket = null;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				log.debug("Failed to close connection to {}", node, e);
+			}
+		}
+	}
+	
+	private static boolean isTooLongToWrite(String str) {
+		if (str.length() * 3L <= MAX_UTF_LENGTH) {
+			return false; // each char takes 3 bytes at most
+		}
+		long length = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length > MAX_UTF_LENGTH;
+	}
+	
+	private static void fail(List<Pending> pendings, IOException cause) {
+		for (Pending pending : pendings) {
+			pending.future.completeExceptionally(cause);
+		}
+	}
+	
+	
+	@RequiredArgsConstructor
+	private static final class Pending {
+		
+		private final RateLimitDescriptor recovery;
+		
+		private final long consumption;
+		
+		private final CompletableFuture<RateLimitDescriptor> future = new CompletableFuture<>();
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Server side of {@link ClusteredRateLimitService}, which consumes the budgets owned by this node on
+ * behalf of the peers.
+ * 
+ * <p>Each peer keeps single connection, which is served by its own thread. Request frames of the connection
+ * are processed in order.</p>
+ * 
+ * <p>The protocol has no authentication, so connections are accepted only from the addresses which the peer
+ * hosts resolve to, and only up to {@code maxConnections} of them are served at once. The server should
+ * still listen on an interface which is reachable only from the cluster.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+final class ClusterServer implements Closeable {
+	
+	/** First int of each connection, "SWRC" */
+	static final int MAGIC = 0x53575243;
+	
+	/** Maximum number of entries in single frame */
+	static final int MAX_FRAME_ENTRIES = 65536;
+	
+	private final InMemoryRateLimitService local;
+	
+	private final Collection<String> peerHosts;
+	
+	private final ServerSocket serverSocket;
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	
+	private volatile boolean closed;
+	
+	
+	/**
+	 * Create instance and bind the address.
+	 * 
+	 * @param bindAddress address to listen
+	 * @param peerHosts hosts of the peers which are allowed to connect
+	 * @param maxConnections maximum number of connections served at once
+	 * @param local the service which owns the budgets
+	 * @throws IOException if the address can not be bound
+	 */
+	ClusterServer(InetSocketAddress bindAddress, Collection<String> peerHosts, int maxConnections,
+			InMemoryRateLimitService local) throws IOException {
+		this.local = local;
+		this.peerHosts = peerHosts;
+		executor = new ThreadPoolExecutor(0, maxConnections, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+			Thread thread = new Thread(r, "rate-limit-cluster-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(bindAddress);
+	}
+	
+	/**
+	 * Start accepting connections.
+	 */
+	void start() {
+		Thread acceptor = new Thread(this::accept, "rate-limit-cluster-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		executor.shutdownNow();
+		for (Socket socket : connections) {
+			socket.close();
+		}
+	}
+	
+	private void accept() {
+		while (closed == false) {
+			try {
+				Socket socket = serverSocket.accept();
+				if (isPeer(socket.getInetAddress()) == false) {
+					log.warn("Refused rate limit cluster connection from unknown host {}",
+							socket.getRemoteSocketAddress());
+					socket.close();
+					continue;
+				}
+				socket.setTcpNoDelay(true);
+				connections.add(socket);
+				try {
+					executor.execute(() -> serve(socket));
+				} catch (RejectedExecutionException e) {
+					log.warn("Refused rate limit cluster connection from {}: too many connections",
+							socket.getRemoteSocketAddress());
+					connections.remove(socket);
+					socket.close();
+				}
+			} catch (IOException e) {
+				if (closed == false) {
+					log.warn("Failed to accept rate limit cluster connection", e);
+				}
+			}
+		}
+	}
+	
+	private boolean isPeer(InetAddress address) {
+		for (String host : peerHosts) {
+			try {
+				for (InetAddress peerAddress : InetAddress.getAllByName(host)) {
+					if (peerAddress.equals(address)) {
+						return true;
+					}
+				}
+			} catch (UnknownHostException e) {
+				log.debug("Failed to resolve rate limit peer {}", host);
+			}
+		}
+		return false;
+	}
+	
+	private void serve(Socket socket) {
+		try (Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+			if (in.readInt() != MAGIC) {
+				log.warn("Unknown protocol from {}", s.getRemoteSocketAddress());
+				return;
+			}
+			while (closed == false) {
+				int count = in.readInt();
+				if (count <= 0 || count > MAX_FRAME_ENTRIES) {
+					log.warn("Invalid frame size {} from {}", count, s.getRemoteSocketAddress());
+					return;
+				}
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					String name = in.readUTF();
+					long fillRate = in.readLong();
+					long maxBudget = in.readLong();
+					long initialBudget = in.readLong();
+					long consumption = in.readLong();
+					RateLimitDescriptor result = local.consume(
+							new RateLimitDescriptor(name, fillRate, maxBudget, initialBudget, 0L), consumption);
+					out.writeLong(result.getCurrentBudget());
+					out.writeLong(result.getLastUpdateTime());
+				}
+				out.flush();
+			}
+		} catch (EOFException | SocketException e) {
+			log.debug("Rate limit cluster connection closed: {}", e.getMessage());
+		} catch (IOException | RuntimeException e) {
+			log.warn("Rate limit cluster connection failed", e);
+		} finally {
+			connections.remove(socket);
+		}
+	}
+}
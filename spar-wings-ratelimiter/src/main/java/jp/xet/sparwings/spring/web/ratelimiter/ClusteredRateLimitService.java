@@ -0,0 +1,244 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * {@link RateLimitService} implementation which shares budgets among the nodes of the cluster without Redis.
+ * 
+ * <p>Each limitation unit is owned by single node, which is decided by consistent hashing of
+ * {@code limitationUnitName} over {@code nodes}. The budget owned by this node is consumed in memory, and
+ * the consumption of the other units is forwarded to the owner over TCP. Concurrent forwards to the same
+ * owner are batched into single frame.</p>
+ * 
+ * <p>When the owner does not respond within {@code timeout} millisec, the request is evaluated by in-memory
+ * service whose {@code fillRate} and {@code maxBudget} are multiplied by {@code fallbackBudgetRatio}
+ * ({@code 1 / number of nodes} by default, rounded up to 1). The owner is not retried for
+ * {@code retryInterval} millisec. Forwards which timed out may still debit the owner, so the client can be
+ * charged twice while degrading.</p>
+ * 
+ * <p>All nodes must be configured with the same {@code nodes} list, in {@code host:port} form. This node
+ * listens on {@code localNode} (or {@code bindAddress} if it is set) and accepts connections only from the hosts
+ * of the other nodes. The protocol has no authentication, so the port must not be exposed outside the
+ * cluster.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class ClusteredRateLimitService extends AbstractRateLimitService implements InitializingBean, DisposableBean {
+	
+	private static final long DEFAULT_TIMEOUT = 50L;
+	
+	private static final long DEFAULT_RETRY_INTERVAL = 1000L;
+	
+	private static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	
+	private final String localNode;
+	
+	private final List<String> nodes;
+	
+	private final ConsistentHashRing ring;
+	
+	@Getter
+	private final InMemoryRateLimitService local = new InMemoryRateLimitService();
+	
+	@Getter
+	private final InMemoryRateLimitService fallback = new InMemoryRateLimitService();
+	
+	/**
+	 * Latency budget of forwarding in millisec.
+	 */
+	@Getter
+	@Setter
+	private long timeout = DEFAULT_TIMEOUT;
+	
+	/**
+	 * Millisec to fall back without trying the owner after it became unreachable.
+	 */
+	@Getter
+	@Setter
+	private long retryInterval = DEFAULT_RETRY_INTERVAL;
+	
+	/**
+	 * Maximum number of forwards in single frame.
+	 */
+	@Getter
+	@Setter
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	
+	/**
+	 * Host or address to listen, or {@code null} to listen on the host of {@code localNode}.
+	 */
+	@Getter
+	@Setter
+	private String bindAddress;
+	
+	/**
+	 * Ratio of fallback {@code fillRate} and {@code maxBudget} to the original.
+	 */
+	@Getter
+	@Setter
+	private double fallbackBudgetRatio;
+	
+	private final Map<String, ClusterPeer> peers = new HashMap<>();
+	
+	private ClusterServer server;
+	
+	private final LongAdder remoteCount = new LongAdder();
+	
+	private final LongAdder fallbackCount = new LongAdder();
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param localNode this node in {@code host:port} form
+	 * @param nodes all nodes of the cluster in {@code host:port} form, including {@code localNode}
+	 * @throws IllegalArgumentException if {@code localNode} is not contained in {@code nodes}
+	 * @since 1.2
+	 */
+	public ClusteredRateLimitService(String localNode, List<String> nodes) {
+		if (nodes.contains(localNode) == false) {
+			throw new IllegalArgumentException("nodes must contain localNode: " + localNode);
+		}
+		this.localNode = localNode;
+		this.nodes = nodes;
+		ring = new ConsistentHashRing(nodes, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+		fallbackBudgetRatio = 1.0 / nodes.size();
+	}
+	
+	@Override
+	public void afterPropertiesSet() throws IOException {
+		List<String> peerHosts = nodes.stream()
+			.filter(node -> node.equals(localNode) == false)
+			.map(ClusteredRateLimitService::hostOf)
+			.collect(Collectors.toList());
+		String host = bindAddress == null ? hostOf(localNode) : bindAddress;
+		// each peer keeps single connection, and may reconnect before the broken one is noticed
+		int maxConnections = Math.max(1, peerHosts.size() * 2);
+		server = new ClusterServer(new InetSocketAddress(host, portOf(localNode)), peerHosts, maxConnections, local);
+		server.start();
+		for (String node : nodes) {
+			if (node.equals(localNode) == false) {
+				ClusterPeer peer = new ClusterPeer(node, (int) timeout, maxBatchSize, retryInterval);
+				peer.start();
+				peers.put(node, peer);
+			}
+		}
+		log.info("Rate limit cluster node {} started with {} peers", localNode, peers.size());
+	}
+	
+	@Override
+	public void destroy() throws IOException {
+		peers.values().forEach(ClusterPeer::close);
+		peers.clear();
+		if (server != null) {
+			server.close();
+			server = null;
+		}
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor recovery = computeRateLimitRecovery(request);
+		if (recovery == null) {
+			return null;
+		}
+		return consume(recovery, consumption);
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		return consume(request, 0L);
+	}
+	
+	/**
+	 * Return the number of consumptions forwarded to the owner successfully.
+	 * 
+	 * @return remote count
+	 * @since 1.2
+	 */
+	public long getRemoteCount() {
+		return remoteCount.sum();
+	}
+	
+	/**
+	 * Return the number of consumptions evaluated by the fallback.
+	 * 
+	 * @return fallback count
+	 * @since 1.2
+	 */
+	public long getFallbackCount() {
+		return fallbackCount.sum();
+	}
+	
+	String ownerOf(String limitationUnitName) {
+		return ring.ownerOf(limitationUnitName);
+	}
+	
+	private RateLimitDescriptor consume(RateLimitDescriptor recovery, long consumption) {
+		String owner = ownerOf(recovery.getLimitationUnitName());
+		ClusterPeer peer = peers.get(owner);
+		if (peer == null) {
+			return local.consume(recovery, consumption);
+		}
+		try {
+			RateLimitDescriptor descriptor = peer.submit(recovery, consumption).get(timeout, TimeUnit.MILLISECONDS);
+			remoteCount.increment();
+			return descriptor;
+		} catch (TimeoutException e) {
+			log.warn("Rate limit owner {} did not respond within {} ms", owner, timeout);
+		} catch (ExecutionException e) {
+			log.debug("Rate limit owner {} is not available: {}", owner, e.getCause().toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while waiting rate limit owner {}", owner);
+		}
+		fallbackCount.increment();
+		long maxBudget = Math.max(1L, Math.round(recovery.getMaxBudget() * fallbackBudgetRatio));
+		long fillRate = Math.max(1L, Math.round(recovery.getFillRate() * fallbackBudgetRatio));
+		return fallback.consume(new RateLimitDescriptor(recovery.getLimitationUnitName(), fillRate, maxBudget)
+			.setCurrentBudget(maxBudget), consumption);
+	}
+	
+	private static String hostOf(String node) {
+		return node.substring(0, node.lastIndexOf(':'));
+	}
+	
+	private static int portOf(String node) {
+		return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import jp.xet.sparwings.spring.web.httpexceptions.HttpServiceUnavailableException;
+import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+
+/**
+ * {@link HandlerInterceptor} implementation to limit the number of in-flight requests by
+ * {@link AdaptiveConcurrencyLimit}.
+ * 
+ * <p>While {@link RateLimitingInterceptor} caps the request rate per client, this interceptor protects the
+ * server itself when the downstream latency rises, without tuning {@code fillRate} or {@code maxBudget}.
+ * The permit of async request is held until its async dispatch is completed.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+public class ConcurrencyLimitingInterceptor extends HandlerInterceptorAdapter {
+	
+	private static final String START_NANOS = ConcurrencyLimitingInterceptor.class.getName() + ".START_NANOS";
+	
+	@Getter
+	private final AdaptiveConcurrencyLimit concurrencyLimit;
+	
+	/**
+	 * Reject with {@code 503 Service Unavailable} instead of {@code 429 Too Many Requests}.
+	 */
+	@Getter
+	@Setter
+	private boolean serviceUnavailable;
+	
+	private final LongAdder rejectedCount = new LongAdder();
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param concurrencyLimit {@link AdaptiveConcurrencyLimit}
+	 * @since 1.2
+	 */
+	public ConcurrencyLimitingInterceptor(AdaptiveConcurrencyLimit concurrencyLimit) {
+		this.concurrencyLimit = concurrencyLimit;
+	}
+	
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+			throws Exception { // NOPMD
+		if (request.getAttribute(START_NANOS) == null) { // not async re-dispatch
+			if (concurrencyLimit.tryAcquire() == false) {
+				rejectedCount.increment();
+				String message = "Concurrency limit " + concurrencyLimit.getLimit() + " exceeded";
+				if (serviceUnavailable) {
+					throw new HttpServiceUnavailableException(message);
+				}
+				throw new HttpTooManyRequestsException(message);
+			}
+			request.setAttribute(START_NANOS, System.nanoTime());
+		}
+		return super.preHandle(request, response, handler);
+	}
+	
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) throws Exception { // NOPMD
+		Object startNanos = request.getAttribute(START_NANOS);
+		if (startNanos instanceof Long) {
+			request.removeAttribute(START_NANOS);
+			concurrencyLimit.release(System.nanoTime() - (Long) startNanos);
+		}
+		super.afterCompletion(request, response, handler, ex);
+	}
+	
+	/**
+	 * Return the number of rejected requests.
+	 * 
+	 * @return rejected count
+	 * @since 1.2
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring to decide the owner node of limitation units.
+ * 
+ * <p>Each node is placed on the ring at {@code virtualNodes} points, so that keys are spread evenly and
+ * only about {@code 1 / n} of keys move when a node is added or removed. The hash is deterministic,
+ * so that every node with the same member list agrees on the owner.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+final class ConsistentHashRing {
+	
+	static final int DEFAULT_VIRTUAL_NODES = 160;
+	
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param nodes member nodes
+	 * @param virtualNodes the number of points per node
+	 */
+	ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("nodes must not be empty");
+		}
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+	
+	/**
+	 * Return the owner node of the key.
+	 * 
+	 * @param key the key
+	 * @return owner node
+	 */
+	String ownerOf(String key) {
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+	
+	static long hash(String key) {
+		// FNV-1a over UTF-8 bytes, finalized by murmur3 fmix64
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} decorator which falls back to {@link InMemoryRateLimitService} when the primary
+ * (typically {@link RedisRateLimitService}) is slow or down.
+ * 
+ * <p>Each call to the primary is bounded by {@code timeout} millisec. When the primary times out or fails,
+ * the request is evaluated by in-memory service whose {@code fillRate} and {@code maxBudget} are those
+ * of the primary multiplied by {@code fallbackBudgetRatio} (typically {@code 1 / number of nodes}, rounded
+ * up to 1). After {@code failureThreshold} consecutive failures, the circuit is opened and the primary is
+ * not called for {@code openDuration} millisec. Then single trial call is made (half-open), and the circuit
+ * is closed if it succeeds.</p>
+ * 
+ * <p>Calls which timed out keep running on the executor and may still debit the primary, so the client can
+ * be charged twice while degrading.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class FallbackRateLimitService implements RateLimitService {
+	
+	/**
+	 * State of the circuit breaker.
+	 * 
+	 * @since 1.2
+	 */
+	public enum CircuitState {
+		
+		/** The primary is called. */
+		CLOSED,
+		
+		/** The primary is not called. */
+		OPEN,
+		
+		/** Trial call to the primary is in flight. */
+		HALF_OPEN
+	}
+	
+	
+	private static final long DEFAULT_TIMEOUT = 50L;
+	
+	private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	
+	private static final long DEFAULT_OPEN_DURATION = 10000L;
+	
+	private static final int DEFAULT_THREADS = 16;
+	
+	private static final int DEFAULT_QUEUE_CAPACITY = 64;
+	
+	private final AbstractRateLimitService primary;
+	
+	@Getter
+	private final InMemoryRateLimitService fallback = new InMemoryRateLimitService();
+	
+	/**
+	 * Latency budget of the primary in millisec.
+	 */
+	@Getter
+	@Setter
+	private long timeout = DEFAULT_TIMEOUT;
+	
+	/**
+	 * Number of consecutive failures to open the circuit.
+	 */
+	@Getter
+	@Setter
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	
+	/**
+	 * Millisec to keep the circuit open.
+	 */
+	@Getter
+	@Setter
+	private long openDuration = DEFAULT_OPEN_DURATION;
+	
+	/**
+	 * Executor to call the primary. Rejected execution is treated as a failure, so bounded one is recommended.
+	 */
+	@Getter
+	@Setter
+	private ExecutorService executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS,
+			0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY), r -> {
+				Thread thread = new Thread(r, "rate-limit-primary");
+				thread.setDaemon(true);
+				return thread;
+			});
+	
+	private final AtomicReference<CircuitState> circuitState = new AtomicReference<>(CircuitState.CLOSED);
+	
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	
+	private volatile long openedAt;
+	
+	private final LongAdder fallbackCount = new LongAdder();
+	
+	private final LongAdder timeoutCount = new LongAdder();
+	
+	private final LongAdder failureCount = new LongAdder();
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param primary primary service
+	 * @param fallbackBudgetRatio ratio of fallback {@code fillRate} and {@code maxBudget} to the primary's
+	 * @since 1.2
+	 */
+	public FallbackRateLimitService(AbstractRateLimitService primary, double fallbackBudgetRatio) {
+		this.primary = primary;
+		fallback.setRecoveryStrategy(request -> {
+			RateLimitDescriptor descriptor = primary.computeRateLimitRecovery(request);
+			if (descriptor == null) {
+				return null;
+			}
+			long maxBudget = Math.max(1L, Math.round(descriptor.getMaxBudget() * fallbackBudgetRatio));
+			long fillRate = Math.max(1L, Math.round(descriptor.getFillRate() * fallbackBudgetRatio));
+			return new RateLimitDescriptor(descriptor.getLimitationUnitName(), fillRate, maxBudget)
+				.setCurrentBudget(maxBudget);
+		});
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return call(() -> primary.consume(request, consumption), () -> fallback.consume(request, consumption));
+	}
+	
+	@Override
+	public RateLimitDescriptor adjust(HttpServletRequest request, long consumption) {
+		return call(() -> primary.adjust(request, consumption), () -> fallback.adjust(request, consumption));
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		return call(() -> primary.get(request), () -> fallback.get(request));
+	}
+	
+	/**
+	 * Return current state of the circuit breaker.
+	 * 
+	 * @return circuit state
+	 * @since 1.2
+	 */
+	public CircuitState getCircuitState() {
+		return circuitState.get();
+	}
+	
+	/**
+	 * Return the number of requests evaluated by the fallback.
+	 * 
+	 * @return fallback count
+	 * @since 1.2
+	 */
+	public long getFallbackCount() {
+		return fallbackCount.sum();
+	}
+	
+	/**
+	 * Return the number of primary calls which exceeded {@code timeout}.
+	 * 
+	 * @return timeout count
+	 * @since 1.2
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.sum();
+	}
+	
+	/**
+	 * Return the number of primary calls which failed or were rejected by the executor.
+	 * 
+	 * @return failure count
+	 * @since 1.2
+	 */
+	public long getFailureCount() {
+		return failureCount.sum();
+	}
+	
+	private RateLimitDescriptor call(Supplier<RateLimitDescriptor> primaryCall,
+			Supplier<RateLimitDescriptor> fallbackCall) {
+		if (allowPrimary()) {
+			try {
+				Future<RateLimitDescriptor> future = executor.submit(primaryCall::get);
+				try {
+					RateLimitDescriptor descriptor = future.get(timeout, TimeUnit.MILLISECONDS);
+					onSuccess();
+					return descriptor;
+				} catch (TimeoutException e) {
+					future.cancel(true);
+					timeoutCount.increment();
+					log.warn("Rate limit service did not respond within {} ms", timeout);
+					onFailure();
+				} catch (InterruptedException e) {
+					future.cancel(true);
+					Thread.currentThread().interrupt();
+					log.warn("Interrupted while waiting rate limit service");
+					onInterrupted();
+				}
+			} catch (RejectedExecutionException | ExecutionException e) {
+				failureCount.increment();
+				log.warn("Rate limit service failed", e);
+				onFailure();
+			}
+		}
+		fallbackCount.increment();
+		return fallbackCall.get();
+	}
+	
+	private boolean allowPrimary() {
+		CircuitState state = circuitState.get();
+		if (state == CircuitState.CLOSED) {
+			return true;
+		}
+		if (state == CircuitState.OPEN && Clock.now().toEpochMillisec() - openedAt >= openDuration
+				&& circuitState.compareAndSet(CircuitState.OPEN, CircuitState.HALF_OPEN)) {
+			log.info("Rate limit circuit is half-open, trying primary");
+			return true;
+		}
+		return false;
+	}
+	
+	private void onSuccess() {
+		consecutiveFailures.set(0);
+		if (circuitState.compareAndSet(CircuitState.HALF_OPEN, CircuitState.CLOSED)) {
+			log.info("Rate limit circuit is closed");
+		}
+	}
+	
+	private void onInterrupted() {
+		// the trial tells nothing about the primary, so let the next request try again
+		if (circuitState.compareAndSet(CircuitState.HALF_OPEN, CircuitState.OPEN)) {
+			log.info("Rate limit circuit is opened again, as the trial was interrupted");
+		}
+	}
+	
+	private void onFailure() {
+		if (circuitState.get() == CircuitState.HALF_OPEN
+				|| consecutiveFailures.incrementAndGet() >= failureThreshold) {
+			openedAt = Clock.now().toEpochMillisec();
+			if (circuitState.getAndSet(CircuitState.OPEN) != CircuitState.OPEN) {
+				log.warn("Rate limit circuit is opened, falling back to in-memory service for {} ms", openDuration);
+			}
+			consecutiveFailures.set(0);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hashed timer wheel to run many short delayed tasks on single thread.
+ * 
+ * <p>Tasks are scheduled without lock into a pending queue, and the worker thread moves them into the
+ * wheel bucket of their deadline tick once per tick. Scheduling and expiration are {@code O(1)}, and the
+ * precision is {@code tickMillis}. Tasks must be short because they are run on the worker thread.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+final class HashedTimerWheel {
+	
+	private static final int INIT = 0;
+	
+	private static final int STARTED = 1;
+	
+	private static final int STOPPED = 2;
+	
+	private final long tickNanos;
+	
+	private final List<Deque<Timeout>> wheel;
+	
+	private final int mask;
+	
+	private final String threadName;
+	
+	private final long startNanos = System.nanoTime();
+	
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	
+	private final AtomicInteger state = new AtomicInteger(INIT);
+	
+	private volatile Thread worker;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param tickMillis duration of single tick in millisec
+	 * @param wheelSize number of buckets, which is rounded up to power of two
+	 * @param threadName name of the worker thread
+	 */
+	HashedTimerWheel(long tickMillis, int wheelSize, String threadName) {
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		wheel = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			wheel.add(new ArrayDeque<>());
+		}
+		mask = size - 1;
+		this.threadName = threadName;
+	}
+	
+	/**
+	 * Run the task after {@code delayMillis}. The worker thread is started on first call.
+	 * 
+	 * @param task the task
+	 * @param delayMillis delay in millisec
+	 * @throws IllegalStateException if this timer was stopped
+	 */
+	void schedule(Runnable task, long delayMillis) {
+		start();
+		long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		pending.add(new Timeout(task, deadline));
+	}
+	
+	/**
+	 * Stop the worker thread. Tasks which are not run yet are discarded.
+	 */
+	void stop() {
+		if (state.getAndSet(STOPPED) == STARTED) {
+			worker.interrupt();
+		}
+	}
+	
+	private void start() {
+		int current = state.get();
+		if (current == STARTED) {
+			return;
+		}
+		if (current == STOPPED) {
+			throw new IllegalStateException("Timer is already stopped");
+		}
+		synchronized (this) {
+			if (state.get() == INIT) {
+				Thread thread = new Thread(this::run, threadName);
+				thread.setDaemon(true);
+				worker = thread;
+				state.set(STARTED);
+				thread.start();
+			}
+		}
+	}
+	
+	private void run() {
+		long tick = (System.nanoTime() - startNanos) / tickNanos;
+		while (state.get() == STARTED) {
+			long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					break; // stopped
+				}
+				continue;
+			}
+			tick++;
+			transferPending(tick);
+			expire(wheel.get((int) (tick & mask)));
+		}
+		log.debug("Timer wheel {} stopped", threadName);
+	}
+	
+	private void transferPending(long tick) {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			long deadlineTick = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos);
+			timeout.rounds = (deadlineTick - tick) / wheel.size();
+			wheel.get((int) (deadlineTick & mask)).add(timeout);
+		}
+	}
+	
+	private void expire(Deque<Timeout> bucket) {
+		Iterator<Timeout> iterator = bucket.iterator();
+		while (iterator.hasNext()) {
+			Timeout timeout = iterator.next();
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+				continue;
+			}
+			iterator.remove();
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) { // NOPMD
+				log.warn("Timer task failed", e);
+			}
+		}
+	}
+	
+	
+	@RequiredArgsConstructor
+	private static final class Timeout {
+		
+		private final Runnable task;
+		
+		/** deadline in nanosec from the start of the timer */
+		private final long deadline;
+		
+		/** remaining rotations of the wheel, accessed only by the worker thread */
+		private long rounds;
+	}
+}
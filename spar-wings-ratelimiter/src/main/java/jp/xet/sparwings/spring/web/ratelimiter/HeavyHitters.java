@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Bounded top-K tracker of the most frequent keys, based on the space-saving algorithm.
+ * 
+ * <p>At most {@code capacity} keys are monitored. When a new key arrives and the tracker is full, the key
+ * with the minimum count is replaced, and the new key inherits the minimum as its overestimation error.
+ * Any key whose true frequency is more than {@code total / capacity} is guaranteed to be monitored.</p>
+ * 
+ * <p>Keys are partitioned by hash into {@code stripes}, each of which is an independent sketch with its share
+ * of {@code capacity} and its own lock, so that concurrent offers of different keys are rarely serialized.
+ * The guarantee above holds per stripe, that is for the total of the keys in the same stripe, which is
+ * {@code total / stripes} on average. {@link #top(int)} merges the stripes.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+public class HeavyHitters {
+	
+	/** Minimum capacity of single stripe, not to weaken the guarantee by too small stripes */
+	private static final int MIN_STRIPE_CAPACITY = 8;
+	
+	private final Stripe[] stripes;
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * <p>The number of stripes is the number of available processors, limited so that each stripe monitors
+	 * at least 8 keys.</p>
+	 * 
+	 * @param capacity the number of keys to monitor
+	 * @since 1.2
+	 */
+	public HeavyHitters(int capacity) {
+		this(capacity, Math.max(1,
+				Math.min(Runtime.getRuntime().availableProcessors(), capacity / MIN_STRIPE_CAPACITY)));
+	}
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param capacity the number of keys to monitor
+	 * @param stripes the number of independent sketches, up to {@code capacity}
+	 * @since 1.2
+	 */
+	public HeavyHitters(int capacity, int stripes) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		if (stripes <= 0 || stripes > capacity) {
+			throw new IllegalArgumentException("stripes must be between 1 and capacity: " + stripes);
+		}
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			// distribute the remainder, so that the total is exactly the capacity
+			this.stripes[i] = new Stripe(capacity / stripes + (i < capacity % stripes ? 1 : 0));
+		}
+	}
+	
+	/**
+	 * Count an occurrence of the key.
+	 * 
+	 * @param key the key
+	 * @since 1.2
+	 */
+	public void offer(String key) {
+		int hash = key.hashCode();
+		stripes[Math.floorMod(hash ^ (hash >>> 16), stripes.length)].offer(key);
+	}
+	
+	/**
+	 * Return the most frequent keys in descending order of count.
+	 * 
+	 * @param n the number of keys to return
+	 * @return snapshot of the top keys
+	 * @since 1.2
+	 */
+	public List<Counter> top(int n) {
+		List<Counter> result = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			stripe.copyTo(result);
+		}
+		result.sort(Comparator.comparingLong(Counter::getCount).reversed());
+		return result.subList(0, Math.min(n, result.size()));
+	}
+	
+	
+	private static final class Stripe {
+		
+		private final int capacity;
+		
+		// guarded by this
+		private final Map<String, Counter> counters;
+		
+		
+		Stripe(int capacity) {
+			this.capacity = capacity;
+			counters = new HashMap<>(capacity * 2);
+		}
+		
+		synchronized void offer(String key) {
+			Counter counter = counters.get(key);
+			if (counter != null) {
+				counter.count++;
+				return;
+			}
+			if (counters.size() < capacity) {
+				counters.put(key, new Counter(key, 1, 0));
+				return;
+			}
+			// O(capacity / stripes), only when unmonitored key arrives
+			Counter min = counters.values().stream().min(Comparator.comparingLong(Counter::getCount)).get();
+			counters.remove(min.key);
+			counters.put(key, new Counter(key, min.count + 1, min.count));
+		}
+		
+		synchronized void copyTo(List<Counter> result) {
+			for (Counter counter : counters.values()) {
+				result.add(new Counter(counter.key, counter.count, counter.error));
+			}
+		}
+	}
+	
+	/**
+	 * Estimated count of single key.
+	 * 
+	 * @since 1.2
+	 */
+	@ToString
+	@AllArgsConstructor(access = AccessLevel.PRIVATE)
+	public static final class Counter {
+		
+		@Getter
+		private final String key;
+		
+		/** Estimated count, which is never less than the true count. */
+		@Getter
+		private long count;
+		
+		/** Maximum overestimation of {@code count}. */
+		@Getter
+		private final long error;
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation of generic cell rate algorithm (GCRA) to store values in memory.
+ * 
+ * <p>Only single value, theoretical arrival time (TAT), is stored per limitation unit, so that the budget is
+ * {@code maxBudget - (TAT - now) * fillRate}. The TAT is kept as epoch millisec and the remainder in budget unit,
+ * so that it does not overflow however large the {@code fillRate} is. Admission is equivalent to the token bucket
+ * of the same {@code fillRate} and {@code maxBudget}, but rejected requests are not debited.</p>
+ * 
+ * <p>The number of units is bounded by {@link #setMaxKeys(int) maxKeys}. Units whose TAT is in the past are
+ * identical to fresh ones and they are evicted, and then units closest to it if the store is still over the bound.
+ * Eviction is triggered in the same way as {@link InMemoryRateLimitService}, and runs on
+ * {@link #setSweepExecutor(Executor) sweepExecutor}.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class InMemoryGcraRateLimitService extends AbstractRateLimitService {
+	
+	private static final Tat RETIRED = new Tat(Long.MIN_VALUE, 0, 1);
+	
+	private static final int DEFAULT_MAX_KEYS = 100000;
+	
+	private static final int DEFAULT_SWEEP_INTERVAL = 1024;
+	
+	private final Map<String, AtomicReference<Tat>> tats = new ConcurrentHashMap<>();
+	
+	/**
+	 * Maximum number of limitation units kept in memory.
+	 */
+	@Getter
+	@Setter
+	private int maxKeys = DEFAULT_MAX_KEYS;
+	
+	/**
+	 * Minimum number of requests between sweeps. {@code 0} or less to disable periodic sweeps,
+	 * in which case units are evicted only when the store exceeds {@code maxKeys}.
+	 */
+	@Getter
+	@Setter
+	private int sweepInterval = DEFAULT_SWEEP_INTERVAL;
+	
+	/**
+	 * Executor to sweep units off the request threads.
+	 */
+	@Getter
+	@Setter
+	private Executor sweepExecutor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "rate-limit-sweep");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return consume(request, consumption, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>This implementation debits the consumption even if it is rejected.</p>
+	 */
+	@Override
+	public RateLimitDescriptor adjust(HttpServletRequest request, long consumption) {
+		return consume(request, consumption, true);
+	}
+	
+	private RateLimitDescriptor consume(HttpServletRequest request, long consumption, boolean force) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long now = Clock.now().toEpochMillisec();
+		while (true) {
+			AtomicReference<Tat> ref = findTat(limitationUnitName);
+			Tat current = ref.get();
+			if (current == RETIRED) {
+				tats.remove(limitationUnitName, ref);
+				continue;
+			}
+			long deficit = Math.max(0, Tat.deficit(current, now) + consumption);
+			long budget = descriptor.getMaxBudget() - deficit;
+			if (budget < 0 && force == false) {
+				log.debug("Rejected {} (consumption {}): {}", limitationUnitName, consumption, budget);
+				return descriptor.setCurrentBudget(budget);
+			}
+			if (ref.compareAndSet(current, Tat.of(now, deficit, descriptor.getFillRate()))) {
+				maybeSweep();
+				return descriptor.setCurrentBudget(budget);
+			}
+		}
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		AtomicReference<Tat> ref = tats.get(descriptor.getLimitationUnitName());
+		long deficit = Tat.deficit(ref == null ? null : ref.get(), now);
+		return descriptor.setCurrentBudget(descriptor.getMaxBudget() - deficit);
+	}
+	
+	/**
+	 * Return the number of limitation units currently kept in memory.
+	 * 
+	 * @return the number of limitation units
+	 */
+	public int size() {
+		return tats.size();
+	}
+	
+	private AtomicReference<Tat> findTat(String limitationUnitName) {
+		AtomicReference<Tat> ref = tats.get(limitationUnitName);
+		if (ref != null) {
+			return ref;
+		}
+		ref = tats.computeIfAbsent(limitationUnitName, k -> new AtomicReference<>());
+		if (tats.size() > maxKeys) {
+			scheduleSweep();
+		}
+		return ref;
+	}
+	
+	private void maybeSweep() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (sweepInterval <= 0 || random.nextInt(sweepInterval) != 0) {
+			return;
+		}
+		int size = tats.size();
+		if (size > sweepInterval && random.nextInt(size) >= sweepInterval) {
+			return;
+		}
+		scheduleSweep();
+	}
+	
+	private void scheduleSweep() {
+		if (sweepScheduled.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			sweepExecutor.execute(() -> {
+				try {
+					sweep(Clock.now().toEpochMillisec());
+				} finally {
+					sweepScheduled.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			sweepScheduled.set(false);
+			log.warn("Failed to schedule sweep of rate limit TATs", e);
+		}
+	}
+	
+	/**
+	 * Evict units whose TAT is in the past, and then evict units closest to it if the store exceeds
+	 * {@code maxKeys}.
+	 * 
+	 * <p>Does nothing if another thread is sweeping.</p>
+	 * 
+	 * @param now current time in epoch millisec
+	 */
+	void sweep(long now) {
+		if (sweeping.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			tats.forEach((limitationUnitName, ref) -> {
+				Tat current = ref.get();
+				if (current != RETIRED && Tat.deficit(current, now) == 0 && ref.compareAndSet(current, RETIRED)) {
+					tats.remove(limitationUnitName, ref);
+				}
+			});
+			int size = tats.size();
+			if (size > maxKeys) {
+				// shrink below the bound with some headroom, so that the next sweep is not triggered immediately
+				int excess = size - maxKeys + maxKeys / 10;
+				tats.entrySet().stream()
+					.sorted(Comparator.comparingLong(e -> Tat.deficit(e.getValue().get(), now)))
+					.limit(excess)
+					.filter(e -> retire(e.getValue()))
+					.forEach(e -> tats.remove(e.getKey(), e.getValue()));
+			}
+			log.debug("Rate limit TATs swept: {} remaining", tats.size());
+		} finally {
+			sweeping.set(false);
+		}
+	}
+	
+	private static boolean retire(AtomicReference<Tat> ref) {
+		Tat current;
+		do {
+			current = ref.get();
+			if (current == RETIRED) {
+				return false;
+			}
+		} while (ref.compareAndSet(current, RETIRED) == false);
+		return true;
+	}
+	
+	
+	@RequiredArgsConstructor
+	private static final class Tat {
+		
+		/** TAT in epoch millisec, rounded down. */
+		private final long millis;
+		
+		/** Remainder of TAT in budget unit, less than {@code fillRate}. */
+		private final long remainder;
+		
+		private final long fillRate;
+		
+		
+		static Tat of(long now, long deficit, long fillRate) {
+			return new Tat(now + deficit / fillRate, deficit % fillRate, fillRate);
+		}
+		
+		/**
+		 * Return the consumption which is not recovered yet, that is {@code (TAT - now) * fillRate}.
+		 * 
+		 * @param tat TAT, or {@code null} for fresh unit
+		 * @param now current time in epoch millisec
+		 * @return deficit in budget unit, {@code 0} if the TAT is in the past
+		 */
+		static long deficit(Tat tat, long now) {
+			if (tat == null || tat.millis < now) {
+				return 0;
+			}
+			return (tat.millis - now) * tat.fillRate + tat.remainder;
+		}
+	}
+}
@@ -15,11 +15,25 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import javax.servlet.http.HttpServletRequest;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import jp.xet.baseunits.timeutil.Clock;
@@ -27,65 +41,305 @@ import jp.xet.baseunits.timeutil.Clock;
 /**
  * {@link RateLimitService} implementation to store values in memory.
  * 
+ * <p>Each limitation unit has its own lock-free {@link TokenBucket}, so concurrent requests
+ * are not serialized on a single monitor.</p>
+ * 
+ * <p>The number of buckets is bounded by {@link #setMaxKeys(int) maxKeys}. Buckets which are refilled
+ * to {@code maxBudget} are evicted because a full bucket is identical to a fresh one. If the store is
+ * still over the bound, buckets closest to full are evicted down to 90% of the bound. Eviction is triggered
+ * amortized by the calling threads (roughly once per {@code max(sweepInterval, size)} requests) or as soon as
+ * the store exceeds the bound, and runs on {@link #setSweepExecutor(Executor) sweepExecutor} so that it never
+ * blocks them; the bound is soft while a sweep is pending.</p>
+ * 
+ * <p>{@link #consumeAll(List, long[])} consumes each bucket and gives the consumption back if any of them
+ * is short, so concurrent readers may transiently observe the debit of rejected request.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
 @Slf4j
-public class InMemoryRateLimitService extends AbstractRateLimitService {
+public class InMemoryRateLimitService extends AbstractRateLimitService
+		implements AsyncRateLimitService, MultiRateLimitService {
+	
+	private static final int DEFAULT_MAX_KEYS = 100000;
+	
+	private static final int DEFAULT_SWEEP_INTERVAL = 1024;
+	
+	private Map<String, TokenBucket> specs = new ConcurrentHashMap<>();
+	
+	/**
+	 * Maximum number of limitation units kept in memory.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private int maxKeys = DEFAULT_MAX_KEYS;
+	
+	/**
+	 * Minimum number of requests between sweeps. {@code 0} or less to disable periodic sweeps,
+	 * in which case buckets are evicted only when the store exceeds {@code maxKeys}.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private int sweepInterval = DEFAULT_SWEEP_INTERVAL;
+	
+	/**
+	 * Executor to sweep buckets off the request threads.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private Executor sweepExecutor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "rate-limit-sweep");
+		thread.setDaemon(true);
+		return thread;
+	});
 	
-	private Map<String, RateLimitDescriptor> specs = new ConcurrentHashMap<>();
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	
+	private final LongAdder expiredEvictionCount = new LongAdder();
+	
+	private final LongAdder capacityEvictionCount = new LongAdder();
 	
 	
 	@Override
 	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
-		synchronized (this) {
-			RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
-			if (descriptor == null) {
-				return null;
-			}
-			descriptor =
-					specs.computeIfAbsent(descriptor.getLimitationUnitName(), p -> computeRateLimitRecovery(request));
-			if (descriptor == null) {
-				return null;
+		RateLimitDescriptor recovery = computeRateLimitRecovery(request);
+		if (recovery == null) {
+			return null;
+		}
+		return consume(recovery, consumption);
+	}
+	
+	/**
+	 * Consume the budget of the limitation unit which is described by {@code recovery}.
+	 * 
+	 * @param recovery initial descriptor of the limitation unit
+	 * @param consumption amount to consume
+	 * @return snapshot after consumption
+	 */
+	RateLimitDescriptor consume(RateLimitDescriptor recovery, long consumption) {
+		long now = Clock.now().toEpochMillisec();
+		RateLimitDescriptor descriptor;
+		do {
+			descriptor = findBucket(recovery, now).consume(now, consumption);
+		} while (descriptor == null); // retired by concurrent sweep
+		log.debug("Budget after current request (consumed {}): {}", consumption, descriptor.getCurrentBudget());
+		maybeSweep();
+		return descriptor;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>This implementation never blocks, so that the returned stage is already completed.</p>
+	 */
+	@Override
+	public CompletionStage<RateLimitDescriptor> consumeAsync(HttpServletRequest request, long consumption) {
+		return CompletableFuture.completedFuture(consume(request, consumption));
+	}
+	
+	@Override
+	public List<RateLimitDescriptor> consumeAll(List<RateLimitDescriptor> descriptors, long[] consumptions) {
+		long now = Clock.now().toEpochMillisec();
+		List<RateLimitDescriptor> results = new ArrayList<>(descriptors.size());
+		TokenBucket[] buckets = new TokenBucket[descriptors.size()];
+		boolean admitted = true;
+		for (int i = 0; i < buckets.length; i++) {
+			RateLimitDescriptor descriptor;
+			do {
+				buckets[i] = findBucket(descriptors.get(i), now);
+				descriptor = buckets[i].consume(now, consumptions[i]);
+			} while (descriptor == null); // retired by concurrent sweep
+			results.add(descriptor);
+			admitted &= descriptor.getCurrentBudget() >= 0;
+		}
+		if (admitted == false) {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i].refund(now, consumptions[i]);
 			}
-			long now = Clock.now().toEpochMillisec();
-			
-			long secSinceLastUpdate = now - descriptor.getLastUpdateTime();
-			log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-			long fill = secSinceLastUpdate * descriptor.getFillRate();
-			long budget = Math.min(descriptor.getMaxBudget(), descriptor.getCurrentBudget() + fill);
-			log.info("Budget before current request (filled {}): {}", fill, budget);
-			
-			budget -= consumption;
-			log.info("Budget after current request (consumed {}): {}", consumption, budget);
-			
-			descriptor.setLastUpdateTime(now);
-			descriptor.setCurrentBudget(budget);
-			
-			return descriptor;
 		}
+		maybeSweep();
+		return results;
 	}
 	
 	@Override
-	public RateLimitDescriptor get(HttpServletRequest request) {
-		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
-		if (descriptor == null) {
-			return null;
+	public List<RateLimitDescriptor> adjustAll(List<RateLimitDescriptor> descriptors, long[] consumptions) {
+		List<RateLimitDescriptor> results = new ArrayList<>(descriptors.size());
+		for (int i = 0; i < descriptors.size(); i++) {
+			results.add(consume(descriptors.get(i), consumptions[i]));
 		}
-		descriptor = specs.computeIfAbsent(descriptor.getLimitationUnitName(), p -> computeRateLimitRecovery(request));
-		if (descriptor == null) {
+		return results;
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor recovery = computeRateLimitRecovery(request);
+		if (recovery == null) {
 			return null;
 		}
 		long now = Clock.now().toEpochMillisec();
-		
-		long secSinceLastUpdate = now - descriptor.getLastUpdateTime();
-		log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-		long fill = secSinceLastUpdate * descriptor.getFillRate();
-		long budget = Math.min(descriptor.getMaxBudget(), descriptor.getCurrentBudget() + fill);
-		descriptor.setLastUpdateTime(now);
-		
-		descriptor.setCurrentBudget(budget);
-		log.info("Current budget: (filled {}) and {}", fill, descriptor.getCurrentBudget());
+		RateLimitDescriptor descriptor;
+		do {
+			descriptor = findBucket(recovery, now).peek(now);
+		} while (descriptor == null); // retired by concurrent sweep
+		log.debug("Current budget: {}", descriptor.getCurrentBudget());
 		return descriptor;
 	}
+	
+	/**
+	 * Return the number of limitation units currently kept in memory.
+	 * 
+	 * @return the number of limitation units
+	 * @since 1.2
+	 */
+	public int size() {
+		return specs.size();
+	}
+	
+	/**
+	 * Return the number of buckets evicted because they were refilled to {@code maxBudget}.
+	 * 
+	 * @return eviction count
+	 * @since 1.2
+	 */
+	public long getExpiredEvictionCount() {
+		return expiredEvictionCount.sum();
+	}
+	
+	/**
+	 * Return the number of buckets evicted to keep the store within {@code maxKeys}.
+	 * 
+	 * @return eviction count
+	 * @since 1.2
+	 */
+	public long getCapacityEvictionCount() {
+		return capacityEvictionCount.sum();
+	}
+	
+	/**
+	 * Pass raw snapshot of each bucket to the action, without refill.
+	 * 
+	 * <p>The iteration is weakly consistent and reads each bucket with single volatile read,
+	 * so it never blocks concurrent consumption.</p>
+	 * 
+	 * @param action the action
+	 */
+	void forEachSnapshot(Consumer<RateLimitDescriptor> action) {
+		for (TokenBucket bucket : specs.values()) {
+			RateLimitDescriptor snapshot = bucket.snapshot();
+			if (snapshot != null) {
+				action.accept(snapshot);
+			}
+		}
+	}
+	
+	/**
+	 * Restore the bucket from its snapshot, unless the limitation unit already exists.
+	 * 
+	 * <p>The bucket is refilled for the time elapsed since {@code lastUpdateTime} of the snapshot, and it is
+	 * not restored if it would be full or the store is already at {@code maxKeys}.</p>
+	 * 
+	 * @param snapshot the snapshot
+	 * @return {@code true} if restored
+	 */
+	boolean restore(RateLimitDescriptor snapshot) {
+		if (specs.size() >= maxKeys) {
+			return false;
+		}
+		TokenBucket bucket = new TokenBucket(snapshot);
+		if (bucket.deficit(Clock.now().toEpochMillisec()) <= 0) {
+			return false; // identical to fresh one
+		}
+		return specs.putIfAbsent(snapshot.getLimitationUnitName(), bucket) == null;
+	}
+	
+	private TokenBucket findBucket(RateLimitDescriptor recovery, long now) {
+		String limitationUnitName = recovery.getLimitationUnitName();
+		TokenBucket bucket = specs.get(limitationUnitName);
+		if (bucket != null) {
+			if (bucket.peek(now) != null) {
+				return bucket;
+			}
+			specs.remove(limitationUnitName, bucket);
+		}
+		bucket = specs.computeIfAbsent(limitationUnitName, p -> new TokenBucket(recovery));
+		if (specs.size() > maxKeys) {
+			scheduleSweep();
+		}
+		return bucket;
+	}
+	
+	private void maybeSweep() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (sweepInterval <= 0 || random.nextInt(sweepInterval) != 0) {
+			return;
+		}
+		int size = specs.size();
+		if (size > sweepInterval && random.nextInt(size) >= sweepInterval) {
+			return;
+		}
+		scheduleSweep();
+	}
+	
+	private void scheduleSweep() {
+		if (sweepScheduled.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			sweepExecutor.execute(() -> {
+				try {
+					sweep(Clock.now().toEpochMillisec());
+				} finally {
+					sweepScheduled.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			sweepScheduled.set(false);
+			log.warn("Failed to schedule sweep of rate limit buckets", e);
+		}
+	}
+	
+	/**
+	 * Evict full buckets, and then evict buckets closest to full if the store exceeds {@code maxKeys}.
+	 * 
+	 * <p>Does nothing if another thread is sweeping.</p>
+	 * 
+	 * @param now current time in epoch millisec
+	 */
+	void sweep(long now) {
+		if (sweeping.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			for (TokenBucket bucket : specs.values()) {
+				if (bucket.retireIfFull(now)) {
+					specs.remove(bucket.getLimitationUnitName(), bucket);
+					expiredEvictionCount.increment();
+				}
+			}
+			int size = specs.size();
+			if (size > maxKeys) {
+				// shrink below the bound with some headroom, so that the next sweep is not triggered immediately
+				int excess = size - maxKeys + maxKeys / 10;
+				specs.values().stream()
+					.sorted(Comparator.comparingLong(b -> b.deficit(now)))
+					.limit(excess)
+					.filter(TokenBucket::retire)
+					.forEach(b -> {
+						specs.remove(b.getLimitationUnitName(), b);
+						capacityEvictionCount.increment();
+					});
+			}
+			log.debug("Rate limit buckets swept: {} remaining", specs.size());
+		} finally {
+			sweeping.set(false);
+		}
+	}
 }
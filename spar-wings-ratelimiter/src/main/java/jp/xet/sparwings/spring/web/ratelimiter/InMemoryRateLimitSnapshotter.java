@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * Persist the state of {@link InMemoryRateLimitService} to local file, so that restart does not reset
+ * the budgets of the clients.
+ * 
+ * <p>The state is restored on startup, written every minute and on shutdown. Restored buckets are refilled
+ * for the time elapsed since the snapshot, and full ones are dropped. Writing the snapshot only reads
+ * each bucket once without lock, so it never blocks consumption. The file is written to a temporary file
+ * and moved atomically.</p>
+ * 
+ * <p>The format is compact binary: {@code magic(int) version(int) snapshotTime(long) count(int)}, followed by
+ * {@code nameLength(unsigned short) name(UTF-8) fillRate(long) maxBudget(long) budget(long)
+ * lastUpdateTime(long)} for each bucket, in big endian.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class InMemoryRateLimitSnapshotter implements InitializingBean, DisposableBean {
+	
+	static final int MAGIC = 0x53575242; // "SWRB"
+	
+	static final int VERSION = 1;
+	
+	private static final int HEADER_SIZE = 20;
+	
+	private static final int COUNT_POSITION = 16;
+	
+	private static final int ENTRY_FIXED_SIZE = Short.BYTES + Long.BYTES * 4;
+	
+	private static final int MAX_NAME_LENGTH = 0xFFFF;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private static final long SNAPSHOT_INTERVAL = 60000L;
+	
+	private final InMemoryRateLimitService rateLimitService;
+	
+	@Getter
+	private final Path path;
+	
+	
+	@Override
+	public void afterPropertiesSet() {
+		try {
+			int restored = restore();
+			log.info("Restored {} rate limit buckets from {}", restored, path);
+		} catch (IOException e) {
+			log.warn("Failed to restore rate limit snapshot {}, start with empty state", path, e);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		snapshot();
+	}
+	
+	/**
+	 * Write the snapshot, logging the failure.
+	 * 
+	 * @since 1.2
+	 */
+	@Scheduled(fixedDelay = SNAPSHOT_INTERVAL)
+	public void snapshot() {
+		try {
+			int written = write();
+			log.debug("Wrote {} rate limit buckets to {}", written, path);
+		} catch (IOException e) {
+			log.warn("Failed to write rate limit snapshot {}", path, e);
+		}
+	}
+	
+	/**
+	 * Write the snapshot.
+	 * 
+	 * @return the number of buckets written
+	 * @throws IOException if I/O error occurred
+	 * @since 1.2
+	 */
+	public int write() throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		int count;
+		try (FileChannel channel = FileChannel.open(tmp,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(Clock.now().toEpochMillisec()).putInt(0);
+			int[] counter = new int[1];
+			IOException[] failure = new IOException[1];
+			rateLimitService.forEachSnapshot(snapshot -> {
+				if (failure[0] != null) {
+					return;
+				}
+				byte[] name = snapshot.getLimitationUnitName().getBytes(StandardCharsets.UTF_8);
+				if (name.length > MAX_NAME_LENGTH) {
+					return;
+				}
+				try {
+					if (buffer.remaining() < ENTRY_FIXED_SIZE + name.length) {
+						flush(channel, buffer);
+					}
+					ByteBuffer target = buffer.remaining() < ENTRY_FIXED_SIZE + name.length
+							? ByteBuffer.allocate(ENTRY_FIXED_SIZE + name.length) : buffer;
+					target.putShort((short) name.length).put(name)
+						.putLong(snapshot.getFillRate()).putLong(snapshot.getMaxBudget())
+						.putLong(snapshot.getCurrentBudget()).putLong(snapshot.getLastUpdateTime());
+					if (target != buffer) {
+						flush(channel, target);
+					}
+					counter[0]++;
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			flush(channel, buffer);
+			count = counter[0];
+			ByteBuffer countBuffer = ByteBuffer.allocate(Integer.BYTES).putInt(count);
+			countBuffer.flip();
+			channel.write(countBuffer, COUNT_POSITION);
+			channel.force(false);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+	
+	/**
+	 * Restore the snapshot.
+	 * 
+	 * @return the number of buckets restored
+	 * @throws IOException if I/O error occurred or the file is not a valid snapshot
+	 * @since 1.2
+	 */
+	public int restore() throws IOException {
+		if (Files.exists(path) == false) {
+			return 0;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a rate limit snapshot: " + path);
+			}
+			long snapshotTime = buffer.getLong();
+			int count = buffer.getInt();
+			int restored = 0;
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[buffer.getShort() & MAX_NAME_LENGTH];
+				buffer.get(name);
+				RateLimitDescriptor snapshot = new RateLimitDescriptor(new String(name, StandardCharsets.UTF_8),
+						buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+				if (rateLimitService.restore(snapshot)) {
+					restored++;
+				}
+			}
+			log.debug("Snapshot taken at {} contains {} buckets", snapshotTime, count);
+			return restored;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated rate limit snapshot: " + path, e);
+		}
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
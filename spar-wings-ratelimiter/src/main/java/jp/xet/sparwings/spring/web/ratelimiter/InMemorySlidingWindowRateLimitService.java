@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation of sliding window counter to store values in memory.
+ * 
+ * <p>The window size is {@code maxBudget / fillRate} millisec, that is the time to recover full budget
+ * in the token bucket, and up to {@code maxBudget} can be consumed within a window. Consumption within
+ * the sliding window is estimated by weighting the count of the previous fixed window by its overlap.
+ * Rejected requests are not debited.</p>
+ * 
+ * <p>The number of units is bounded by {@link #setMaxKeys(int) maxKeys}. Units which have no count in current
+ * and previous windows are identical to fresh ones and they are evicted, and then units with the least count
+ * if the store is still over the bound. Eviction is triggered in the same way as {@link InMemoryRateLimitService},
+ * and runs on {@link #setSweepExecutor(Executor) sweepExecutor}.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class InMemorySlidingWindowRateLimitService extends AbstractRateLimitService {
+	
+	private static final Window RETIRED = new Window(Long.MIN_VALUE, 0, 0, 1);
+	
+	private static final int DEFAULT_MAX_KEYS = 100000;
+	
+	private static final int DEFAULT_SWEEP_INTERVAL = 1024;
+	
+	private final Map<String, AtomicReference<Window>> windows = new ConcurrentHashMap<>();
+	
+	/**
+	 * Maximum number of limitation units kept in memory.
+	 */
+	@Getter
+	@Setter
+	private int maxKeys = DEFAULT_MAX_KEYS;
+	
+	/**
+	 * Minimum number of requests between sweeps. {@code 0} or less to disable periodic sweeps,
+	 * in which case units are evicted only when the store exceeds {@code maxKeys}.
+	 */
+	@Getter
+	@Setter
+	private int sweepInterval = DEFAULT_SWEEP_INTERVAL;
+	
+	/**
+	 * Executor to sweep units off the request threads.
+	 */
+	@Getter
+	@Setter
+	private Executor sweepExecutor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "rate-limit-sweep");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return consume(request, consumption, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>This implementation debits the consumption even if it is rejected.</p>
+	 */
+	@Override
+	public RateLimitDescriptor adjust(HttpServletRequest request, long consumption) {
+		return consume(request, consumption, true);
+	}
+	
+	private RateLimitDescriptor consume(HttpServletRequest request, long consumption, boolean force) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long now = Clock.now().toEpochMillisec();
+		long windowSize = SlidingWindows.computeWindowSize(descriptor);
+		while (true) {
+			AtomicReference<Window> ref = findWindow(limitationUnitName);
+			Window current = ref.get();
+			if (current == RETIRED) {
+				windows.remove(limitationUnitName, ref);
+				continue;
+			}
+			Window next = Window.shift(current, now, windowSize).add(consumption);
+			long budget = next.computeBudget(descriptor.getMaxBudget(), now);
+			if (budget < 0 && force == false) {
+				log.debug("Rejected {} (consumption {}): {}", limitationUnitName, consumption, budget);
+				return descriptor.setCurrentBudget(budget);
+			}
+			if (ref.compareAndSet(current, next)) {
+				maybeSweep();
+				return descriptor.setCurrentBudget(budget);
+			}
+		}
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		AtomicReference<Window> ref = windows.get(descriptor.getLimitationUnitName());
+		Window window = Window.shift(ref == null ? null : ref.get(), now, SlidingWindows.computeWindowSize(descriptor));
+		return descriptor.setCurrentBudget(window.computeBudget(descriptor.getMaxBudget(), now));
+	}
+	
+	/**
+	 * Return the number of limitation units currently kept in memory.
+	 * 
+	 * @return the number of limitation units
+	 */
+	public int size() {
+		return windows.size();
+	}
+	
+	private AtomicReference<Window> findWindow(String limitationUnitName) {
+		AtomicReference<Window> ref = windows.get(limitationUnitName);
+		if (ref != null) {
+			return ref;
+		}
+		ref = windows.computeIfAbsent(limitationUnitName, k -> new AtomicReference<>());
+		if (windows.size() > maxKeys) {
+			scheduleSweep();
+		}
+		return ref;
+	}
+	
+	private void maybeSweep() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (sweepInterval <= 0 || random.nextInt(sweepInterval) != 0) {
+			return;
+		}
+		int size = windows.size();
+		if (size > sweepInterval && random.nextInt(size) >= sweepInterval) {
+			return;
+		}
+		scheduleSweep();
+	}
+	
+	private void scheduleSweep() {
+		if (sweepScheduled.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			sweepExecutor.execute(() -> {
+				try {
+					sweep(Clock.now().toEpochMillisec());
+				} finally {
+					sweepScheduled.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			sweepScheduled.set(false);
+			log.warn("Failed to schedule sweep of rate limit windows", e);
+		}
+	}
+	
+	/**
+	 * Evict units which have no count in current and previous windows, and then evict units with the least
+	 * count if the store exceeds {@code maxKeys}.
+	 * 
+	 * <p>Does nothing if another thread is sweeping.</p>
+	 * 
+	 * @param now current time in epoch millisec
+	 */
+	void sweep(long now) {
+		if (sweeping.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			windows.forEach((limitationUnitName, ref) -> {
+				Window current = ref.get();
+				if (current != RETIRED && (current == null || current.isExpired(now))
+						&& ref.compareAndSet(current, RETIRED)) {
+					windows.remove(limitationUnitName, ref);
+				}
+			});
+			int size = windows.size();
+			if (size > maxKeys) {
+				// shrink below the bound with some headroom, so that the next sweep is not triggered immediately
+				int excess = size - maxKeys + maxKeys / 10;
+				windows.entrySet().stream()
+					.sorted(Comparator.comparingLong(e -> Window.count(e.getValue().get(), now)))
+					.limit(excess)
+					.filter(e -> retire(e.getValue()))
+					.forEach(e -> windows.remove(e.getKey(), e.getValue()));
+			}
+			log.debug("Rate limit windows swept: {} remaining", windows.size());
+		} finally {
+			sweeping.set(false);
+		}
+	}
+	
+	private static boolean retire(AtomicReference<Window> ref) {
+		Window current;
+		do {
+			current = ref.get();
+			if (current == RETIRED) {
+				return false;
+			}
+		} while (ref.compareAndSet(current, RETIRED) == false);
+		return true;
+	}
+	
+	
+	@RequiredArgsConstructor
+	private static final class Window {
+		
+		/** Index of current fixed window (epoch millisec / window size). */
+		private final long index;
+		
+		private final long previous;
+		
+		private final long current;
+		
+		private final long windowSize;
+		
+		
+		static Window shift(Window window, long now, long windowSize) {
+			long index = now / windowSize;
+			if (window == null || window == RETIRED || window.windowSize != windowSize) {
+				return new Window(index, 0, 0, windowSize);
+			}
+			if (window.index == index) {
+				return window;
+			}
+			if (window.index == index - 1) {
+				return new Window(index, window.current, 0, windowSize);
+			}
+			return new Window(index, 0, 0, windowSize);
+		}
+		
+		Window add(long consumption) {
+			return new Window(index, previous, current + consumption, windowSize);
+		}
+		
+		long computeBudget(long maxBudget, long now) {
+			return SlidingWindows.computeBudget(maxBudget, windowSize, now % windowSize, previous, current);
+		}
+		
+		static long count(Window window, long now) {
+			if (window == null || window == RETIRED) {
+				return 0;
+			}
+			Window shifted = shift(window, now, window.windowSize);
+			return shifted.previous + shifted.current;
+		}
+		
+		boolean isExpired(long now) {
+			return now / windowSize > index + 1;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets.
+ * 
+ * <p>Each power of two is divided into 4 buckets, so the relative error of percentiles is at most 25%,
+ * with fixed 248 buckets covering whole {@code long} range.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+public class LatencyHistogram {
+	
+	private static final int SUB_BUCKET_BITS = 2;
+	
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	
+	private final LongAdder count = new LongAdder();
+	
+	private final LongAdder sum = new LongAdder();
+	
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+	
+	
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+		int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		long width = 1L << (exp - SUB_BUCKET_BITS);
+		return ((long) (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS)) + width - 1;
+	}
+	
+	/**
+	 * Record a value.
+	 * 
+	 * @param nanos latency in nanosec
+	 * @since 1.2
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(indexOf(nanos));
+		count.increment();
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+	
+	/**
+	 * Return the number of recorded values.
+	 * 
+	 * @return count
+	 * @since 1.2
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+	
+	/**
+	 * Return the mean of recorded values in nanosec.
+	 * 
+	 * @return mean, or {@code 0} if nothing is recorded
+	 * @since 1.2
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+	
+	/**
+	 * Return the maximum of recorded values in nanosec.
+	 * 
+	 * @return maximum
+	 * @since 1.2
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Return the value at the percentile, which is the upper bound of its bucket.
+	 * 
+	 * @param percentile percentile in {@code [0, 100]}
+	 * @return value in nanosec, or {@code 0} if nothing is recorded
+	 * @since 1.2
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100d, percentile) / 100d));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+}
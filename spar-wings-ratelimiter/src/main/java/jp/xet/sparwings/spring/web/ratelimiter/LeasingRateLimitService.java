@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * Two-tier {@link RateLimitService} implementation which leases slices of the budget from redis
+ * and consumes them in memory.
+ * 
+ * <p>Each node leases {@code maxBudget * leaseRatio} tokens of a limitation unit from the token bucket
+ * stored in redis (same keys as {@link RedisRateLimitService}), and consumes them locally without
+ * round-trip. When the local tokens fall below half of the lease, next lease is requested asynchronously.
+ * Redis is called synchronously only when local tokens are insufficient, and once redis cannot grant enough
+ * tokens either, not again until the deficit is expected to be refilled, so that the traffic to redis of
+ * an exhausted unit is bounded per lease rather than per request. Leases which are not used for
+ * {@code leaseIdleTimeout} are returned to redis by {@link #returnIdleLeases()}, which is expected to be
+ * invoked by Spring's scheduler.</p>
+ * 
+ * <p>Accuracy: tokens are debited from redis before they are consumed locally, so the total admission
+ * across nodes never exceeds the budget in redis. On the other hand, each node may hold up to about
+ * {@code 1.5 * leaseSize} unused tokens of a unit (plus the cost of one request), so a request can be
+ * rejected on one node while other nodes still hold up to {@code (nodes - 1) * 1.5 * leaseSize} tokens,
+ * until those are consumed or returned after {@code leaseIdleTimeout}. Unlike {@link RedisRateLimitService},
+ * rejected requests are not debited, and {@link RateLimitDescriptor#getCurrentBudget()} reports tokens
+ * held by this node only. {@link #adjust(HttpServletRequest, long)} takes the tokens held by this node first,
+ * and debits the rest from redis directly even if the budget there is exhausted.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class LeasingRateLimitService extends AbstractRateLimitService {
+	
+	private static final RedisScript<Long> LEASE_SCRIPT = RedisRateLimitService.createScript("token-bucket-lease.lua");
+	
+	private static final RedisScript<Long> TOKEN_BUCKET_SCRIPT = RedisRateLimitService.createScript("token-bucket.lua");
+	
+	private static final double DEFAULT_LEASE_RATIO = 0.1;
+	
+	private static final long DEFAULT_LEASE_IDLE_TIMEOUT = 5000L;
+	
+	@Getter
+	private final RedisTemplate<String, Long> redisTemplate;
+	
+	/**
+	 * Ratio of lease size to {@code maxBudget}.
+	 */
+	@Getter
+	@Setter
+	private double leaseRatio = DEFAULT_LEASE_RATIO;
+	
+	/**
+	 * Milliseconds after which unused lease is returned to redis.
+	 */
+	@Getter
+	@Setter
+	private long leaseIdleTimeout = DEFAULT_LEASE_IDLE_TIMEOUT;
+	
+	/**
+	 * Executor to renew leases asynchronously.
+	 */
+	@Getter
+	@Setter
+	private Executor executor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "rate-limit-lease");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final Map<String, TokenLease> leases = new ConcurrentHashMap<>();
+	
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long leaseSize = computeLeaseSize(descriptor);
+		long now = Clock.now().toEpochMillisec();
+		while (true) {
+			TokenLease lease = leases.computeIfAbsent(limitationUnitName, k -> new TokenLease(descriptor));
+			lease.touch(now);
+			long remaining = lease.tryTake(consumption);
+			if (remaining >= 0) {
+				renewIfNecessary(descriptor, lease, leaseSize, remaining);
+				return descriptor.setCurrentBudget(remaining);
+			}
+			if (remaining == TokenLease.NOT_ENOUGH) {
+				if (now < lease.getRetryAfter()) {
+					log.debug("Lease for {} is exhausted, backing off", limitationUnitName);
+					return descriptor.setCurrentBudget(Math.min(-1L, lease.available() - consumption));
+				}
+				long granted = lease(descriptor, Math.max(leaseSize, consumption), now);
+				if (lease.add(granted)) {
+					remaining = lease.tryTake(consumption);
+					if (remaining >= 0) {
+						renewIfNecessary(descriptor, lease, leaseSize, remaining);
+						return descriptor.setCurrentBudget(remaining);
+					}
+					if (remaining == TokenLease.NOT_ENOUGH) {
+						log.debug("Lease for {} is exhausted", limitationUnitName);
+						descriptor.setCurrentBudget(Math.min(-1L, lease.available() - consumption));
+						lease.setRetryAfter(now + Math.max(1L, descriptor.computeWaitMillisecsToConsume(0)));
+						return descriptor;
+					}
+				} else if (granted > 0) {
+					lease(descriptor, -granted, now);
+				}
+			}
+			// retired by concurrent returnIdleLeases
+			leases.remove(limitationUnitName, lease);
+		}
+	}
+	
+	@Override
+	public RateLimitDescriptor adjust(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		TokenLease lease = leases.get(descriptor.getLimitationUnitName());
+		long taken = lease == null ? 0 : lease.takeUpTo(consumption);
+		long deficit = consumption - taken;
+		if (deficit > 0) {
+			debit(descriptor, deficit, Clock.now().toEpochMillisec());
+		}
+		return descriptor.setCurrentBudget((lease == null ? 0 : lease.available()) - deficit);
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		TokenLease lease = leases.get(descriptor.getLimitationUnitName());
+		return descriptor.setCurrentBudget(lease == null ? 0 : lease.available());
+	}
+	
+	/**
+	 * Return unused tokens of idle leases to redis.
+	 * 
+	 * @since 1.2
+	 */
+	@Scheduled(fixedDelay = 1000)
+	public void returnIdleLeases() {
+		long now = Clock.now().toEpochMillisec();
+		leases.forEach((limitationUnitName, lease) -> {
+			if (now - lease.getLastAccessTime() < leaseIdleTimeout
+					|| leases.remove(limitationUnitName, lease) == false) {
+				return;
+			}
+			long unused = lease.retire();
+			if (unused <= 0) {
+				return;
+			}
+			try {
+				lease(lease.getDescriptor(), -unused, now);
+				log.debug("{} tokens of {} were returned", unused, limitationUnitName);
+			} catch (RuntimeException e) {
+				log.warn("Failed to return lease of {}", limitationUnitName, e);
+			}
+		});
+	}
+	
+	private long computeLeaseSize(RateLimitDescriptor descriptor) {
+		return Math.max(1L, (long) (descriptor.getMaxBudget() * leaseRatio));
+	}
+	
+	private void renewIfNecessary(RateLimitDescriptor descriptor, TokenLease lease, long leaseSize, long remaining) {
+		if (remaining >= leaseSize / 2 || lease.getRenewing().compareAndSet(false, true) == false) {
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				long now = Clock.now().toEpochMillisec();
+				long granted = lease(descriptor, leaseSize, now);
+				if (lease.add(granted) == false && granted > 0) {
+					lease(descriptor, -granted, now);
+				}
+			} catch (RuntimeException e) {
+				log.warn("Failed to renew lease of {}", descriptor.getLimitationUnitName(), e);
+			} finally {
+				lease.getRenewing().set(false);
+			}
+		});
+	}
+	
+	private void debit(RateLimitDescriptor descriptor, long amount, long now) {
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		Long carma = redisTemplate.execute(TOKEN_BUCKET_SCRIPT,
+				Arrays.asList("ratelimit:t:" + limitationUnitName, "ratelimit:c:" + limitationUnitName),
+				now, amount, descriptor.getFillRate());
+		if (carma == null) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		log.debug("Debited {} tokens of {} from redis: {}", amount, limitationUnitName, carma);
+	}
+	
+	private long lease(RateLimitDescriptor descriptor, long amount, long now) {
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		Long granted = redisTemplate.execute(LEASE_SCRIPT,
+				Arrays.asList("ratelimit:t:" + limitationUnitName, "ratelimit:c:" + limitationUnitName),
+				now, amount, descriptor.getFillRate(), descriptor.getMaxBudget());
+		if (granted == null) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		log.debug("Leased {} tokens of {} (requested {})", granted, limitationUnitName, amount);
+		return granted;
+	}
+}
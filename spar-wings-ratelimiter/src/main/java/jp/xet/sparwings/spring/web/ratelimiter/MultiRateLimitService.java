@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.List;
+
+/**
+ * {@link RateLimitService} extension which evaluates several limitation units in one call.
+ * 
+ * @since 1.2
+ * @author daisuke
+ * @see RateLimited#limits()
+ */
+public interface MultiRateLimitService {
+	
+	/**
+	 * Consume the budgets of all limitation units, all or nothing.
+	 * 
+	 * <p>The {@code currentBudget} of each returned descriptor is the budget after its consumption.
+	 * If any of them is negative, the request should be rejected and none of the budgets is debited.</p>
+	 * 
+	 * @param descriptors initial descriptors of the limitation units
+	 * @param consumptions amount to consume from each limitation unit, in the same order as {@code descriptors}
+	 * @return descriptors in the same order as {@code descriptors}
+	 * @since 1.2
+	 */
+	List<RateLimitDescriptor> consumeAll(List<RateLimitDescriptor> descriptors, long[] consumptions);
+	
+	/**
+	 * Charge additional consumption to all limitation units after the request was handled.
+	 * 
+	 * <p>Unlike {@link #consumeAll(List, long[])}, every limitation unit is debited even if some budgets
+	 * are already exhausted, so the budgets may become negative.</p>
+	 * 
+	 * @param descriptors initial descriptors of the limitation units
+	 * @param consumptions amount to consume from each limitation unit, in the same order as {@code descriptors}
+	 * @return descriptors in the same order as {@code descriptors}
+	 * @since 1.2
+	 * @see RateLimitService#adjust(javax.servlet.http.HttpServletRequest, long)
+	 */
+	List<RateLimitDescriptor> adjustAll(List<RateLimitDescriptor> descriptors, long[] consumptions);
+}
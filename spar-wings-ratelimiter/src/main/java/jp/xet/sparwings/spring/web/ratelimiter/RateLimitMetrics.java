@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of rate limiting, shared by {@link RateLimitingInterceptor} and {@link AsyncRateLimitingFilter}.
+ * 
+ * <p>Counts allowed and rejected requests, records the latency of consumption per backend (the simple
+ * class name of {@link RateLimitService}), and tracks the limitation units which are rejected most.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+public class RateLimitMetrics {
+	
+	private static final int DEFAULT_HEAVY_HITTERS_CAPACITY = 100;
+	
+	private final LongAdder allowedCount = new LongAdder();
+	
+	private final LongAdder rejectedCount = new LongAdder();
+	
+	private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+	
+	private final HeavyHitters rejectedUnits;
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @since 1.2
+	 */
+	public RateLimitMetrics() {
+		this(DEFAULT_HEAVY_HITTERS_CAPACITY);
+	}
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param heavyHittersCapacity the number of rejected limitation units to monitor
+	 * @since 1.2
+	 */
+	public RateLimitMetrics(int heavyHittersCapacity) {
+		rejectedUnits = new HeavyHitters(heavyHittersCapacity);
+	}
+	
+	/**
+	 * Record the latency of consumption.
+	 * 
+	 * @param backend backend name
+	 * @param nanos latency in nanosec
+	 * @since 1.2
+	 */
+	public void recordLatency(String backend, long nanos) {
+		latencies.computeIfAbsent(backend, b -> new LatencyHistogram()).record(nanos);
+	}
+	
+	/**
+	 * Record an allowed request.
+	 * 
+	 * @since 1.2
+	 */
+	public void recordAllowed() {
+		allowedCount.increment();
+	}
+	
+	/**
+	 * Record a rejected request.
+	 * 
+	 * @param limitationUnitName the limitation unit which rejected the request
+	 * @since 1.2
+	 */
+	public void recordRejected(String limitationUnitName) {
+		rejectedCount.increment();
+		rejectedUnits.offer(limitationUnitName);
+	}
+	
+	/**
+	 * Return the number of allowed requests.
+	 * 
+	 * @return allowed count
+	 * @since 1.2
+	 */
+	public long getAllowedCount() {
+		return allowedCount.sum();
+	}
+	
+	/**
+	 * Return the number of rejected requests.
+	 * 
+	 * @return rejected count
+	 * @since 1.2
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+	
+	/**
+	 * Return the latency histograms of consumption.
+	 * 
+	 * @return unmodifiable map of backend name to histogram
+	 * @since 1.2
+	 */
+	public Map<String, LatencyHistogram> getLatencies() {
+		return Collections.unmodifiableMap(latencies);
+	}
+	
+	/**
+	 * Return the limitation units which are rejected most.
+	 * 
+	 * @param n the number of units to return
+	 * @return counters in descending order
+	 * @since 1.2
+	 */
+	public List<HeavyHitters.Counter> getTopRejected(int n) {
+		return rejectedUnits.top(n);
+	}
+}
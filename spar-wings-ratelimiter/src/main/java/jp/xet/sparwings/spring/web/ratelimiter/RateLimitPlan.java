@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import org.springframework.web.method.HandlerMethod;
+
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimited.Limit;
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimited.Scope;
+
+/**
+ * Rate limit policy of single handler method, compiled from {@link RateLimited} once and cached
+ * by {@link RateLimitingInterceptor}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@RequiredArgsConstructor
+final class RateLimitPlan {
+	
+	static final int DEFAULT_CONSUMPTION = 100;
+	
+	static final RateLimitPlan DEFAULT = new RateLimitPlan(DEFAULT_CONSUMPTION, Collections.emptyList());
+	
+	/**
+	 * Cost against the single bucket of {@link RateLimitService}.
+	 */
+	@Getter
+	private final int cost;
+	
+	private final List<Entry> entries;
+	
+	
+	/**
+	 * Compile the policy of the handler method.
+	 * 
+	 * @param handlerMethod the handler method
+	 * @return compiled plan
+	 */
+	static RateLimitPlan compile(HandlerMethod handlerMethod) {
+		RateLimited rateLimited = handlerMethod.getMethodAnnotation(RateLimited.class);
+		if (rateLimited == null) {
+			return DEFAULT;
+		}
+		List<Entry> entries = new ArrayList<>(rateLimited.limits().length);
+		for (Limit limit : rateLimited.limits()) {
+			String base = limit.scope().name().toLowerCase(Locale.ENGLISH);
+			if (limit.name().isEmpty() == false) {
+				base = base + ":" + limit.name();
+			}
+			entries.add(new Entry(limit.scope(), base, limit.cost(), limit.fillRate(), limit.maxBudget()));
+		}
+		return new RateLimitPlan(rateLimited.value(), Collections.unmodifiableList(entries));
+	}
+	
+	/**
+	 * Return whether this plan consists of several limits.
+	 * 
+	 * @return {@code true} if {@link RateLimited#limits()} is specified
+	 */
+	boolean isMultiLimit() {
+		return entries.isEmpty() == false;
+	}
+	
+	/**
+	 * Resolve the limitation units which apply to the request.
+	 * 
+	 * @param request the request
+	 * @return resolved limits, which may be empty
+	 */
+	Resolved resolve(HttpServletRequest request) {
+		List<RateLimitDescriptor> descriptors = new ArrayList<>(entries.size());
+		long[] costs = new long[entries.size()];
+		for (Entry entry : entries) {
+			RateLimitDescriptor descriptor = entry.createDescriptor(request);
+			if (descriptor != null) {
+				costs[descriptors.size()] = entry.cost;
+				descriptors.add(descriptor);
+			}
+		}
+		return new Resolved(descriptors, Arrays.copyOf(costs, descriptors.size()));
+	}
+	
+	
+	/**
+	 * Limitation units and costs resolved for single request.
+	 */
+	@Getter
+	@RequiredArgsConstructor
+	static final class Resolved {
+		
+		private final List<RateLimitDescriptor> descriptors;
+		
+		private final long[] costs;
+	}
+	
+	@RequiredArgsConstructor
+	private static final class Entry {
+		
+		private final Scope scope;
+		
+		private final String base;
+		
+		private final long cost;
+		
+		private final long fillRate;
+		
+		private final long maxBudget;
+		
+		
+		RateLimitDescriptor createDescriptor(HttpServletRequest request) {
+			String name;
+			switch (scope) {
+				case USER:
+					Principal principal = request.getUserPrincipal();
+					if (principal == null) {
+						return null;
+					}
+					name = base + ":" + principal.getName();
+					break;
+				case IP:
+					name = base + ":" + request.getRemoteAddr();
+					break;
+				default:
+					name = base;
+					break;
+			}
+			return new RateLimitDescriptor(name, fillRate, maxBudget).setCurrentBudget(maxBudget);
+		}
+	}
+}
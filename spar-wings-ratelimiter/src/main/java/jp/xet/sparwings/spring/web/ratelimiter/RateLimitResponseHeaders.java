@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Rate limit response headers, shared by {@link RateLimitingInterceptor} and {@link AsyncRateLimitingFilter}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+final class RateLimitResponseHeaders {
+	
+	/**
+	 * Set rate limit status headers.
+	 * 
+	 * @param response the response
+	 * @param desc the result of consumption
+	 * @param cost the cost of the request
+	 */
+	static void setStatus(HttpServletResponse response, RateLimitDescriptor desc, long cost) {
+		response.setHeader("RateLimit-Unit", desc.getLimitationUnitName());
+		response.setHeader("RateLimit-Cost", String.valueOf(cost));
+		response.setHeader("RateLimit-CurrentBudget", String.valueOf(desc.getCurrentBudget()));
+		response.setHeader("RateLimit-MaximumBudget", String.valueOf(desc.getMaxBudget()));
+		response.setHeader("RateLimit-FillRate", String.valueOf(desc.getFillRate()));
+	}
+	
+	/**
+	 * Set {@code Retry-After} header.
+	 * 
+	 * @param response the response
+	 * @param millisecsToWait milliseconds to wait
+	 */
+	static void setRetryAfter(HttpServletResponse response, long millisecsToWait) {
+		long secsToWait = Math.floorDiv(millisecsToWait, 1000L);
+		response.setHeader("Retry-After", String.valueOf(secsToWait));
+	}
+	
+	private RateLimitResponseHeaders() {
+	}
+}
@@ -44,4 +44,24 @@ public interface RateLimitService {
 	 * @since 0.8
 	 */
 	RateLimitDescriptor get(HttpServletRequest request);
+	
+	/**
+	 * Charge additional consumption after the request was handled, such as the cost measured from its latency.
+	 * 
+	 * <p>The result never rejects the request which was already handled, but it lowers the budget
+	 * for the following requests. The budget may become negative.</p>
+	 * 
+	 * <p>Unlike {@link #consume(HttpServletRequest, long)}, the consumption must be debited even if the budget
+	 * is already exhausted. Default implementation delegates to {@link #consume(HttpServletRequest, long)},
+	 * which is sufficient only for implementations which debit rejected consumption as well, such as
+	 * the token bucket. Implementations which do not debit rejected requests must override this.</p>
+	 * 
+	 * @param request the handled request
+	 * @param consumption additional amount to consume, must be positive
+	 * @return {@link RateLimitDescriptor} or {@code null} if limitation is not applied.
+	 * @since 1.2
+	 */
+	default RateLimitDescriptor adjust(HttpServletRequest request, long consumption) {
+		return consume(request, consumption);
+	}
 }
@@ -33,4 +33,56 @@ public @interface RateLimited {
 	/** 消費量 */
 	int value() default 100;
 	
+	/**
+	 * Limits evaluated together in one call to the backing store.
+	 * 
+	 * <p>When specified, the request is admitted only if all of the limits allow it, and {@link #value()} is
+	 * ignored. The backing service must implement {@link MultiRateLimitService}.</p>
+	 * 
+	 * @since 1.2
+	 */
+	Limit[] limits() default {};
+	
+	
+	/**
+	 * Scope of the limitation unit.
+	 * 
+	 * @since 1.2
+	 */
+	enum Scope {
+		
+		/** Per authenticated user. Skipped for anonymous requests. */
+		USER,
+		
+		/** Per remote address. */
+		IP,
+		
+		/** Shared by all clients. */
+		GLOBAL
+	}
+	
+	/**
+	 * Single limit of {@link RateLimited#limits()}.
+	 * 
+	 * @since 1.2
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({})
+	@interface Limit {
+		
+		/** 対象スコープ */
+		Scope scope();
+		
+		/** Name to separate buckets of the same scope. Buckets are shared between endpoints by default. */
+		String name() default "";
+		
+		/** 消費量 */
+		int cost() default 100;
+		
+		/** Fill rate per millisec */
+		long fillRate() default 10L;
+		
+		/** 最大バジェット */
+		long maxBudget() default 1000000L;
+	}
 }
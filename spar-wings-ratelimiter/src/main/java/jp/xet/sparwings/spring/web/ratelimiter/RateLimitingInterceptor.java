@@ -15,13 +15,20 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
-import java.util.Optional;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 
 import org.springframework.web.method.HandlerMethod;
 import org.springframework.web.servlet.HandlerInterceptor;
@@ -32,19 +39,66 @@ import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
 /**
  * リクエスト毎にレートリミットを判断する {@link HandlerInterceptor} 実装クラス。
  * 
+ * <p>The policy of each handler method is compiled from {@link RateLimited} into {@link RateLimitPlan} only once.
+ * When {@link RateLimited#limits()} is specified and the service implements {@link MultiRateLimitService},
+ * all of the limits are evaluated in one call.</p>
+ * 
+ * <p>If {@link #setLatencyCostPerMillisec(double) latencyCostPerMillisec} or
+ * {@link #setCpuTimeCostPerMillisec(double) cpuTimeCostPerMillisec} is set, extra cost proportional to
+ * the handler latency or the CPU time of the request thread is charged in {@link #afterCompletion}, so that
+ * the clients are throttled by the load which they actually create. The extra cost is charged to every limitation
+ * unit which the request was evaluated against, by {@link MultiRateLimitService#adjustAll(List, long[])} for
+ * {@link RateLimited#limits()}, or by {@link RateLimitService#adjust(HttpServletRequest, long)} otherwise.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
+@Slf4j
 public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 	
-	private static final int DEFAULT_CONSUMPTION = 100;
+	private static final String START_NANOS = RateLimitingInterceptor.class.getName() + ".START_NANOS";
+	
+	private static final String START_CPU_NANOS = RateLimitingInterceptor.class.getName() + ".START_CPU_NANOS";
+	
+	private static final String PLAN = RateLimitingInterceptor.class.getName() + ".PLAN";
+	
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
 	
 	private final RateLimitService rateLimitService;
 	
+	private final ConcurrentMap<Method, RateLimitPlan> plans = new ConcurrentHashMap<>();
+	
 	@Getter
 	@Setter
 	private boolean responseHeader = true;
 	
+	/**
+	 * Extra cost per millisec of handler latency, charged after completion. {@code 0} to disable.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private double latencyCostPerMillisec;
+	
+	/**
+	 * Extra cost per millisec of CPU time of the request thread, charged after completion. {@code 0} to disable.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private double cpuTimeCostPerMillisec;
+	
+	/**
+	 * Metrics to record allowed and rejected requests and the latency of consumption. {@code null} to disable.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private RateLimitMetrics metrics;
+	
 	
 	/**
 	 * インスタンスを生成する。
@@ -61,10 +115,42 @@ public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 			throws Exception { // NOPMD
 		if (rateLimitService != null && isRateLimitTarget(request, response, handler)) {
 			rateLimit(request, response, handler);
+			if (latencyCostPerMillisec > 0 || cpuTimeCostPerMillisec > 0) {
+				request.setAttribute(START_NANOS, System.nanoTime());
+				request.setAttribute(START_CPU_NANOS, currentThreadCpuTime());
+			}
 		}
 		return super.preHandle(request, response, handler);
 	}
 	
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) throws Exception { // NOPMD
+		Object startNanos = request.getAttribute(START_NANOS);
+		Object startCpuNanos = request.getAttribute(START_CPU_NANOS);
+		if (startNanos instanceof Long && startCpuNanos instanceof Long) {
+			Object plan = request.getAttribute(PLAN);
+			request.removeAttribute(START_NANOS);
+			request.removeAttribute(START_CPU_NANOS);
+			request.removeAttribute(PLAN);
+			long latencyNanos = System.nanoTime() - (Long) startNanos;
+			long cpuNanos = (Long) startCpuNanos < 0 ? -1 : currentThreadCpuTime() - (Long) startCpuNanos;
+			long extraCost = computeExtraCost(request, handler, latencyNanos, cpuNanos);
+			if (extraCost > 0) {
+				try {
+					if (plan instanceof RateLimitPlan) {
+						adjustAll(((RateLimitPlan) plan).resolve(request), extraCost);
+					} else {
+						rateLimitService.adjust(request, extraCost);
+					}
+				} catch (RuntimeException e) {
+					log.warn("Failed to charge extra cost {}", extraCost, e);
+				}
+			}
+		}
+		super.afterCompletion(request, response, handler, ex);
+	}
+	
 	/**
 	 * TODO for daisuke
 	 * 
@@ -79,28 +165,143 @@ public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 	
 	private void rateLimit(HttpServletRequest request, HttpServletResponse response, Object handler)
 			throws HttpTooManyRequestsException {
+		RateLimitPlan plan = resolvePlan(handler);
+		if (plan.isMultiLimit() && rateLimitService instanceof MultiRateLimitService) {
+			rateLimitAll(plan.resolve(request), response);
+			if (latencyCostPerMillisec > 0 || cpuTimeCostPerMillisec > 0) {
+				request.setAttribute(PLAN, plan);
+			}
+			return;
+		}
+		
 		int cost = computeCost(request, handler);
+		long startNanos = System.nanoTime();
 		RateLimitDescriptor desc = rateLimitService.consume(request, cost);
+		recordLatency(startNanos);
 		if (desc == null) {
 			return; // through
 		}
 		
 		if (responseHeader) {
-			response.setHeader("RateLimit-Unit", desc.getLimitationUnitName());
-			response.setHeader("RateLimit-Cost", String.valueOf(cost));
-			response.setHeader("RateLimit-CurrentBudget", String.valueOf(desc.getCurrentBudget()));
-			response.setHeader("RateLimit-MaximumBudget", String.valueOf(desc.getMaxBudget()));
-			response.setHeader("RateLimit-FillRate", String.valueOf(desc.getFillRate()));
+			RateLimitResponseHeaders.setStatus(response, desc, cost);
 		}
 		
 		if (desc.getCurrentBudget() < 0) {
+			recordResult(desc, false);
 			long millisecsToWait = desc.computeWaitMillisecsToConsume(cost);
 			if (responseHeader) {
-				long secsToWait = Math.floorDiv(millisecsToWait, 1000L);
-				response.setHeader("Retry-After", String.valueOf(secsToWait));
+				RateLimitResponseHeaders.setRetryAfter(response, millisecsToWait);
+			}
+			throw new HttpTooManyRequestsException(millisecsToWait);
+		}
+		recordResult(desc, true);
+	}
+	
+	private void rateLimitAll(RateLimitPlan.Resolved resolved, HttpServletResponse response)
+			throws HttpTooManyRequestsException {
+		if (resolved.getDescriptors().isEmpty()) {
+			return; // through
+		}
+		long startNanos = System.nanoTime();
+		List<RateLimitDescriptor> results =
+				((MultiRateLimitService) rateLimitService).consumeAll(resolved.getDescriptors(), resolved.getCosts());
+		recordLatency(startNanos);
+		
+		// report the most restrictive limit
+		int index = 0;
+		for (int i = 1; i < results.size(); i++) {
+			if (isMoreRestrictive(results.get(i), results.get(index))) {
+				index = i;
+			}
+		}
+		RateLimitDescriptor desc = results.get(index);
+		if (responseHeader) {
+			RateLimitResponseHeaders.setStatus(response, desc, resolved.getCosts()[index]);
+		}
+		
+		if (desc.getCurrentBudget() < 0) {
+			recordResult(desc, false);
+			// rejected request is not debited, so wait until the deficit is refilled
+			long millisecsToWait = desc.computeWaitMillisecsToConsume(0);
+			if (responseHeader) {
+				RateLimitResponseHeaders.setRetryAfter(response, millisecsToWait);
 			}
 			throw new HttpTooManyRequestsException(millisecsToWait);
 		}
+		recordResult(desc, true);
+	}
+	
+	private void adjustAll(RateLimitPlan.Resolved resolved, long extraCost) {
+		if (resolved.getDescriptors().isEmpty()) {
+			return;
+		}
+		long[] costs = new long[resolved.getDescriptors().size()];
+		Arrays.fill(costs, extraCost);
+		((MultiRateLimitService) rateLimitService).adjustAll(resolved.getDescriptors(), costs);
+	}
+	
+	private void recordLatency(long startNanos) {
+		if (metrics != null) {
+			metrics.recordLatency(rateLimitService.getClass().getSimpleName(), System.nanoTime() - startNanos);
+		}
+	}
+	
+	private void recordResult(RateLimitDescriptor desc, boolean allowed) {
+		if (metrics != null) {
+			if (allowed) {
+				metrics.recordAllowed();
+			} else {
+				metrics.recordRejected(desc.getLimitationUnitName());
+			}
+		}
+	}
+	
+	private static boolean isMoreRestrictive(RateLimitDescriptor a, RateLimitDescriptor b) {
+		if (a.getCurrentBudget() < 0 || b.getCurrentBudget() < 0) {
+			return a.computeWaitMillisecsToConsume(0) > b.computeWaitMillisecsToConsume(0);
+		}
+		return a.getCurrentBudget() < b.getCurrentBudget();
+	}
+	
+	private RateLimitPlan resolvePlan(Object handler) {
+		if (handler instanceof HandlerMethod == false) {
+			return RateLimitPlan.DEFAULT;
+		}
+		HandlerMethod handlerMethod = (HandlerMethod) handler;
+		return plans.computeIfAbsent(handlerMethod.getMethod(), m -> {
+			RateLimitPlan plan = RateLimitPlan.compile(handlerMethod);
+			if (plan.isMultiLimit() && rateLimitService != null
+					&& rateLimitService instanceof MultiRateLimitService == false) {
+				log.warn("{} does not support multiple limits. Only @RateLimited#value is applied to {}",
+						rateLimitService.getClass().getSimpleName(), m);
+			}
+			return plan;
+		});
+	}
+	
+	/**
+	 * Compute extra cost of the handled request.
+	 * 
+	 * @param request The request
+	 * @param handler The handler of request
+	 * @param latencyNanos handler latency in nanosec
+	 * @param cpuNanos CPU time of the request thread in nanosec, or negative if it is not available
+	 * @return extra cost
+	 * @since 1.2
+	 */
+	protected long computeExtraCost(HttpServletRequest request, Object handler, long latencyNanos, long cpuNanos) {
+		double cost = latencyCostPerMillisec * latencyNanos / 1000000d;
+		if (cpuNanos > 0) {
+			cost += cpuTimeCostPerMillisec * cpuNanos / 1000000d;
+		}
+		return (long) cost;
+	}
+	
+	private long currentThreadCpuTime() {
+		if (cpuTimeCostPerMillisec <= 0 || THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() == false) {
+			return -1;
+		}
+		return THREAD_MX_BEAN.getCurrentThreadCpuTime(); // -1 if disabled
 	}
 	
 	/**
@@ -111,11 +312,6 @@ public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 	 * @return cost
 	 */
 	protected int computeCost(HttpServletRequest request, Object handler) {
-		RateLimited rateLimited = null;
-		if (handler instanceof HandlerMethod) {
-			rateLimited = ((HandlerMethod) handler).getMethodAnnotation(RateLimited.class);
-		}
-		int cost = Optional.ofNullable(rateLimited).map(RateLimited::value).orElse(DEFAULT_CONSUMPTION);
-		return cost; // NOPMD
+		return resolvePlan(handler).getCost();
 	}
 }
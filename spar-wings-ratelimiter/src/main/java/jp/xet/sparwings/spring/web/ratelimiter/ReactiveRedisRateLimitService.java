@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link AsyncRateLimitService} implementation to store values in redis via non-blocking driver.
+ * 
+ * <p>Uses the same script and keys as {@link RedisRateLimitService} in script mode, so that both
+ * implementations can share the budgets. The template must be backed by reactive connection factory
+ * such as Lettuce.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class ReactiveRedisRateLimitService extends AbstractRateLimitService implements AsyncRateLimitService {
+	
+	private static final RedisScript<Long> TOKEN_BUCKET_SCRIPT = RedisRateLimitService.createScript("token-bucket.lua");
+	
+	@Getter
+	private final ReactiveRedisTemplate<String, Long> redisTemplate;
+	
+	
+	@Override
+	public CompletionStage<RateLimitDescriptor> consumeAsync(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long now = Clock.now().toEpochMillisec();
+		return redisTemplate.execute(TOKEN_BUCKET_SCRIPT,
+				Arrays.asList("ratelimit:t:" + limitationUnitName, "ratelimit:c:" + limitationUnitName),
+				Arrays.asList(now, consumption, descriptor.getFillRate()))
+			.next()
+			.map(carma -> {
+				descriptor.setCurrentBudget(descriptor.getMaxBudget() - carma);
+				log.debug("Budget after current request (consumed {}): {}", consumption, descriptor.getCurrentBudget());
+				return descriptor;
+			})
+			.toFuture();
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return consumeAsync(request, consumption).toCompletableFuture().join();
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		return consume(request, 0);
+	}
+}
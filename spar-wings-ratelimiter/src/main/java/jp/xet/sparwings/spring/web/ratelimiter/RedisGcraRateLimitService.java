@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation of generic cell rate algorithm (GCRA) to store values in redis.
+ * 
+ * <p>Only single key, theoretical arrival time, is stored per limitation unit, and it is updated
+ * atomically by one script invocation. See {@link InMemoryGcraRateLimitService} for the algorithm.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class RedisGcraRateLimitService extends AbstractRateLimitService {
+	
+	private static final RedisScript<Long> GCRA_SCRIPT = RedisRateLimitService.createScript("gcra.lua");
+	
+	@Getter
+	private final RedisTemplate<String, Long> redisTemplate;
+	
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return execute(request, consumption, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>This implementation debits the consumption even if it is rejected.</p>
+	 */
+	@Override
+	public RateLimitDescriptor adjust(HttpServletRequest request, long consumption) {
+		return execute(request, consumption, true);
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		return consume(request, 0);
+	}
+	
+	private RateLimitDescriptor execute(HttpServletRequest request, long consumption, boolean force) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		Long budget = redisTemplate.execute(GCRA_SCRIPT,
+				Collections.singletonList("ratelimit:tat:" + descriptor.getLimitationUnitName()),
+				Clock.now().toEpochMillisec(), consumption, descriptor.getFillRate(), descriptor.getMaxBudget(),
+				force ? 1L : 0L);
+		if (budget == null) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		log.debug("Budget after current request (consumed {}): {}", consumption, budget);
+		return descriptor.setCurrentBudget(budget);
+	}
+}
@@ -15,31 +15,72 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
 
 import jp.xet.baseunits.timeutil.Clock;
 
 /**
  * {@link RateLimitService} implementation to store values in redis.
  * 
+ * <p>If {@link #setUseScript(boolean) useScript} is enabled, refill, consumption and TTL update are done
+ * by single server-side Lua script invocation (EVALSHA), which is one round-trip and atomic across
+ * concurrent nodes. Otherwise, the sequence of commands is issued from the client.</p>
+ * 
+ * <p>{@link #consumeAll(List, long[])} always uses single Lua script for all of the limitation units.
+ * On redis cluster, their keys must be in the same hash slot.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
 @Slf4j
 @RequiredArgsConstructor
-public class RedisRateLimitService extends AbstractRateLimitService {
+public class RedisRateLimitService extends AbstractRateLimitService implements MultiRateLimitService {
+	
+	private static final RedisScript<Long> TOKEN_BUCKET_SCRIPT = createScript("token-bucket.lua");
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> MULTI_TOKEN_BUCKET_SCRIPT =
+			createScript("token-bucket-multi.lua", List.class);
 	
 	@Getter
 	private final RedisTemplate<String, Long> redisTemplate;
 	
+	/**
+	 * Use server-side Lua script to refill and consume atomically in one round-trip.
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private boolean useScript;
+	
+	
+	static RedisScript<Long> createScript(String name) {
+		return createScript(name, Long.class);
+	}
+	
+	static <T> RedisScript<T> createScript(String name, Class<T> resultType) {
+		DefaultRedisScript<T> script = new DefaultRedisScript<>();
+		script.setScriptSource(new ResourceScriptSource(new ClassPathResource(name, RedisRateLimitService.class)));
+		script.setResultType(resultType);
+		return script;
+	}
 	
 	@Override
 	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) { // NOPMD - nc
@@ -47,6 +88,9 @@ public class RedisRateLimitService extends AbstractRateLimitService {
 		if (descriptor == null) {
 			return null;
 		}
+		if (useScript) {
+			return consumeByScript(descriptor, consumption);
+		}
 		String limitationUnitName = descriptor.getLimitationUnitName();
 		long fillRate = descriptor.getFillRate();
 		long maxBudget = descriptor.getMaxBudget();
@@ -72,12 +116,15 @@ public class RedisRateLimitService extends AbstractRateLimitService {
 			carma = consumption;
 		}
 		
-		log.info("Budget before current request (filled {}): {}",
-				ts == null ? "<unknown>" : (now - ts) * fillRate,
-				ts == null ? maxBudget : maxBudget - carma + consumption);
-		log.info("Budget after current request (consumed {}): {}", consumption, maxBudget - carma);
+		if (log.isDebugEnabled()) {
+			log.debug("Budget before current request (filled {}): {}",
+					ts == null ? "<unknown>" : (now - ts) * fillRate,
+					ts == null ? maxBudget : maxBudget - carma + consumption);
+			log.debug("Budget after current request (consumed {}): {}", consumption, maxBudget - carma);
+		}
 		
-		long expire = carma / fillRate;
+		// expires when fully recovered, rounded up to seconds
+		long expire = Math.max(0, carma) / fillRate / 1000 + 1;
 		redisTemplate.expire(tKey, expire, TimeUnit.SECONDS);
 		redisTemplate.expire(cKey, expire, TimeUnit.SECONDS);
 		
@@ -91,6 +138,9 @@ public class RedisRateLimitService extends AbstractRateLimitService {
 		if (descriptor == null) {
 			return null;
 		}
+		if (useScript) {
+			return consumeByScript(descriptor, 0);
+		}
 		String limitationUnitName = descriptor.getLimitationUnitName();
 		long fillRate = descriptor.getFillRate();
 		long maxBudget = descriptor.getMaxBudget();
@@ -111,12 +161,62 @@ public class RedisRateLimitService extends AbstractRateLimitService {
 			throw new AssertionError("Unexpected condition. can not do in transaction");
 		}
 		
-		long expire = carma / fillRate;
+		// expires when fully recovered, rounded up to seconds
+		long expire = Math.max(0, carma) / fillRate / 1000 + 1;
 		redisTemplate.expire(tKey, expire, TimeUnit.SECONDS);
 		redisTemplate.expire(cKey, expire, TimeUnit.SECONDS);
 		
 		descriptor.setCurrentBudget(maxBudget - carma);
-		log.info("Current budget: (filled {}) and {}", delta, descriptor.getCurrentBudget());
+		log.debug("Current budget: (filled {}) and {}", delta, descriptor.getCurrentBudget());
+		return descriptor;
+	}
+	
+	@Override
+	public List<RateLimitDescriptor> consumeAll(List<RateLimitDescriptor> descriptors, long[] consumptions) {
+		return consumeAllByScript(descriptors, consumptions, false);
+	}
+	
+	@Override
+	public List<RateLimitDescriptor> adjustAll(List<RateLimitDescriptor> descriptors, long[] consumptions) {
+		return consumeAllByScript(descriptors, consumptions, true);
+	}
+	
+	private List<RateLimitDescriptor> consumeAllByScript(List<RateLimitDescriptor> descriptors, long[] consumptions,
+			boolean force) {
+		List<String> keys = new ArrayList<>(descriptors.size() * 2);
+		Object[] args = new Object[descriptors.size() * 3 + 2];
+		args[0] = Clock.now().toEpochMillisec();
+		for (int i = 0; i < descriptors.size(); i++) {
+			RateLimitDescriptor descriptor = descriptors.get(i);
+			keys.add("ratelimit:t:" + descriptor.getLimitationUnitName());
+			keys.add("ratelimit:c:" + descriptor.getLimitationUnitName());
+			args[i * 3 + 1] = consumptions[i];
+			args[i * 3 + 2] = descriptor.getFillRate();
+			args[i * 3 + 3] = descriptor.getMaxBudget();
+		}
+		args[args.length - 1] = force ? 1L : 0L;
+		List<?> budgets = redisTemplate.execute(MULTI_TOKEN_BUCKET_SCRIPT, keys, args);
+		if (budgets == null) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		for (int i = 0; i < descriptors.size(); i++) {
+			descriptors.get(i).setCurrentBudget(((Number) budgets.get(i)).longValue());
+		}
+		log.debug("Budgets after current request (consumed {}): {}", Arrays.toString(consumptions), budgets);
+		return descriptors;
+	}
+	
+	private RateLimitDescriptor consumeByScript(RateLimitDescriptor descriptor, long consumption) {
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long now = Clock.now().toEpochMillisec();
+		Long carma = redisTemplate.execute(TOKEN_BUCKET_SCRIPT,
+				Arrays.asList("ratelimit:t:" + limitationUnitName, "ratelimit:c:" + limitationUnitName),
+				now, consumption, descriptor.getFillRate());
+		if (carma == null) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		descriptor.setCurrentBudget(descriptor.getMaxBudget() - carma);
+		log.debug("Budget after current request (consumed {}): {}", consumption, descriptor.getCurrentBudget());
 		return descriptor;
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation of sliding window counter to store values in redis.
+ * 
+ * <p>Counters of current and previous fixed windows are stored per limitation unit, and they are
+ * evaluated and updated atomically by one script invocation. See {@link InMemorySlidingWindowRateLimitService}
+ * for the algorithm.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class RedisSlidingWindowRateLimitService extends AbstractRateLimitService {
+	
+	private static final RedisScript<Long> SLIDING_WINDOW_SCRIPT =
+			RedisRateLimitService.createScript("sliding-window.lua");
+	
+	@Getter
+	private final RedisTemplate<String, Long> redisTemplate;
+	
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return execute(request, consumption, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>This implementation debits the consumption even if it is rejected.</p>
+	 */
+	@Override
+	public RateLimitDescriptor adjust(HttpServletRequest request, long consumption) {
+		return execute(request, consumption, true);
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		return consume(request, 0);
+	}
+	
+	private RateLimitDescriptor execute(HttpServletRequest request, long consumption, boolean force) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		long windowSize = SlidingWindows.computeWindowSize(descriptor);
+		long index = now / windowSize;
+		String prefix = "ratelimit:w:" + descriptor.getLimitationUnitName() + ":";
+		Long budget = redisTemplate.execute(SLIDING_WINDOW_SCRIPT,
+				Arrays.asList(prefix + index, prefix + (index - 1)),
+				now % windowSize, windowSize, consumption, descriptor.getMaxBudget(), force ? 1L : 0L);
+		if (budget == null) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		log.debug("Budget after current request (consumed {}): {}", consumption, budget);
+		return descriptor.setCurrentBudget(budget);
+	}
+}
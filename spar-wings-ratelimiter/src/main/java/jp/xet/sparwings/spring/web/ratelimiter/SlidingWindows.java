@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+/**
+ * Computation of sliding window counter, shared by in-memory and redis implementations.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+final class SlidingWindows {
+	
+	/**
+	 * Compute window size, which is the time to recover full budget in the token bucket.
+	 * 
+	 * @param descriptor descriptor of limitation unit
+	 * @return window size in millisec
+	 */
+	static long computeWindowSize(RateLimitDescriptor descriptor) {
+		return Math.max(1L, descriptor.getMaxBudget() / descriptor.getFillRate());
+	}
+	
+	/**
+	 * Compute remaining budget of sliding window.
+	 * 
+	 * <p>This must be consistent with {@code sliding-window.lua}.</p>
+	 * 
+	 * @param maxBudget max budget per window
+	 * @param windowSize window size in millisec
+	 * @param elapsed elapsed millisec in current window
+	 * @param previous count of previous window
+	 * @param current count of current window
+	 * @return remaining budget, or negative value if over the limit
+	 */
+	static long computeBudget(long maxBudget, long windowSize, long elapsed, long previous, long current) {
+		return maxBudget - (previous * (windowSize - elapsed) / windowSize + current);
+	}
+	
+	private SlidingWindows() {
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Lock-free token bucket for single limitation unit.
+ * 
+ * <p>The budget and the last update time are kept in one immutable {@link State} which is swapped by CAS,
+ * so threads consuming different limitation units never contend, and threads consuming the same unit
+ * only retry on conflict instead of parking on a monitor.</p>
+ * 
+ * <p>A bucket can be retired when it is evicted from the store. Retired bucket refuses any further
+ * operation, so callers must look up (or create) the bucket again.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+class TokenBucket {
+	
+	private static final State RETIRED = new State(Long.MIN_VALUE, Long.MIN_VALUE);
+	
+	@Getter
+	private final String limitationUnitName;
+	
+	@Getter
+	private final long fillRate;
+	
+	@Getter
+	private final long maxBudget;
+	
+	private final AtomicReference<State> state;
+	
+	
+	/**
+	 * Create instance from initial descriptor.
+	 * 
+	 * @param initial initial descriptor which is provided by recovery strategy
+	 */
+	TokenBucket(RateLimitDescriptor initial) {
+		limitationUnitName = initial.getLimitationUnitName();
+		fillRate = initial.getFillRate();
+		maxBudget = initial.getMaxBudget();
+		state = new AtomicReference<>(new State(initial.getCurrentBudget(), initial.getLastUpdateTime()));
+	}
+	
+	/**
+	 * Refill the budget up to {@code now} and consume {@code consumption} atomically.
+	 * 
+	 * @param now current time in epoch millisec
+	 * @param consumption amount to consume
+	 * @return snapshot after consumption, or {@code null} if this bucket was retired
+	 */
+	RateLimitDescriptor consume(long now, long consumption) {
+		State current;
+		State next;
+		do {
+			current = state.get();
+			if (current == RETIRED) {
+				return null;
+			}
+			next = current.refill(now, fillRate, maxBudget).consume(consumption);
+		} while (state.compareAndSet(current, next) == false);
+		return toDescriptor(next);
+	}
+	
+	/**
+	 * Give back {@code amount} which was consumed by {@link #consume(long, long)}, up to {@code maxBudget}.
+	 * 
+	 * @param now current time in epoch millisec
+	 * @param amount amount to give back
+	 */
+	void refund(long now, long amount) {
+		State current;
+		State next;
+		do {
+			current = state.get();
+			if (current == RETIRED) {
+				return; // evicted, nothing to give back
+			}
+			next = current.refill(now, fillRate, maxBudget).refund(amount, maxBudget);
+		} while (state.compareAndSet(current, next) == false);
+	}
+	
+	/**
+	 * Return snapshot refilled up to {@code now}, without consumption.
+	 * 
+	 * @param now current time in epoch millisec
+	 * @return snapshot, or {@code null} if this bucket was retired
+	 */
+	RateLimitDescriptor peek(long now) {
+		State current = state.get();
+		if (current == RETIRED) {
+			return null;
+		}
+		return toDescriptor(current.refill(now, fillRate, maxBudget));
+	}
+	
+	/**
+	 * Return raw snapshot, without refill.
+	 * 
+	 * @return snapshot, or {@code null} if this bucket was retired
+	 */
+	RateLimitDescriptor snapshot() {
+		State current = state.get();
+		if (current == RETIRED) {
+			return null;
+		}
+		return toDescriptor(current);
+	}
+	
+	/**
+	 * Return the amount of budget which is not yet refilled at {@code now}.
+	 * 
+	 * @param now current time in epoch millisec
+	 * @return {@code 0} if the bucket is full (or retired), positive value otherwise
+	 */
+	long deficit(long now) {
+		State current = state.get();
+		if (current == RETIRED) {
+			return 0;
+		}
+		return Math.max(0, maxBudget - current.refill(now, fillRate, maxBudget).budget);
+	}
+	
+	/**
+	 * Retire this bucket if it is refilled to {@code maxBudget} at {@code now}.
+	 * 
+	 * <p>A full bucket is indistinguishable from a fresh one, so retiring it loses nothing.</p>
+	 * 
+	 * @param now current time in epoch millisec
+	 * @return {@code true} if this call retired the bucket
+	 */
+	boolean retireIfFull(long now) {
+		State current;
+		do {
+			current = state.get();
+			if (current == RETIRED || current.refill(now, fillRate, maxBudget).budget < maxBudget) {
+				return false;
+			}
+		} while (state.compareAndSet(current, RETIRED) == false);
+		return true;
+	}
+	
+	/**
+	 * Retire this bucket regardless of its budget.
+	 * 
+	 * @return {@code true} if this call retired the bucket
+	 */
+	boolean retire() {
+		State current;
+		do {
+			current = state.get();
+			if (current == RETIRED) {
+				return false;
+			}
+		} while (state.compareAndSet(current, RETIRED) == false);
+		return true;
+	}
+	
+	private RateLimitDescriptor toDescriptor(State s) {
+		return new RateLimitDescriptor(limitationUnitName, fillRate, maxBudget, s.budget, s.lastUpdateTime);
+	}
+	
+	
+	@RequiredArgsConstructor
+	private static final class State {
+		
+		private final long budget;
+		
+		private final long lastUpdateTime;
+		
+		
+		State refill(long now, long fillRate, long maxBudget) {
+			if (now <= lastUpdateTime) {
+				// another thread has already refilled to a later time
+				return this;
+			}
+			long fill = (now - lastUpdateTime) * fillRate;
+			return new State(Math.min(maxBudget, budget + fill), now);
+		}
+		
+		State consume(long consumption) {
+			return new State(budget - consumption, lastUpdateTime);
+		}
+		
+		State refund(long amount, long maxBudget) {
+			return new State(Math.min(maxBudget, budget + amount), lastUpdateTime);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Tokens which are leased from shared token bucket and held by this node.
+ * 
+ * <p>A lease can be retired when it is released. Retired lease refuses any further operation,
+ * so callers must look up (or create) the lease again.</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@RequiredArgsConstructor
+class TokenLease {
+	
+	/** Returned by {@link #tryTake(long)} if this lease was retired. */
+	static final long RETIRED = Long.MIN_VALUE;
+	
+	/** Returned by {@link #tryTake(long)} if this lease does not hold enough tokens. */
+	static final long NOT_ENOUGH = -1L;
+	
+	/** Descriptor of the leased limitation unit, which is used to return the tokens. */
+	@Getter
+	private final RateLimitDescriptor descriptor;
+	
+	private final AtomicLong tokens = new AtomicLong();
+	
+	@Getter
+	private final AtomicBoolean renewing = new AtomicBoolean();
+	
+	@Getter
+	private volatile long lastAccessTime;
+	
+	/** Epoch millisec until which this exhausted lease should not be renewed synchronously. */
+	@Getter
+	@Setter
+	private volatile long retryAfter;
+	
+	
+	/**
+	 * Record access time.
+	 * 
+	 * @param now current time in epoch millisec
+	 */
+	void touch(long now) {
+		lastAccessTime = now;
+	}
+	
+	/**
+	 * Take {@code amount} tokens if this lease holds enough tokens.
+	 * 
+	 * @param amount amount to take
+	 * @return remaining tokens after taking, {@link #NOT_ENOUGH} or {@link #RETIRED}
+	 */
+	long tryTake(long amount) {
+		long current;
+		do {
+			current = tokens.get();
+			if (current == RETIRED) {
+				return RETIRED;
+			}
+			if (current < amount) {
+				return NOT_ENOUGH;
+			}
+		} while (tokens.compareAndSet(current, current - amount) == false);
+		return current - amount;
+	}
+	
+	/**
+	 * Take as many tokens as this lease holds, up to {@code amount}.
+	 * 
+	 * @param amount maximum amount to take
+	 * @return amount actually taken, or {@code 0} if this lease was retired
+	 */
+	long takeUpTo(long amount) {
+		long current;
+		long taken;
+		do {
+			current = tokens.get();
+			if (current == RETIRED) {
+				return 0;
+			}
+			taken = Math.min(current, amount);
+		} while (taken > 0 && tokens.compareAndSet(current, current - taken) == false);
+		return Math.max(0, taken);
+	}
+	
+	/**
+	 * Add {@code amount} tokens to this lease.
+	 * 
+	 * @param amount amount to add
+	 * @return {@code false} if this lease was retired
+	 */
+	boolean add(long amount) {
+		long current;
+		do {
+			current = tokens.get();
+			if (current == RETIRED) {
+				return false;
+			}
+		} while (tokens.compareAndSet(current, current + amount) == false);
+		return true;
+	}
+	
+	/**
+	 * Return tokens currently held.
+	 * 
+	 * @return tokens, or {@code 0} if this lease was retired
+	 */
+	long available() {
+		long current = tokens.get();
+		return current == RETIRED ? 0 : current;
+	}
+	
+	/**
+	 * Retire this lease.
+	 * 
+	 * @return tokens which were held, those should be returned to shared token bucket
+	 */
+	long retire() {
+		long previous = tokens.getAndSet(RETIRED);
+		return previous == RETIRED ? 0 : previous;
+	}
+}
@@ -0,0 +1,33 @@
+-- Generic cell rate algorithm.
+--
+-- KEYS[1] : theoretical arrival time key ("epoch millisec:remainder in budget unit", so that numbers are kept
+--           within double precision however large the fill rate is)
+-- ARGV[1] : current time in epoch millisec
+-- ARGV[2] : consumption
+-- ARGV[3] : fill rate per millisec
+-- ARGV[4] : max budget
+-- ARGV[5] : 1 to record consumption even if rejected (optional)
+--
+-- returns budget after consumption, or negative value if rejected (rejected consumption is not recorded unless forced)
+
+local now = tonumber(ARGV[1])
+local consumption = tonumber(ARGV[2])
+local fill_rate = tonumber(ARGV[3])
+local max_budget = tonumber(ARGV[4])
+local force = tonumber(ARGV[5] or '0') == 1
+
+local deficit = 0
+local tat, remainder = string.match(redis.call('GET', KEYS[1]) or '', '^(%d+):(%d+)$')
+if tat and tonumber(tat) >= now then
+	deficit = (tonumber(tat) - now) * fill_rate + tonumber(remainder)
+end
+deficit = math.max(0, deficit + consumption)
+local budget = max_budget - deficit
+
+if (budget >= 0 or force) and consumption > 0 then
+	-- expires when fully recovered, rounded up to seconds
+	local expire = math.floor(deficit / fill_rate / 1000) + 1
+	redis.call('SET', KEYS[1], string.format('%d:%d', now + math.floor(deficit / fill_rate), deficit % fill_rate),
+		'EX', expire)
+end
+return budget
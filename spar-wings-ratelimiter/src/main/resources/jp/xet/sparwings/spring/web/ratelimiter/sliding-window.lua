@@ -0,0 +1,29 @@
+-- Sliding window counter.
+--
+-- KEYS[1] : counter key of current window
+-- KEYS[2] : counter key of previous window
+-- ARGV[1] : elapsed millisec in current window
+-- ARGV[2] : window size in millisec
+-- ARGV[3] : consumption
+-- ARGV[4] : max budget
+-- ARGV[5] : 1 to record consumption even if rejected (optional)
+--
+-- returns budget after consumption, or negative value if rejected (rejected consumption is not recorded unless forced)
+
+local elapsed = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+local consumption = tonumber(ARGV[3])
+local max_budget = tonumber(ARGV[4])
+local force = tonumber(ARGV[5] or '0') == 1
+
+local previous = tonumber(redis.call('GET', KEYS[2]) or '0')
+local current = tonumber(redis.call('GET', KEYS[1]) or '0')
+local estimated = math.floor(previous * (window - elapsed) / window) + current + consumption
+local budget = max_budget - estimated
+
+if (budget >= 0 or force) and consumption > 0 then
+	-- current window is referred as previous window until the end of next window, rounded up to seconds
+	redis.call('INCRBY', KEYS[1], ARGV[3])
+	redis.call('EXPIRE', KEYS[1], math.floor(window * 2 / 1000) + 1)
+end
+return budget
@@ -0,0 +1,38 @@
+-- Lease tokens from (or return tokens to) token bucket atomically.
+--
+-- KEYS[1] : last update time key
+-- KEYS[2] : consumed amount (carma) key
+-- ARGV[1] : current time in epoch millisec
+-- ARGV[2] : amount to lease, or negative amount to return
+-- ARGV[3] : fill rate per millisec
+-- ARGV[4] : max budget
+--
+-- returns granted amount (never more than the remaining budget), or returned amount as negative value
+
+local now = tonumber(ARGV[1])
+local requested = tonumber(ARGV[2])
+local fill_rate = tonumber(ARGV[3])
+local max_budget = tonumber(ARGV[4])
+
+local carma = tonumber(redis.call('GET', KEYS[2]) or '0')
+local ts = redis.call('GET', KEYS[1])
+if ts then
+	ts = tonumber(ts)
+	carma = carma - math.max(0, now - ts) * fill_rate
+	now = math.max(now, ts)
+end
+carma = math.max(0, carma)
+
+local granted
+if requested >= 0 then
+	granted = math.min(requested, math.max(0, max_budget - carma))
+else
+	granted = math.max(requested, -carma)
+end
+carma = carma + granted
+
+-- expires when fully recovered, rounded up to seconds
+local expire = math.floor(carma / fill_rate / 1000) + 1
+redis.call('SET', KEYS[1], string.format('%d', now), 'EX', expire)
+redis.call('SET', KEYS[2], string.format('%d', carma), 'EX', expire)
+return granted
@@ -0,0 +1,45 @@
+-- Refill and consume several token buckets atomically, all or nothing.
+--
+-- KEYS[2i-1] : last update time key of i-th bucket
+-- KEYS[2i]   : consumed amount (carma) key of i-th bucket
+-- ARGV[1]    : current time in epoch millisec
+-- ARGV[3i-1] : consumption of i-th bucket
+-- ARGV[3i]   : fill rate per millisec of i-th bucket
+-- ARGV[3i+1] : max budget of i-th bucket
+-- ARGV[3n+2] : 1 to debit all buckets even if rejected (optional)
+--
+-- returns budget after consumption of each bucket. if any of them is negative, no bucket is debited unless forced.
+
+local now = tonumber(ARGV[1])
+local n = #KEYS / 2
+local force = tonumber(ARGV[3 * n + 2] or '0') == 1
+
+local refilled = {}
+local budgets = {}
+local admitted = true
+for i = 1, n do
+	local consumption = tonumber(ARGV[3 * i - 1])
+	local fill_rate = tonumber(ARGV[3 * i])
+	local max_budget = tonumber(ARGV[3 * i + 1])
+	local carma = tonumber(redis.call('GET', KEYS[2 * i]) or '0')
+	local ts = redis.call('GET', KEYS[2 * i - 1])
+	if ts then
+		carma = math.max(0, carma - (now - tonumber(ts)) * fill_rate)
+	end
+	refilled[i] = carma
+	budgets[i] = max_budget - (carma + consumption)
+	if budgets[i] < 0 then
+		admitted = false
+	end
+end
+
+for i = 1, n do
+	local carma = refilled[i]
+	if admitted or force then
+		carma = carma + tonumber(ARGV[3 * i - 1])
+	end
+	local expire = math.floor(carma / tonumber(ARGV[3 * i]) / 1000) + 1
+	redis.call('SET', KEYS[2 * i - 1], ARGV[1], 'EX', expire)
+	redis.call('SET', KEYS[2 * i], string.format('%d', carma), 'EX', expire)
+end
+return budgets
@@ -0,0 +1,32 @@
+-- Refill and consume token bucket atomically.
+--
+-- KEYS[1] : last update time key
+-- KEYS[2] : consumed amount (carma) key
+-- ARGV[1] : current time in epoch millisec
+-- ARGV[2] : consumption
+-- ARGV[3] : fill rate per millisec
+--
+-- returns carma after consumption (current budget = maxBudget - carma)
+
+local now = tonumber(ARGV[1])
+local consumption = tonumber(ARGV[2])
+local fill_rate = tonumber(ARGV[3])
+
+local delta = consumption
+local ts = redis.call('GET', KEYS[1])
+redis.call('SET', KEYS[1], ARGV[1])
+if ts then
+	delta = delta - (now - tonumber(ts)) * fill_rate
+end
+
+local carma = redis.call('INCRBY', KEYS[2], string.format('%d', delta))
+if carma < consumption then
+	redis.call('SET', KEYS[2], ARGV[2])
+	carma = consumption
+end
+
+-- expires when fully recovered, rounded up to seconds
+local expire = math.floor(carma / fill_rate / 1000) + 1
+redis.call('EXPIRE', KEYS[1], expire)
+redis.call('EXPIRE', KEYS[2], expire)
+return carma
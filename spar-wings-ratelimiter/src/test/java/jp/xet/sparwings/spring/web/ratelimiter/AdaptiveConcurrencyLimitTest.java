@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link AdaptiveConcurrencyLimit}.
+ */
+public class AdaptiveConcurrencyLimitTest {
+	
+	AdaptiveConcurrencyLimit sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new AdaptiveConcurrencyLimit(20);
+		sut.setSampleWindow(20);
+	}
+	
+	@Test
+	public void tryAcquire_upToLimit() {
+		// setup
+		for (int i = 0; i < 20; i++) {
+			assertThat(sut.tryAcquire(), is(true));
+		}
+		// exercise
+		boolean actual = sut.tryAcquire();
+		// verify
+		assertThat(actual, is(false));
+		assertThat(sut.getInFlight(), is(20));
+	}
+	
+	@Test
+	public void release_freesPermit() {
+		// setup
+		for (int i = 0; i < 20; i++) {
+			sut.tryAcquire();
+		}
+		// exercise
+		sut.release(TimeUnit.MILLISECONDS.toNanos(10));
+		// verify
+		assertThat(sut.getInFlight(), is(19));
+		assertThat(sut.tryAcquire(), is(true));
+	}
+	
+	@Test
+	public void stableLatency_growsLimit() {
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			saturate(10);
+		}
+		// verify
+		assertThat(sut.getLimit(), is(greaterThan(20)));
+	}
+	
+	@Test
+	public void risingLatency_shrinksLimit() {
+		// setup
+		for (int i = 0; i < 10; i++) {
+			saturate(10);
+		}
+		int grown = sut.getLimit();
+		// exercise
+		for (int i = 0; i < 20; i++) {
+			saturate(100);
+		}
+		// verify
+		assertThat(sut.getLimit(), is(lessThan(grown)));
+		assertThat(sut.getLimit(), is(lessThan(20)));
+		assertThat(sut.getLimit(), is(greaterThan(0)));
+	}
+	
+	@Test
+	public void applicationLimited_keepsLimit() {
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.tryAcquire();
+			sut.release(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		// verify
+		assertThat(sut.getLimit(), is(20));
+	}
+	
+	private void saturate(long rttMillis) {
+		int n = sut.getLimit();
+		for (int i = 0; i < n; i++) {
+			assertThat(sut.tryAcquire(), is(true));
+		}
+		for (int i = 0; i < n; i++) {
+			sut.release(TimeUnit.MILLISECONDS.toNanos(rttMillis));
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.Random;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link ApproximateRateLimitService}.
+ */
+@Slf4j
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class ApproximateRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	ApproximateRateLimitService sut;
+	
+	String limitationUnitName = "user1";
+	
+	
+	@Before
+	public void setUp() {
+		sut = new ApproximateRateLimitService();
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(limitationUnitName, 2, 1000L));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void size() {
+		assertThat(sut.getWidth(), is(27183));
+		assertThat(sut.getDepth(), is(7));
+		ApproximateRateLimitService small = new ApproximateRateLimitService(0.01, 0.05);
+		assertThat(small.getWidth(), is(272));
+		assertThat(small.getDepth(), is(3));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidEpsilon() {
+		new ApproximateRateLimitService(0, 0.01);
+	}
+	
+	@Test
+	public void consume100() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(actual.getFillRate(), is(2L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void consume100_recover20_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // recover 20
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(720L));
+		assertThat(sut.get(request).getCurrentBudget(), is(720L));
+	}
+	
+	@Test
+	public void consume100_recover400_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(200L))); // recover 400
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(800L));
+	}
+	
+	@Test
+	public void consume1x1001_highFillRate_rejected() {
+		// setup
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(limitationUnitName, 5000, 1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		for (int i = 0; i < 1000; i++) {
+			sut.consume(request, 1);
+		}
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 1);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(-1L));
+	}
+	
+	@Test
+	public void falseRejectionRate_smallSketch() {
+		double rate = measureFalseRejectionRate(new ApproximateRateLimitService(0.05, 0.05));
+		assertThat(rate, is(lessThan(0.02)));
+	}
+	
+	@Test
+	public void falseRejectionRate_largeSketch() {
+		double rate = measureFalseRejectionRate(new ApproximateRateLimitService(0.001, 0.01));
+		assertThat(rate, is(lessThan(0.001)));
+	}
+	
+	/**
+	 * Half of the requests come from 10 heavy units which exceed the limit, and the others come from
+	 * 10000 light units which never exceed the limit. Compare admissions with the exact token bucket.
+	 */
+	private double measureFalseRejectionRate(ApproximateRateLimitService approximate) {
+		InMemoryRateLimitService exact = new InMemoryRateLimitService();
+		exact.setRecoveryStrategy(req -> new RateLimitDescriptor(limitationUnitName, 2, 1000L)
+			.setCurrentBudget(1000L));
+		approximate.setRecoveryStrategy(req -> new RateLimitDescriptor(limitationUnitName, 2, 1000L));
+		Random random = new Random(1);
+		int exactAdmissions = 0;
+		int falseRejections = 0;
+		int falseAdmissions = 0;
+		for (long t = 0; t < 100000; t++) {
+			Clock.setTimeSource(new FixedTimeSource(TimePoint.from(t)));
+			limitationUnitName = random.nextBoolean()
+					? "heavy-" + random.nextInt(10)
+					: "light-" + random.nextInt(10000);
+			boolean exactAdmitted = exact.consume(request, 100).getCurrentBudget() >= 0;
+			boolean approximateAdmitted = approximate.consume(request, 100).getCurrentBudget() >= 0;
+			if (exactAdmitted) {
+				exactAdmissions++;
+				if (approximateAdmitted == false) {
+					falseRejections++;
+				}
+			} else if (approximateAdmitted) {
+				falseAdmissions++;
+			}
+		}
+		double rate = (double) falseRejections / exactAdmissions;
+		log.info("{} x {} sketch: false rejection rate = {} ({} / {})",
+				approximate.getDepth(), approximate.getWidth(), rate, falseRejections, exactAdmissions);
+		assertThat(falseAdmissions, is(0));
+		return rate;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Test for {@link AsyncRateLimitingFilter}.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class AsyncRateLimitingFilterTest {
+	
+	@Mock
+	AsyncRateLimitService rateLimitService;
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@Mock
+	HttpServletResponse response;
+	
+	@Mock
+	FilterChain filterChain;
+	
+	@Mock
+	AsyncContext asyncContext;
+	
+	AsyncRateLimitingFilter sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new AsyncRateLimitingFilter(rateLimitService);
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+	}
+	
+	@After
+	public void tearDown() {
+		sut.destroy();
+	}
+	
+	private static RateLimitDescriptor descriptorOf(long currentBudget) {
+		return new RateLimitDescriptor("user1", 2, 1000).setCurrentBudget(currentBudget);
+	}
+	
+	@Test
+	public void completed_admitted() throws Exception {
+		// setup
+		when(rateLimitService.consumeAsync(request, 100))
+			.thenReturn(CompletableFuture.completedFuture(descriptorOf(900)));
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		// verify
+		verify(filterChain).doFilter(request, response);
+		verify(request, never()).startAsync(any(), any());
+		verify(response).setHeader("RateLimit-CurrentBudget", "900");
+	}
+	
+	@Test
+	public void completed_rejected() throws Exception {
+		// setup
+		when(rateLimitService.consumeAsync(request, 100))
+			.thenReturn(CompletableFuture.completedFuture(descriptorOf(-100)));
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		// verify
+		verify(filterChain, never()).doFilter(request, response);
+		verify(response).setHeader("Retry-After", "0");
+		verify(response).sendError(429);
+	}
+	
+	@Test
+	public void completedWithNull_passThrough() throws Exception {
+		// setup
+		when(rateLimitService.consumeAsync(request, 100))
+			.thenReturn(CompletableFuture.completedFuture(null));
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		// verify
+		verify(filterChain).doFilter(request, response);
+		verify(response, never()).setHeader(anyString(), anyString());
+	}
+	
+	@Test
+	public void pending_admitted() throws Exception {
+		// setup
+		CompletableFuture<RateLimitDescriptor> future = new CompletableFuture<>();
+		when(rateLimitService.consumeAsync(request, 100)).thenReturn(future);
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		// verify
+		verify(request).startAsync(request, response);
+		verify(asyncContext).setTimeout(anyLong());
+		verify(asyncContext, never()).dispatch();
+		// exercise
+		future.complete(descriptorOf(900));
+		// verify
+		verify(asyncContext).dispatch();
+		verify(asyncContext, never()).complete();
+		verify(filterChain, never()).doFilter(request, response);
+	}
+	
+	@Test
+	public void pending_rejected() throws Exception {
+		// setup
+		CompletableFuture<RateLimitDescriptor> future = new CompletableFuture<>();
+		when(rateLimitService.consumeAsync(request, 100)).thenReturn(future);
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		future.complete(descriptorOf(-100));
+		// verify
+		verify(response).sendError(429);
+		verify(asyncContext).complete();
+		verify(asyncContext, never()).dispatch();
+	}
+	
+	@Test
+	public void pending_failed_passThrough() throws Exception {
+		// setup
+		CompletableFuture<RateLimitDescriptor> future = new CompletableFuture<>();
+		when(rateLimitService.consumeAsync(request, 100)).thenReturn(future);
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		future.completeExceptionally(new IllegalStateException());
+		// verify
+		verify(asyncContext).dispatch();
+		verify(asyncContext).addListener(any(AsyncListener.class));
+	}
+	
+	@Test
+	public void completed_shaped() throws Exception {
+		// setup
+		sut.setMaxShapingDelay(1000L);
+		when(rateLimitService.consumeAsync(request, 100))
+			.thenReturn(CompletableFuture.completedFuture(descriptorOf(-100))); // wait 50 ms
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		// verify
+		verify(request).startAsync(request, response);
+		verify(asyncContext, timeout(1000L)).dispatch();
+		verify(filterChain, never()).doFilter(request, response);
+		verify(response, never()).sendError(429);
+		assertThat(sut.getShapedCount(), is(1L));
+	}
+	
+	@Test
+	public void completed_overMaxShapingDelay_rejected() throws Exception {
+		// setup
+		sut.setMaxShapingDelay(1000L);
+		when(rateLimitService.consumeAsync(request, 100))
+			.thenReturn(CompletableFuture.completedFuture(descriptorOf(-10000))); // wait 5000 ms
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		// verify
+		verify(response).sendError(429);
+		verify(request, never()).startAsync(any(), any());
+		assertThat(sut.getShapedCount(), is(0L));
+	}
+	
+	@Test
+	public void pending_shaped() throws Exception {
+		// setup
+		sut.setMaxShapingDelay(1000L);
+		CompletableFuture<RateLimitDescriptor> future = new CompletableFuture<>();
+		when(rateLimitService.consumeAsync(request, 100)).thenReturn(future);
+		// exercise
+		sut.doFilterInternal(request, response, filterChain);
+		future.complete(descriptorOf(-100));
+		// verify
+		verify(asyncContext, timeout(1000L)).dispatch();
+		verify(asyncContext, never()).complete();
+		verify(response, never()).sendError(429);
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link ClusteredRateLimitService}.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class ClusteredRateLimitServiceTest {
+	
+	private static final int NODES = 3;
+	
+	@Mock
+	HttpServletRequest request;
+	
+	List<String> nodes = new ArrayList<>();
+	
+	List<ClusteredRateLimitService> cluster = new ArrayList<>();
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		for (int i = 0; i < NODES; i++) {
+			nodes.add("localhost:" + freePort());
+		}
+		for (String node : nodes) {
+			ClusteredRateLimitService service = new ClusteredRateLimitService(node, nodes);
+			service.setTimeout(1000L);
+			service.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 10, 1000L)
+				.setCurrentBudget(1000L));
+			service.afterPropertiesSet();
+			cluster.add(service);
+		}
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for (ClusteredRateLimitService service : cluster) {
+			service.destroy();
+		}
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void consume_sharedAmongNodes() {
+		for (int i = 0; i < 10; i++) {
+			// setup
+			when(request.getRemoteAddr()).thenReturn("key" + i);
+			// exercise
+			cluster.get(0).consume(request, 100);
+			cluster.get(1).consume(request, 100);
+			RateLimitDescriptor actual = cluster.get(2).get(request);
+			// verify
+			assertThat(actual.getLimitationUnitName(), is("key" + i));
+			assertThat(actual.getCurrentBudget(), is(800L));
+		}
+		assertThat(cluster.stream().mapToLong(ClusteredRateLimitService::getFallbackCount).sum(), is(0L));
+	}
+	
+	@Test
+	public void consume_localOwner_notForwarded() {
+		// setup
+		String key = keyOwnedBy(0);
+		when(request.getRemoteAddr()).thenReturn(key);
+		// exercise
+		RateLimitDescriptor actual = cluster.get(0).consume(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(cluster.get(0).getRemoteCount(), is(0L));
+		assertThat(cluster.get(0).getLocal().size(), is(1));
+	}
+	
+	@Test
+	public void consume_ownerDown_fallsBackToScaledBudget() throws Exception {
+		// setup
+		String key = keyOwnedBy(1);
+		when(request.getRemoteAddr()).thenReturn(key);
+		cluster.get(1).destroy();
+		// exercise
+		RateLimitDescriptor actual = cluster.get(0).consume(request, 100);
+		// verify
+		assertThat(actual.getMaxBudget(), is(333L));
+		assertThat(actual.getCurrentBudget(), is(233L));
+		assertThat(cluster.get(0).getFallbackCount(), is(1L));
+	}
+	
+	@Test
+	public void consume_concurrent_allForwarded() throws Exception {
+		// setup
+		String key = keyOwnedBy(1);
+		when(request.getRemoteAddr()).thenReturn(key);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<RateLimitDescriptor>> futures = new ArrayList<>();
+			// exercise
+			for (int i = 0; i < 50; i++) {
+				futures.add(executor.submit(() -> cluster.get(0).consume(request, 10)));
+			}
+			for (Future<RateLimitDescriptor> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// verify
+		assertThat(cluster.get(0).getRemoteCount(), is(50L));
+		assertThat(cluster.get(1).get(request).getCurrentBudget(), is(500L));
+	}
+	
+	@Test
+	public void consume_tooLongName_fallsBackWithoutBreakingPeer() throws Exception {
+		// setup
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 70000; i++) {
+			sb.append('k');
+		}
+		String longKey = keyOwnedBy(1, sb.toString());
+		String key = keyOwnedBy(1);
+		when(request.getRemoteAddr()).thenReturn(longKey, key);
+		// exercise
+		RateLimitDescriptor fallback = cluster.get(0).consume(request, 100);
+		RateLimitDescriptor actual = cluster.get(0).consume(request, 100);
+		// verify
+		assertThat(fallback.getMaxBudget(), is(333L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(cluster.get(0).getFallbackCount(), is(1L));
+		assertThat(cluster.get(0).getRemoteCount(), is(1L));
+	}
+	
+	@Test
+	public void server_unknownHost_refused() throws Exception {
+		// setup
+		int port = freePort();
+		try (ClusterServer server = new ClusterServer(new InetSocketAddress("localhost", port),
+				Collections.singletonList("192.0.2.1"), 1, new InMemoryRateLimitService());
+				Socket socket = new Socket("localhost", port)) {
+			socket.setSoTimeout(1000);
+			// exercise
+			server.start();
+			int actual = socket.getInputStream().read();
+			// verify
+			assertThat(actual, is(-1));
+		}
+	}
+	
+	private String keyOwnedBy(int index) {
+		return keyOwnedBy(index, "key");
+	}
+	
+	private String keyOwnedBy(int index, String prefix) {
+		for (int i = 0;; i++) {
+			if (cluster.get(0).ownerOf(prefix + i).equals(nodes.get(index))) {
+				return prefix + i;
+			}
+		}
+	}
+	
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.sparwings.spring.web.httpexceptions.HttpServiceUnavailableException;
+import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+
+/**
+ * Test for {@link ConcurrencyLimitingInterceptor}.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class ConcurrencyLimitingInterceptorTest {
+	
+	@Mock
+	HttpServletRequest request1;
+	
+	@Mock
+	HttpServletRequest request2;
+	
+	@Mock
+	HttpServletResponse response;
+	
+	Object handler = new Object();
+	
+	ConcurrencyLimitingInterceptor sut;
+	
+	
+	@Before
+	public void setUp() {
+		stubAttributes(request1);
+		stubAttributes(request2);
+		sut = new ConcurrencyLimitingInterceptor(new AdaptiveConcurrencyLimit(1));
+	}
+	
+	@Test(expected = HttpTooManyRequestsException.class)
+	public void preHandle_overLimit_429() throws Exception {
+		// setup
+		sut.preHandle(request1, response, handler);
+		// exercise
+		sut.preHandle(request2, response, handler);
+	}
+	
+	@Test(expected = HttpServiceUnavailableException.class)
+	public void preHandle_overLimit_503() throws Exception {
+		// setup
+		sut.setServiceUnavailable(true);
+		sut.preHandle(request1, response, handler);
+		// exercise
+		sut.preHandle(request2, response, handler);
+	}
+	
+	@Test
+	public void afterCompletion_releasesPermit() throws Exception {
+		// setup
+		sut.preHandle(request1, response, handler);
+		// exercise
+		sut.afterCompletion(request1, response, handler, null);
+		// verify
+		assertThat(sut.getConcurrencyLimit().getInFlight(), is(0));
+		assertThat(sut.preHandle(request2, response, handler), is(true));
+		assertThat(sut.getRejectedCount(), is(0L));
+	}
+	
+	@Test
+	public void preHandle_asyncRedispatch_doesNotAcquireAgain() throws Exception {
+		// setup
+		sut.preHandle(request1, response, handler);
+		// exercise
+		boolean actual = sut.preHandle(request1, response, handler);
+		// verify
+		assertThat(actual, is(true));
+		assertThat(sut.getConcurrencyLimit().getInFlight(), is(1));
+	}
+	
+	private static void stubAttributes(HttpServletRequest request) {
+		Map<String, Object> attributes = new HashMap<>();
+		doAnswer(inv -> attributes.put(inv.getArgument(0), inv.getArgument(1)))
+			.when(request).setAttribute(anyString(), any());
+		doAnswer(inv -> attributes.remove(inv.<String> getArgument(0)))
+			.when(request).removeAttribute(anyString());
+		when(request.getAttribute(anyString())).thenAnswer(inv -> attributes.get(inv.<String> getArgument(0)));
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+import jp.xet.sparwings.spring.web.ratelimiter.FallbackRateLimitService.CircuitState;
+
+/**
+ * Test for {@link FallbackRateLimitService}.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class FallbackRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	LatencyRedisTemplate redisTemplate;
+	
+	FallbackRateLimitService sut;
+	
+	
+	@Before
+	public void setUp() {
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		redisTemplate = new LatencyRedisTemplate();
+		RedisRateLimitService primary = new RedisRateLimitService(redisTemplate);
+		primary.setUseScript(true);
+		primary.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 20, 1000L));
+		sut = new FallbackRateLimitService(primary, 0.1);
+		sut.setTimeout(50L);
+		sut.setFailureThreshold(3);
+		sut.setOpenDuration(1000L);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void consume_primary() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.getCircuitState(), is(CircuitState.CLOSED));
+		assertThat(sut.getFallbackCount(), is(0L));
+	}
+	
+	@Test
+	public void consume_slowPrimary_fallsBackToScaledBudget() {
+		// setup
+		redisTemplate.latency = 500L;
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10);
+		// verify
+		assertThat(actual.getMaxBudget(), is(100L));
+		assertThat(actual.getFillRate(), is(2L));
+		assertThat(actual.getCurrentBudget(), is(90L));
+		assertThat(sut.getTimeoutCount(), is(1L));
+		assertThat(sut.getFallbackCount(), is(1L));
+		assertThat(sut.getCircuitState(), is(CircuitState.CLOSED));
+	}
+	
+	@Test
+	public void consume_failingPrimary_fallsBack() {
+		// setup
+		redisTemplate.fail = true;
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(90L));
+		assertThat(sut.getFailureCount(), is(1L));
+		assertThat(sut.getFallbackCount(), is(1L));
+	}
+	
+	@Test
+	public void consume_consecutiveTimeouts_opensCircuit() {
+		// setup
+		redisTemplate.latency = 500L;
+		for (int i = 0; i < 3; i++) {
+			sut.consume(request, 10);
+		}
+		int calls = redisTemplate.calls.get();
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10);
+		// verify
+		assertThat(sut.getCircuitState(), is(CircuitState.OPEN));
+		assertThat(redisTemplate.calls.get(), is(calls));
+		assertThat(actual.getCurrentBudget(), is(60L));
+		assertThat(sut.getTimeoutCount(), is(3L));
+		assertThat(sut.getFallbackCount(), is(4L));
+	}
+	
+	@Test
+	public void consume_afterOpenDuration_closesCircuitOnSuccess() {
+		// setup
+		redisTemplate.fail = true;
+		for (int i = 0; i < 3; i++) {
+			sut.consume(request, 10);
+		}
+		assertThat(sut.getCircuitState(), is(CircuitState.OPEN));
+		redisTemplate.fail = false;
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L)));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.getCircuitState(), is(CircuitState.CLOSED));
+	}
+	
+	@Test
+	public void consume_afterOpenDuration_reopensCircuitOnFailure() {
+		// setup
+		redisTemplate.fail = true;
+		for (int i = 0; i < 3; i++) {
+			sut.consume(request, 10);
+		}
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L)));
+		int calls = redisTemplate.calls.get();
+		// exercise
+		sut.consume(request, 10);
+		sut.consume(request, 10);
+		// verify
+		assertThat(redisTemplate.calls.get(), is(calls + 1));
+		assertThat(sut.getCircuitState(), is(CircuitState.OPEN));
+	}
+	
+	@Test
+	public void consume_afterOpenDuration_interruptedTrialDoesNotStickHalfOpen() {
+		// setup
+		redisTemplate.fail = true;
+		for (int i = 0; i < 3; i++) {
+			sut.consume(request, 10);
+		}
+		redisTemplate.fail = false;
+		redisTemplate.latency = 500L;
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L)));
+		Thread.currentThread().interrupt();
+		sut.consume(request, 10);
+		assertThat(Thread.interrupted(), is(true));
+		redisTemplate.latency = 0L;
+		assertThat(sut.getCircuitState(), is(CircuitState.OPEN));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.getCircuitState(), is(CircuitState.CLOSED));
+	}
+	
+	
+	/**
+	 * {@link RedisTemplate} which evaluates scripts as if the bucket was always full, with injected latency.
+	 */
+	private static class LatencyRedisTemplate extends RedisTemplate<String, Long> {
+		
+		volatile long latency;
+		
+		volatile boolean fail;
+		
+		final AtomicInteger calls = new AtomicInteger();
+		
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+			calls.incrementAndGet();
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (fail) {
+				throw new IllegalStateException("redis is down");
+			}
+			return (T) args[1]; // carma = consumption
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link HashedTimerWheel}.
+ */
+public class HashedTimerWheelTest {
+	
+	HashedTimerWheel sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new HashedTimerWheel(5L, 4, "test-timer");
+	}
+	
+	@After
+	public void tearDown() {
+		sut.stop();
+	}
+	
+	@Test
+	public void schedule_runsInDeadlineOrder() throws Exception {
+		// setup
+		List<Integer> actual = new CopyOnWriteArrayList<>();
+		CountDownLatch latch = new CountDownLatch(3);
+		// exercise
+		sut.schedule(() -> {
+			actual.add(3);
+			latch.countDown();
+		}, 150L);
+		sut.schedule(() -> {
+			actual.add(1);
+			latch.countDown();
+		}, 10L);
+		sut.schedule(() -> {
+			actual.add(2);
+			latch.countDown();
+		}, 80L);
+		// verify
+		assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+		assertThat(actual, contains(1, 2, 3));
+	}
+	
+	@Test
+	public void schedule_notBeforeDelay_beyondWheel() throws Exception {
+		// setup
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		// exercise
+		sut.schedule(latch::countDown, 100L); // 20 ticks, 5 rounds of the wheel
+		// verify
+		assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertThat(elapsedMillis, is(greaterThanOrEqualTo(100L)));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void schedule_afterStop() {
+		// setup
+		sut.schedule(() -> {
+			// nothing to do
+		}, 10L);
+		sut.stop();
+		// exercise
+		sut.schedule(() -> {
+			// nothing to do
+		}, 10L);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link HeavyHitters}.
+ */
+public class HeavyHittersTest {
+	
+	@Test
+	public void top_exactWithinCapacity() {
+		// setup
+		HeavyHitters sut = new HeavyHitters(10);
+		for (int i = 0; i < 3; i++) {
+			sut.offer("a");
+		}
+		sut.offer("b");
+		// exercise
+		List<HeavyHitters.Counter> actual = sut.top(5);
+		// verify
+		assertThat(actual.size(), is(2));
+		assertThat(actual.get(0).getKey(), is("a"));
+		assertThat(actual.get(0).getCount(), is(3L));
+		assertThat(actual.get(0).getError(), is(0L));
+		assertThat(actual.get(1).getKey(), is("b"));
+	}
+	
+	@Test
+	public void top_heavyHittersSurviveLongTail() {
+		// setup
+		HeavyHitters sut = new HeavyHitters(20); // guarantees keys over 1/20 of total
+		// exercise
+		for (int i = 0; i < 10000; i++) {
+			sut.offer("tail-" + i);
+			if (i % 4 == 0) {
+				sut.offer("heavy1");
+			}
+			if (i % 8 == 0) {
+				sut.offer("heavy2");
+			}
+		}
+		List<HeavyHitters.Counter> actual = sut.top(2);
+		// verify
+		assertThat(actual.get(0).getKey(), is("heavy1"));
+		assertThat(actual.get(0).getCount(), is(greaterThanOrEqualTo(2500L)));
+		assertThat(actual.get(1).getKey(), is("heavy2"));
+		assertThat(actual.get(1).getCount(), is(greaterThanOrEqualTo(1250L)));
+		assertThat(sut.top(100).size(), is(20));
+	}
+	
+	@Test
+	public void top_stripedConcurrentOffers_merged() throws Exception {
+		// setup
+		HeavyHitters sut = new HeavyHitters(64, 4);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		// exercise
+		for (int t = 0; t < 8; t++) {
+			int thread = t;
+			executor.execute(() -> {
+				for (int i = 0; i < 10000; i++) {
+					sut.offer("tail-" + thread + "-" + i);
+					if (i % 4 == 0) {
+						sut.offer("heavy");
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+		List<HeavyHitters.Counter> actual = sut.top(100);
+		// verify
+		assertThat(actual.size(), is(64));
+		assertThat(actual.get(0).getKey(), is("heavy"));
+		assertThat(actual.get(0).getCount(), is(greaterThanOrEqualTo(20000L)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void construct_stripesOverCapacity() {
+		// exercise
+		new HeavyHitters(4, 8);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void construct_zeroCapacity() {
+		// exercise
+		new HeavyHitters(0);
+	}
+}
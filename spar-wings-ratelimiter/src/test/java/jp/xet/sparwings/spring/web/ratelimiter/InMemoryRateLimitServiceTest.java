@@ -17,9 +17,13 @@ package jp.xet.sparwings.spring.web.ratelimiter;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -148,4 +152,155 @@ public class InMemoryRateLimitServiceTest {
 		assertThat(actual.getFillRate(), is(2L));
 		assertThat(actual.getCurrentBudget(), is(500L));
 	}
+	
+	@Test
+	public void consume10_50threads_50units() throws InterruptedException {
+		// setup
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		int threadCount = 50;
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(threadCount);
+		ExecutorService ex = Executors.newFixedThreadPool(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			HttpServletRequest req = mock(HttpServletRequest.class);
+			when(req.getRemoteAddr()).thenReturn("192.0.2." + i);
+			ex.submit(() -> {
+				try {
+					startLatch.await();
+				} catch (InterruptedException e) {
+					log.error("error", e);
+				}
+				// exercise
+				for (int j = 0; j < 10; j++) {
+					sut.consume(req, 10);
+				}
+				endLatch.countDown();
+			});
+		}
+		// exercise
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		startLatch.countDown();
+		endLatch.await();
+		// verify
+		RateLimitDescriptor actual = sut.get(request);
+		assertThat(actual.getLimitationUnitName(), is("192.0.2.123"));
+		assertThat(actual.getCurrentBudget(), is(1000L));
+		HttpServletRequest req0 = mock(HttpServletRequest.class);
+		when(req0.getRemoteAddr()).thenReturn("192.0.2.0");
+		assertThat(sut.get(req0).getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void get_doesNotConsume() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		// exercise
+		sut.get(request);
+		RateLimitDescriptor actual = sut.get(request);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void sweep_evictsFullBucket() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		// exercise
+		sut.sweep(0L);
+		// verify
+		assertThat(sut.size(), is(1));
+		assertThat(sut.getExpiredEvictionCount(), is(0L));
+		// exercise
+		sut.sweep(50L); // recover 100
+		// verify
+		assertThat(sut.size(), is(0));
+		assertThat(sut.getExpiredEvictionCount(), is(1L));
+		assertThat(sut.consume(request, 100).getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void consume_boundedByMaxKeys() {
+		// setup
+		List<Runnable> sweeps = new ArrayList<>();
+		sut.setSweepExecutor(sweeps::add);
+		sut.setMaxKeys(10);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			HttpServletRequest req = mock(HttpServletRequest.class);
+			when(req.getRemoteAddr()).thenReturn("192.0.2." + i);
+			sut.consume(req, 10);
+		}
+		// verify
+		assertThat(sut.size(), is(100)); // not swept on the request threads
+		assertThat(sweeps.size(), is(1));
+		// exercise
+		sweeps.get(0).run();
+		// verify
+		assertThat(sut.size() <= 10, is(true));
+		assertThat(sut.getCapacityEvictionCount(), is(100L - sut.size()));
+		assertThat(sut.getExpiredEvictionCount(), is(0L));
+	}
+	
+	@Test
+	public void consume_sweepIntervalZero_periodicSweepDisabled() {
+		// setup
+		sut.setSweepInterval(0);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			sut.consume(request, 10);
+		}
+		// verify
+		assertThat(sut.get(request).getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void consume100_adjust300() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		// exercise
+		RateLimitDescriptor actual = sut.adjust(request, 300);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(600L));
+		assertThat(sut.get(request).getCurrentBudget(), is(600L));
+	}
+	
+	@Test
+	public void consumeAll_admitted() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(descriptors(), new long[] { 100, 100 });
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(900L));
+		assertThat(actual.get(1).getCurrentBudget(), is(50L));
+	}
+	
+	@Test
+	public void consumeAll_rejected_noneDebited() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consumeAll(descriptors(), new long[] { 100, 100 });
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(descriptors(), new long[] { 100, 100 });
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(800L));
+		assertThat(actual.get(1).getCurrentBudget(), is(-50L));
+		List<RateLimitDescriptor> after = sut.consumeAll(descriptors(), new long[] { 0, 0 });
+		assertThat(after.get(0).getCurrentBudget(), is(900L));
+		assertThat(after.get(1).getCurrentBudget(), is(50L));
+	}
+	
+	private static List<RateLimitDescriptor> descriptors() {
+		return Arrays.asList(
+				new RateLimitDescriptor("user:user1", 2, 1000L).setCurrentBudget(1000L),
+				new RateLimitDescriptor("global", 2, 150L).setCurrentBudget(150L));
+	}
 }
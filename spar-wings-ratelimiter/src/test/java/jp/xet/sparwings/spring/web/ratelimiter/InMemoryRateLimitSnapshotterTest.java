@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link InMemoryRateLimitSnapshotter}.
+ */
+public class InMemoryRateLimitSnapshotterTest {
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	Path path;
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		path = temporaryFolder.getRoot().toPath().resolve("ratelimit.snapshot");
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void write_restore_refillsElapsed() throws Exception {
+		// setup
+		InMemoryRateLimitService before = createService();
+		before.consume(request("192.0.2.1"), 100);
+		before.consume(request("192.0.2.2"), 500);
+		assertThat(new InMemoryRateLimitSnapshotter(before, path).write(), is(2));
+		InMemoryRateLimitService after = createService();
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // recover 20
+		// exercise
+		int actual = new InMemoryRateLimitSnapshotter(after, path).restore();
+		// verify
+		assertThat(actual, is(2));
+		assertThat(after.get(request("192.0.2.1")).getCurrentBudget(), is(920L));
+		assertThat(after.get(request("192.0.2.2")).getCurrentBudget(), is(520L));
+		assertThat(after.get(request("192.0.2.3")).getCurrentBudget(), is(1000L));
+	}
+	
+	@Test
+	public void restore_dropsFullBuckets() throws Exception {
+		// setup
+		InMemoryRateLimitService before = createService();
+		before.consume(request("192.0.2.1"), 100);
+		before.consume(request("192.0.2.2"), 500);
+		new InMemoryRateLimitSnapshotter(before, path).write();
+		InMemoryRateLimitService after = createService();
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(100L))); // recover 200
+		// exercise
+		int actual = new InMemoryRateLimitSnapshotter(after, path).restore();
+		// verify
+		assertThat(actual, is(1));
+		assertThat(after.size(), is(1));
+		assertThat(after.get(request("192.0.2.2")).getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void restore_noFile() throws Exception {
+		// exercise
+		int actual = new InMemoryRateLimitSnapshotter(createService(), path).restore();
+		// verify
+		assertThat(actual, is(0));
+	}
+	
+	@Test(expected = IOException.class)
+	public void restore_invalidFile() throws Exception {
+		// setup
+		Files.write(path, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 });
+		// exercise
+		new InMemoryRateLimitSnapshotter(createService(), path).restore();
+	}
+	
+	@Test(expected = IOException.class)
+	public void restore_truncatedFile() throws Exception {
+		// setup
+		InMemoryRateLimitService before = createService();
+		before.consume(request("192.0.2.1"), 100);
+		new InMemoryRateLimitSnapshotter(before, path).write();
+		byte[] bytes = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(bytes, bytes.length - 8));
+		// exercise
+		new InMemoryRateLimitSnapshotter(createService(), path).restore();
+	}
+	
+	@Test
+	public void afterPropertiesSet_invalidFile_startsEmpty() throws Exception {
+		// setup
+		Files.write(path, new byte[] { 1, 2, 3 });
+		InMemoryRateLimitService service = createService();
+		// exercise
+		new InMemoryRateLimitSnapshotter(service, path).afterPropertiesSet();
+		// verify
+		assertThat(service.size(), is(0));
+	}
+	
+	private static InMemoryRateLimitService createService() {
+		InMemoryRateLimitService service = new InMemoryRateLimitService();
+		service.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		return service;
+	}
+	
+	private static HttpServletRequest request(String remoteAddr) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRemoteAddr()).thenReturn(remoteAddr);
+		return request;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link InMemorySlidingWindowRateLimitService}.
+ */
+@Slf4j
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class InMemorySlidingWindowRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	InMemorySlidingWindowRateLimitService sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new InMemorySlidingWindowRateLimitService();
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void consume100() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(actual.getFillRate(), is(2L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void consume100_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void consume100_sameWindow_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // window is 500ms
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void consume100_nextWindow_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(600L))); // previous window weighted 80%
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(720L));
+	}
+	
+	@Test
+	public void consume100_afterNextWindow_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L))); // previous window is empty
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(800L));
+	}
+	
+	@Test
+	public void consume1000_consume1_rejectedWithoutDebit() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 1000);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 1);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(-1L));
+		assertThat(sut.get(request).getCurrentBudget(), is(0L));
+	}
+	
+	@Test
+	public void consume1000_adjust100_debitedEvenIfExhausted() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 1000);
+		// exercise
+		RateLimitDescriptor actual = sut.adjust(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(-100L));
+		assertThat(sut.get(request).getCurrentBudget(), is(-100L));
+	}
+	
+	@Test
+	public void consume10_50threads() throws InterruptedException {
+		// setup
+		int threadCount = 50;
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(threadCount);
+		ExecutorService ex = Executors.newFixedThreadPool(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			ex.submit(() -> {
+				try {
+					startLatch.await();
+				} catch (InterruptedException e) {
+					log.error("error", e);
+				}
+				// exercise
+				sut.consume(request, 10);
+				endLatch.countDown();
+			});
+		}
+		// exercise
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		startLatch.countDown();
+		endLatch.await();
+		RateLimitDescriptor actual = sut.get(request);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(500L));
+	}
+	
+	@Test
+	public void sweep() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		// exercise
+		sut.sweep(1000L);
+		// verify
+		assertThat(sut.get(request).getCurrentBudget(), is(1000L));
+	}
+	
+	@Test
+	public void consume_boundedByMaxKeys() {
+		// setup
+		List<Runnable> sweeps = new ArrayList<>();
+		sut.setSweepExecutor(sweeps::add);
+		sut.setMaxKeys(10);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			HttpServletRequest req = mock(HttpServletRequest.class);
+			when(req.getRemoteAddr()).thenReturn("192.0.2." + i);
+			sut.consume(req, 10);
+		}
+		// verify
+		assertThat(sut.size(), is(100)); // not swept on the request threads
+		assertThat(sweeps.size(), is(1));
+		// exercise
+		sweeps.get(0).run();
+		// verify
+		assertThat(sut.size() <= 10, is(true));
+	}
+	
+	@Test
+	public void consume_sweepIntervalZero_periodicSweepDisabled() {
+		// setup
+		sut.setSweepInterval(0);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			sut.consume(request, 10);
+		}
+		// verify
+		assertThat(sut.get(request).getCurrentBudget(), is(900L));
+	}
+}
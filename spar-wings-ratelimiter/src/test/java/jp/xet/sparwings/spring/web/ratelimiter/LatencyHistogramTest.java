@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+	
+	@Test
+	public void buckets_coverWholeRange() {
+		// verify
+		for (int i = 1; i < 248; i++) {
+			assertThat(LatencyHistogram.indexOf(LatencyHistogram.upperBoundOf(i - 1) + 1), is(i));
+		}
+		assertThat(LatencyHistogram.upperBoundOf(247), is(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void empty() {
+		// setup
+		LatencyHistogram sut = new LatencyHistogram();
+		// verify
+		assertThat(sut.getCount(), is(0L));
+		assertThat(sut.getMean(), is(0d));
+		assertThat(sut.getValueAtPercentile(99), is(0L));
+	}
+	
+	@Test
+	public void percentiles() {
+		// setup
+		LatencyHistogram sut = new LatencyHistogram();
+		// exercise
+		for (int i = 1; i <= 1000; i++) {
+			sut.record(i * 1000L);
+		}
+		// verify
+		assertThat(sut.getCount(), is(1000L));
+		assertThat(sut.getMean(), is(500500d));
+		assertThat(sut.getMax(), is(1000000L));
+		assertThat(sut.getValueAtPercentile(50), is(greaterThanOrEqualTo(500000L)));
+		assertThat(sut.getValueAtPercentile(50), is(lessThanOrEqualTo(625000L)));
+		assertThat(sut.getValueAtPercentile(99), is(greaterThanOrEqualTo(990000L)));
+		assertThat(sut.getValueAtPercentile(100), is(1000000L));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link LeasingRateLimitService}.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class LeasingRateLimitServiceTest {
+	
+	private static final String CARMA_KEY = "ratelimit:c:user1";
+	
+	@Mock
+	HttpServletRequest request;
+	
+	LeasingRateLimitService sut;
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration("localhost", 6379);
+		configuration.setDatabase(5);
+		JedisConnectionFactory jedisConnectionFactory = new JedisConnectionFactory(configuration);
+		jedisConnectionFactory.afterPropertiesSet();
+		RedisTemplate<String, Long> redisTemplate = new RedisTemplate<>();
+		redisTemplate.setKeySerializer(new StringRedisSerializer());
+		redisTemplate.setValueSerializer(new GenericToStringSerializer<>(Long.class));
+		redisTemplate.setConnectionFactory(jedisConnectionFactory);
+		redisTemplate.afterPropertiesSet();
+		
+		sut = new LeasingRateLimitService(redisTemplate);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000));
+		sut.setExecutor(Runnable::run); // renew synchronously
+		when(request.getRemoteAddr()).thenReturn("192.0.2.123");
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+		sut.getRedisTemplate().execute((RedisCallback<Boolean>) connection -> {
+			connection.flushDb();
+			return true;
+		});
+	}
+	
+	@Test
+	public void consume10_leases100() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(90L));
+		assertThat(sut.getRedisTemplate().opsForValue().get(CARMA_KEY), is(100L));
+	}
+	
+	@Test
+	public void consume10x5_consumedLocally() {
+		// exercise
+		RateLimitDescriptor actual = null;
+		for (int i = 0; i < 5; i++) {
+			actual = sut.consume(request, 10);
+		}
+		// verify
+		assertThat(actual.getCurrentBudget(), is(50L));
+		assertThat(sut.getRedisTemplate().opsForValue().get(CARMA_KEY), is(100L));
+	}
+	
+	@Test
+	public void consume10x6_renewed() {
+		// exercise
+		for (int i = 0; i < 6; i++) {
+			sut.consume(request, 10);
+		}
+		// verify
+		assertThat(sut.get(request).getCurrentBudget(), is(140L));
+		assertThat(sut.getRedisTemplate().opsForValue().get(CARMA_KEY), is(200L));
+	}
+	
+	@Test
+	public void consume10x200_admissionNeverExceedsBudget() {
+		// exercise
+		int admitted = 0;
+		for (int i = 0; i < 200; i++) {
+			if (sut.consume(request, 10).getCurrentBudget() >= 0) {
+				admitted++;
+			}
+		}
+		// verify
+		assertThat(admitted, is(100));
+		assertThat(sut.getRedisTemplate().opsForValue().get(CARMA_KEY), is(1000L));
+	}
+	
+	@Test
+	public void exhausted_backsOffUntilRefilled() {
+		// setup
+		for (int i = 0; i < 101; i++) {
+			sut.consume(request, 10);
+		}
+		// refilled behind this node, which must not be noticed until the deficit is expected to be refilled
+		sut.getRedisTemplate().delete(Arrays.asList("ratelimit:t:user1", CARMA_KEY));
+		// exercise
+		RateLimitDescriptor backingOff = sut.consume(request, 10);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(5L))); // 10 tokens are refilled
+		RateLimitDescriptor retried = sut.consume(request, 10);
+		// verify
+		assertThat(backingOff.getCurrentBudget(), is(-10L));
+		assertThat(retried.getCurrentBudget(), is(90L));
+	}
+	
+	@Test
+	public void returnIdleLeases() {
+		// setup
+		sut.setLeaseIdleTimeout(0L);
+		sut.consume(request, 10);
+		// exercise
+		sut.returnIdleLeases();
+		// verify
+		assertThat(sut.get(request).getCurrentBudget(), is(0L));
+		assertThat(sut.getRedisTemplate().opsForValue().get(CARMA_KEY), is(10L)); // 90 tokens returned
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.web.method.HandlerMethod;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimited.Limit;
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimited.Scope;
+
+/**
+ * Test for {@link RateLimitPlan}.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class RateLimitPlanTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@Mock
+	Principal principal;
+	
+	
+	@Before
+	public void setUp() {
+		when(request.getRemoteAddr()).thenReturn("192.0.2.123");
+		when(principal.getName()).thenReturn("user1");
+	}
+	
+	@Test
+	public void compile_noAnnotation() throws Exception {
+		// exercise
+		RateLimitPlan actual = RateLimitPlan.compile(handlerMethod("plain"));
+		// verify
+		assertThat(actual.getCost(), is(100));
+		assertThat(actual.isMultiLimit(), is(false));
+	}
+	
+	@Test
+	public void compile_singleCost() throws Exception {
+		// exercise
+		RateLimitPlan actual = RateLimitPlan.compile(handlerMethod("single"));
+		// verify
+		assertThat(actual.getCost(), is(200));
+		assertThat(actual.isMultiLimit(), is(false));
+	}
+	
+	@Test
+	public void resolve_authenticated() throws Exception {
+		// setup
+		when(request.getUserPrincipal()).thenReturn(principal);
+		RateLimitPlan plan = RateLimitPlan.compile(handlerMethod("multi"));
+		// exercise
+		RateLimitPlan.Resolved actual = plan.resolve(request);
+		// verify
+		assertThat(plan.isMultiLimit(), is(true));
+		assertThat(actual.getDescriptors().size(), is(3));
+		assertThat(actual.getDescriptors().get(0).getLimitationUnitName(), is("user:user1"));
+		assertThat(actual.getDescriptors().get(0).getMaxBudget(), is(1000L));
+		assertThat(actual.getDescriptors().get(1).getLimitationUnitName(), is("ip:192.0.2.123"));
+		assertThat(actual.getDescriptors().get(2).getLimitationUnitName(), is("global:search"));
+		assertThat(actual.getDescriptors().get(2).getFillRate(), is(100L));
+		assertThat(actual.getCosts()[0], is(10L));
+		assertThat(actual.getCosts()[1], is(20L));
+		assertThat(actual.getCosts()[2], is(1L));
+	}
+	
+	@Test
+	public void resolve_anonymous_skipsUserLimit() throws Exception {
+		// setup
+		RateLimitPlan plan = RateLimitPlan.compile(handlerMethod("multi"));
+		// exercise
+		RateLimitPlan.Resolved actual = plan.resolve(request);
+		// verify
+		assertThat(actual.getDescriptors().size(), is(2));
+		assertThat(actual.getDescriptors().get(0).getLimitationUnitName(), is("ip:192.0.2.123"));
+		assertThat(actual.getCosts().length, is(2));
+		assertThat(actual.getCosts()[0], is(20L));
+	}
+	
+	private static HandlerMethod handlerMethod(String name) throws NoSuchMethodException {
+		return new HandlerMethod(new Handlers(), Handlers.class.getMethod(name));
+	}
+	
+	
+	@SuppressWarnings("javadoc")
+	public static class Handlers {
+		
+		public void plain() {
+		}
+		
+		@RateLimited(200)
+		public void single() {
+		}
+		
+		@RateLimited(limits = {
+			@Limit(scope = Scope.USER, cost = 10, fillRate = 1, maxBudget = 1000),
+			@Limit(scope = Scope.IP, cost = 20),
+			@Limit(scope = Scope.GLOBAL, name = "search", cost = 1, fillRate = 100, maxBudget = 100000)
+		})
+		public void multi() {
+		}
+	}
+}
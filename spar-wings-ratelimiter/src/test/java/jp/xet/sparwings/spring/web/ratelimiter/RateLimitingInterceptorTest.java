@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.method.HandlerMethod;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+
+/**
+ * Test for {@link RateLimitingInterceptor}.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class RateLimitingInterceptorTest {
+	
+	@Mock
+	RateLimitService rateLimitService;
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@Mock
+	HttpServletResponse response;
+	
+	Object handler = new Object();
+	
+	Map<String, Object> attributes = new HashMap<>();
+	
+	RateLimitingInterceptor sut;
+	
+	
+	@Before
+	public void setUp() {
+		doAnswer(inv -> attributes.put(inv.getArgument(0), inv.getArgument(1)))
+			.when(request).setAttribute(anyString(), any());
+		doAnswer(inv -> attributes.remove(inv.<String> getArgument(0)))
+			.when(request).removeAttribute(anyString());
+		when(request.getAttribute(anyString())).thenAnswer(inv -> attributes.get(inv.<String> getArgument(0)));
+		when(rateLimitService.consume(any(), anyLong()))
+			.thenReturn(new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(900L));
+		sut = new RateLimitingInterceptor(rateLimitService);
+	}
+	
+	@Test
+	public void afterCompletion_chargesLatency() throws Exception {
+		// setup
+		sut.setLatencyCostPerMillisec(1.0);
+		sut.preHandle(request, response, handler);
+		Thread.sleep(20L);
+		// exercise
+		sut.afterCompletion(request, response, handler, null);
+		// verify
+		verify(rateLimitService).consume(request, 100L);
+		verify(rateLimitService).adjust(eq(request), longThat(cost -> cost >= 20L));
+		assertThat(attributes.isEmpty(), is(true));
+	}
+	
+	@Test
+	public void afterCompletion_chargesLatencyToAllLimits() throws Exception {
+		// setup
+		MultiRateLimitService multiRateLimitService =
+				mock(MultiRateLimitService.class, withSettings().extraInterfaces(RateLimitService.class));
+		when(multiRateLimitService.consumeAll(any(), any())).thenAnswer(inv -> inv.getArgument(0));
+		sut = new RateLimitingInterceptor((RateLimitService) multiRateLimitService);
+		sut.setLatencyCostPerMillisec(1.0);
+		Object multi = new HandlerMethod(new RateLimitPlanTest.Handlers(),
+				RateLimitPlanTest.Handlers.class.getMethod("multi"));
+		sut.preHandle(request, response, multi);
+		Thread.sleep(20L);
+		// exercise
+		sut.afterCompletion(request, response, multi, null);
+		// verify
+		verify(multiRateLimitService).adjustAll(argThat(descriptors -> descriptors.size() == 2),
+				argThat(costs -> costs.length == 2 && costs[0] >= 20L && costs[1] == costs[0]));
+		verify((RateLimitService) multiRateLimitService, never()).adjust(any(), anyLong());
+		assertThat(attributes.isEmpty(), is(true));
+	}
+	
+	@Test
+	public void afterCompletion_disabled() throws Exception {
+		// setup
+		sut.preHandle(request, response, handler);
+		Thread.sleep(20L);
+		// exercise
+		sut.afterCompletion(request, response, handler, null);
+		// verify
+		verify(rateLimitService, never()).adjust(any(), anyLong());
+		assertThat(attributes.isEmpty(), is(true));
+	}
+	
+	@Test
+	public void computeExtraCost() {
+		// setup
+		sut.setLatencyCostPerMillisec(2.0);
+		sut.setCpuTimeCostPerMillisec(10.0);
+		// exercise
+		long actual = sut.computeExtraCost(request, handler, 5000000L, 2000000L);
+		// verify
+		assertThat(actual, is(30L));
+	}
+	
+	@Test
+	public void computeExtraCost_cpuTimeUnavailable() {
+		// setup
+		sut.setLatencyCostPerMillisec(2.0);
+		sut.setCpuTimeCostPerMillisec(10.0);
+		// exercise
+		long actual = sut.computeExtraCost(request, handler, 5000000L, -1L);
+		// verify
+		assertThat(actual, is(10L));
+	}
+	
+	@Test
+	public void preHandle_recordsMetrics() throws Exception {
+		// setup
+		RateLimitMetrics metrics = new RateLimitMetrics();
+		sut.setMetrics(metrics);
+		sut.preHandle(request, response, handler);
+		when(rateLimitService.consume(any(), anyLong()))
+			.thenReturn(new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(-100L));
+		// exercise
+		try {
+			sut.preHandle(request, response, handler);
+			fail();
+		} catch (HttpTooManyRequestsException e) {
+			// expected
+		}
+		// verify
+		assertThat(metrics.getAllowedCount(), is(1L));
+		assertThat(metrics.getRejectedCount(), is(1L));
+		assertThat(metrics.getTopRejected(1).get(0).getKey(), is("user1"));
+		assertThat(metrics.getLatencies().get(rateLimitService.getClass().getSimpleName()).getCount(), is(2L));
+	}
+}
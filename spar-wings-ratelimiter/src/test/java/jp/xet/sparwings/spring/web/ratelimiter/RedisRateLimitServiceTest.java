@@ -19,6 +19,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -136,6 +138,25 @@ public class RedisRateLimitServiceTest {
 		assertThat(actual.getCurrentBudget(), is(800L));
 	}
 	
+	@Test
+	public void consume1_keptUntilRecovered() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 1);
+		// exercise
+		RateLimitDescriptor actual = sut.get(request);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(999L));
+	}
+	
+	@Test
+	public void consume1000_expiresWhenRecovered() {
+		// exercise
+		sut.consume(request, 1000);
+		// verify
+		assertThat(sut.getRedisTemplate().getExpire("ratelimit:c:user1"), is(1L)); // 500 ms, rounded up to seconds
+	}
+	
 	@Test
 	public void consume10_50threads() throws InterruptedException {
 		// setup
@@ -166,4 +187,48 @@ public class RedisRateLimitServiceTest {
 		assertThat(actual.getFillRate(), is(2L));
 		assertThat(actual.getCurrentBudget(), is(500L));
 	}
+	
+	@Test
+	public void consume100_adjust300() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		// exercise
+		RateLimitDescriptor actual = sut.adjust(request, 300);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(600L));
+		assertThat(sut.get(request).getCurrentBudget(), is(600L));
+	}
+	
+	@Test
+	public void consumeAll_admitted() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(descriptors(), new long[] { 100, 100 });
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(900L));
+		assertThat(actual.get(1).getCurrentBudget(), is(50L));
+	}
+	
+	@Test
+	public void consumeAll_rejected_noneDebited() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consumeAll(descriptors(), new long[] { 100, 100 });
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(descriptors(), new long[] { 100, 100 });
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(800L));
+		assertThat(actual.get(1).getCurrentBudget(), is(-50L));
+		List<RateLimitDescriptor> after = sut.consumeAll(descriptors(), new long[] { 0, 0 });
+		assertThat(after.get(0).getCurrentBudget(), is(900L));
+		assertThat(after.get(1).getCurrentBudget(), is(50L));
+	}
+	
+	private static List<RateLimitDescriptor> descriptors() {
+		return Arrays.asList(
+				new RateLimitDescriptor("user:user1", 2, 1000L).setCurrentBudget(1000L),
+				new RateLimitDescriptor("global", 2, 150L).setCurrentBudget(150L));
+	}
 }
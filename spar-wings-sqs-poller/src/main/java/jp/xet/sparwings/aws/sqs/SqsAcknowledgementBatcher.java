@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * 処理済みメッセージの削除をまとめて DeleteMessageBatch で行う
+ * 
+ * <p>{@link #acknowledge(String)} されたメッセージは、10 件たまるか {@code lingerMillis} が経過した時点で
+ * 1 回の DeleteMessageBatch にまとめて削除される。一部のエントリだけが失敗した場合は、そのエントリだけを
+ * {@code maxAttempts} 回まで再送する。送信者側の誤り（無効な receipt handle 等）は再送しない。</p>
+ * 
+ * <p>{@link #destroy()} の後に予約された削除は、呼び出し元スレッドで直ちに送信する。</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class SqsAcknowledgementBatcher implements DisposableBean {
+	
+	/** Maximum number of entries in single DeleteMessageBatch request */
+	static final int MAX_BATCH_SIZE = 10;
+	
+	private static final long DEFAULT_LINGER_MILLIS = 50L;
+	
+	private static final int DEFAULT_MAX_ATTEMPTS = 3;
+	
+	@Getter
+	private final AmazonSQS sqs;
+	
+	@Getter
+	private final String queueUrl;
+	
+	/**
+	 * 10 件に満たないエントリを送信するまでの待ち時間（ミリ秒）
+	 */
+	@Getter
+	@Setter
+	private long lingerMillis = DEFAULT_LINGER_MILLIS;
+	
+	/**
+	 * 1 エントリあたりの最大試行回数
+	 */
+	@Getter
+	@Setter
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	
+	private final List<Entry> pending = new ArrayList<>();
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sqs-ack-batcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final LongAdder requestCount = new LongAdder();
+	
+	private final LongAdder deletedCount = new LongAdder();
+	
+	private final LongAdder failedCount = new LongAdder();
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param sqs {@link AmazonSQS}
+	 * @param queueUrl 削除対象のキュー URL
+	 */
+	public SqsAcknowledgementBatcher(AmazonSQS sqs, String queueUrl) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+	}
+	
+	/**
+	 * メッセージの削除を予約する。
+	 * 
+	 * @param message 削除するメッセージ
+	 * @return 削除が完了した時点で完了する {@link CompletableFuture}
+	 */
+	public CompletableFuture<Void> acknowledge(Message message) {
+		return acknowledge(message.getReceiptHandle());
+	}
+	
+	/**
+	 * メッセージの削除を予約する。
+	 * 
+	 * @param receiptHandle 削除するメッセージの receipt handle
+	 * @return 削除が完了した時点で完了する {@link CompletableFuture}
+	 */
+	public CompletableFuture<Void> acknowledge(String receiptHandle) {
+		Entry entry = new Entry(receiptHandle);
+		enqueue(entry);
+		return entry.future;
+	}
+	
+	/**
+	 * 予約済みの削除を、呼び出し元スレッドですべて送信する。
+	 */
+	public void flush() {
+		List<Entry> batch;
+		while ((batch = take(1)) != null) {
+			send(batch);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		synchronized (pending) {
+			scheduler.shutdown();
+		}
+		flush();
+	}
+	
+	/**
+	 * 発行した DeleteMessageBatch リクエストの数を返す。
+	 * 
+	 * @return request count
+	 */
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+	
+	/**
+	 * 削除に成功したメッセージの数を返す。
+	 * 
+	 * @return deleted count
+	 */
+	public long getDeletedCount() {
+		return deletedCount.sum();
+	}
+	
+	/**
+	 * 再送を諦めたメッセージの数を返す。
+	 * 
+	 * @return failed count
+	 */
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+	
+	private void enqueue(Entry entry) {
+		synchronized (pending) {
+			pending.add(entry);
+			if (scheduler.isShutdown() == false) {
+				if (pending.size() == MAX_BATCH_SIZE) {
+					scheduler.execute(() -> drain(MAX_BATCH_SIZE));
+				} else if (pending.size() == 1) {
+					scheduler.schedule(() -> drain(1), lingerMillis, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+		}
+		// nothing drains the entries after destroy()
+		flush();
+	}
+	
+	private void drain(int minSize) {
+		List<Entry> batch;
+		while ((batch = take(minSize)) != null) {
+			send(batch);
+		}
+	}
+	
+	private List<Entry> take(int minSize) {
+		synchronized (pending) {
+			if (pending.isEmpty() || pending.size() < minSize) {
+				return null;
+			}
+			List<Entry> head = pending.subList(0, Math.min(MAX_BATCH_SIZE, pending.size()));
+			List<Entry> batch = new ArrayList<>(head);
+			head.clear();
+			return batch;
+		}
+	}
+	
+	private void send(List<Entry> batch) {
+		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batch.get(i).receiptHandle));
+		}
+		DeleteMessageBatchResult result;
+		try {
+			requestCount.increment();
+			result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+		} catch (AmazonClientException e) {
+			log.warn("DeleteMessageBatch for {} entries failed: {}", batch.size(), e.getMessage());
+			batch.forEach(entry -> retry(entry, e, true));
+			return;
+		} catch (RuntimeException e) { // NOPMD - futures must be completed on any failure
+			log.error("DeleteMessageBatch for {} entries failed", batch.size(), e);
+			failedCount.add(batch.size());
+			batch.forEach(entry -> entry.future.completeExceptionally(e));
+			return;
+		}
+		for (DeleteMessageBatchResultEntry successful : result.getSuccessful()) {
+			deletedCount.increment();
+			batch.get(Integer.parseInt(successful.getId())).future.complete(null);
+		}
+		for (BatchResultErrorEntry failed : result.getFailed()) {
+			Entry entry = batch.get(Integer.parseInt(failed.getId()));
+			AmazonServiceException cause = new AmazonServiceException(failed.getMessage());
+			cause.setErrorCode(failed.getCode());
+			retry(entry, cause, Boolean.TRUE.equals(failed.getSenderFault()) == false);
+		}
+		log.debug("{} SQS messages were deleted in batch", result.getSuccessful().size());
+	}
+	
+	private void retry(Entry entry, AmazonClientException cause, boolean retryable) {
+		entry.attempts++;
+		if (retryable && entry.attempts < maxAttempts) {
+			enqueue(entry);
+		} else {
+			failedCount.increment();
+			log.error("Failed to delete SQS message after {} attempts: {}", entry.attempts, cause.getMessage());
+			entry.future.completeExceptionally(cause);
+		}
+	}
+	
+	
+	@RequiredArgsConstructor
+	private static final class Entry {
+		
+		private final String receiptHandle;
+		
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		
+		private int attempts;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 受信結果に応じて、ロングポーリングの待ち時間と次の受信までの間隔を調整する
+ * 
+ * <p>{@link SqsMessagePoller#setPollingController(SqsAdaptivePollingController) pollingController} に設定すると、
+ * ReceiveMessage の {@code WaitTimeSeconds} は {@code waitTimeSeconds} の固定値ではなく、このクラスが決めた値になる。</p>
+ * 
+ * <ul>
+ *   <li>満杯の受信が続く間は、待ち時間を {@code minWaitTimeSeconds} まで半減させる。{@link SqsMessageReceiverGroup} は
+ *     満杯の受信を受けて受信スレッドを増やす。</li>
+ *   <li>空の受信が続く間は、待ち時間を {@code maxWaitTimeSeconds} に戻した上で、次の受信までの間隔を
+ *     {@code idleBackoffMillis} から {@code maxIdleBackoffMillis} まで指数的に空ける。</li>
+ *   <li>OverLimitException を受けた場合は、次の受信までの間隔を {@code throttleBackoffMillis} から
+ *     {@code maxThrottleBackoffMillis} まで指数的に空ける。</li>
+ * </ul>
+ * 
+ * <p>間隔には揺らぎ（0.5 倍から 1 倍）を加え、複数のポーラーが同時に受信を再開しないようにする。
+ * 1 件でもメッセージを受信すると、間隔は 0 に戻る。</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class SqsAdaptivePollingController {
+	
+	/** Maximum value of WaitTimeSeconds which SQS accepts */
+	static final int MAX_WAIT_TIME_SECONDS = 20;
+	
+	private static final int MAX_BACKOFF_SHIFT = 30;
+	
+	/**
+	 * 満杯の受信が続く場合の、ロングポーリングの待ち時間の下限（秒）
+	 */
+	@Getter
+	@Setter
+	private int minWaitTimeSeconds = 1;
+	
+	/**
+	 * ロングポーリングの待ち時間の上限（秒）
+	 */
+	@Getter
+	@Setter
+	private int maxWaitTimeSeconds = MAX_WAIT_TIME_SECONDS;
+	
+	/**
+	 * 空の受信が 1 回返った後の、次の受信までの間隔（ミリ秒）。{@code 0} の場合は空けない。
+	 */
+	@Getter
+	@Setter
+	private long idleBackoffMillis = 1000L;
+	
+	/**
+	 * 空の受信が続く場合の、次の受信までの間隔の上限（ミリ秒）
+	 */
+	@Getter
+	@Setter
+	private long maxIdleBackoffMillis = 20000L;
+	
+	/**
+	 * OverLimitException を 1 回受けた後の、次の受信までの間隔（ミリ秒）
+	 */
+	@Getter
+	@Setter
+	private long throttleBackoffMillis = 1000L;
+	
+	/**
+	 * OverLimitException が続く場合の、次の受信までの間隔の上限（ミリ秒）
+	 */
+	@Getter
+	@Setter
+	private long maxThrottleBackoffMillis = 60000L;
+	
+	private int waitTimeSeconds = -1;
+	
+	private int idleStreak;
+	
+	private int throttleStreak;
+	
+	private final LongAdder idleCount = new LongAdder();
+	
+	private final LongAdder throttledCount = new LongAdder();
+	
+	private final LongAdder pausedMillis = new LongAdder();
+	
+	
+	/**
+	 * 次の ReceiveMessage の {@code WaitTimeSeconds} を返す。
+	 * 
+	 * @return ロングポーリングの待ち時間（秒）
+	 */
+	public synchronized int nextWaitTimeSeconds() {
+		if (waitTimeSeconds < 0) {
+			waitTimeSeconds = maxWaitTimeSeconds;
+		}
+		return waitTimeSeconds;
+	}
+	
+	/**
+	 * 受信の結果を記録する。
+	 * 
+	 * @param received 受信したメッセージの数
+	 * @param requested 要求したメッセージの数（{@code MaxNumberOfMessages}）
+	 */
+	public synchronized void onReceived(int received, int requested) {
+		throttleStreak = 0;
+		if (received == 0) {
+			idleCount.increment();
+			idleStreak++;
+			waitTimeSeconds = maxWaitTimeSeconds;
+			return;
+		}
+		idleStreak = 0;
+		if (received >= requested) {
+			waitTimeSeconds = Math.max(minWaitTimeSeconds, nextWaitTimeSeconds() / 2);
+		}
+	}
+	
+	/**
+	 * OverLimitException を受けたことを記録する。
+	 */
+	public synchronized void onThrottled() {
+		throttledCount.increment();
+		throttleStreak++;
+	}
+	
+	/**
+	 * 次の受信までの間隔だけスリープする。
+	 * 
+	 * @throws InterruptedException 割り込まれた場合
+	 */
+	public void pause() throws InterruptedException {
+		long delay = nextDelayMillis();
+		if (delay > 0) {
+			log.trace("Pause SQS polling for {} ms", delay);
+			pausedMillis.add(delay);
+			Thread.sleep(delay);
+		}
+	}
+	
+	/**
+	 * 次の受信までの間隔を、揺らぎを加えて返す。
+	 * 
+	 * @return 間隔（ミリ秒）。空ける必要がなければ {@code 0}
+	 */
+	public synchronized long nextDelayMillis() {
+		long base;
+		if (throttleStreak > 0) {
+			base = backoff(throttleBackoffMillis, maxThrottleBackoffMillis, throttleStreak);
+		} else if (idleStreak > 0) {
+			base = backoff(idleBackoffMillis, maxIdleBackoffMillis, idleStreak);
+		} else {
+			return 0;
+		}
+		if (base <= 1) {
+			return base;
+		}
+		long half = base / 2;
+		return base - half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+	
+	/**
+	 * 空の受信の回数を返す。
+	 * 
+	 * @return idle count
+	 */
+	public long getIdleCount() {
+		return idleCount.sum();
+	}
+	
+	/**
+	 * OverLimitException を受けた回数を返す。
+	 * 
+	 * @return throttled count
+	 */
+	public long getThrottledCount() {
+		return throttledCount.sum();
+	}
+	
+	/**
+	 * {@link #pause()} でスリープした時間の合計を返す。
+	 * 
+	 * @return paused millisec
+	 */
+	public long getPausedMillis() {
+		return pausedMillis.sum();
+	}
+	
+	private static long backoff(long initial, long max, int streak) {
+		if (initial <= 0) {
+			return 0;
+		}
+		int shift = Math.min(streak - 1, MAX_BACKOFF_SHIFT);
+		return initial > (max >> shift) ? max : Math.min(max, initial << shift);
+	}
+}
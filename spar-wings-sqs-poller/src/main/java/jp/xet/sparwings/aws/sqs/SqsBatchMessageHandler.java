@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * 受信した SQS メッセージをまとめて処理するハンドラ
+ * 
+ * @since 1.2
+ * @author daisuke
+ * @see SqsMessagePoller#forBatchHandler(com.amazonaws.services.sqs.AmazonSQS,
+ *     org.springframework.retry.support.RetryTemplate, String, SqsBatchMessageHandler, String)
+ */
+@FunctionalInterface
+public interface SqsBatchMessageHandler {
+	
+	/**
+	 * メッセージをまとめて処理する。
+	 * 
+	 * <p>処理に成功したメッセージはまとめて削除され、失敗したメッセージは可視性タイムアウトの経過後に
+	 * 再配信される。例外を投げた場合は、すべてのメッセージの処理に失敗したものとみなす。</p>
+	 * 
+	 * @param messages 受信したメッセージ（最大 10 件）
+	 * @return 処理に失敗したメッセージの ID。すべて成功した場合は空のコレクション
+	 */
+	Collection<String> handle(List<Message> messages);
+}
@@ -16,15 +16,28 @@
 package jp.xet.sparwings.aws.sqs;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -35,7 +48,15 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.util.DigestUtils;
 
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.OverLimitException;
@@ -64,22 +85,43 @@ public class SqsMessagePoller { // NOPMD - cc
 	@Getter
 	private final Consumer<Message> messageHandler;
 	
+	/**
+	 * メッセージをまとめて処理するハンドラ。{@link #forBatchHandler} で生成した場合以外は {@code null}
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	private final SqsBatchMessageHandler batchMessageHandler;
+	
 	/**
 	 * メッセージハンドラーの名称（ログ出力用）
-	 *
+	 * 
 	 * <p>この SqsMessagePoller のインスタンスが具体的にどのような処理を行うのかが判断できる文字列を指定します</p>
 	 */
 	private String handlerName;
 	
+	private static final long PERMIT_WAIT_MILLIS = 1000L;
+	
+	private static final int DEFAULT_MAX_CONCURRENT_MESSAGE_GROUPS = 10;
+	
+	private static final String MESSAGE_GROUP_ID = "MessageGroupId";
+	
+	private static final Runnable NOOP = () -> {
+		// nothing to do
+	};
+	
+	private ExecutorService defaultExecutor = Executors.newCachedThreadPool(SqsMessagePoller::newHandlerThread);
+	
 	@Getter
 	@Setter
-	private ExecutorService executor = Executors.newCachedThreadPool(r -> {
-		Thread thread = new Thread(r);
-		thread.setUncaughtExceptionHandler((t, e) -> {
-			synchronized (SqsMessagePoller.class) {
-				log.error("Uncaught exception in thread '{}': {}", t.getName(), e.getMessage());
-			}
-		});
+	private ExecutorService executor = defaultExecutor;
+	
+	/**
+	 * {@link #loop()} の中で、ハンドラの完了を待つスレッドのプール。1 回の {@link #loop()} で受信したメッセージの数に限られる。
+	 */
+	private ExecutorService followupExecutor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "sqs-followup");
+		thread.setDaemon(true);
 		return thread;
 	});
 	
@@ -99,30 +141,236 @@ public class SqsMessagePoller { // NOPMD - cc
 	@Setter
 	private int maxNumberOfMessages = 10;
 	
+	/**
+	 * 処理済みメッセージの削除をまとめて行う {@link SqsAcknowledgementBatcher}
+	 * 
+	 * <p>{@code null} の場合は、メッセージ毎に DeleteMessage を呼び出す。</p>
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private SqsAcknowledgementBatcher acknowledgementBatcher;
+	
+	/**
+	 * 処理中メッセージの可視性タイムアウトを延長する {@link SqsVisibilityHeartbeat}
+	 * 
+	 * <p>設定した場合、ハンドラの完了はスレッドをブロックせずコールバックで受け取る。{@link #loop()} は
+	 * {@link #setMaxInFlightMessages(int) maxInFlightMessages} が設定されていればメッセージを
+	 * {@link #getExecutor() executor} に投入した時点で戻り、設定されていなければハンドラの完了を待つ。
+	 * {@code null} の場合は、
+	 * メッセージ毎にスレッドをブロックして完了を待ち、ChangeMessageVisibility を呼び出す。</p>
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private SqsVisibilityHeartbeat visibilityHeartbeat;
+	
+	/**
+	 * 同時に処理するメッセージの最大数。{@code 0} の場合は制限しない。
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	private int maxInFlightMessages;
+	
+	/**
+	 * メッセージ毎に仮想スレッドでハンドラを実行するかどうか
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	private boolean virtualThreads;
+	
+	/**
+	 * FIFO キューとして処理するかどうか
+	 * 
+	 * <p>{@code true} の場合、受信したメッセージを MessageGroupId 毎にまとめ、同じグループのメッセージは受信した順に
+	 * 1 件ずつ処理し、処理が終わる毎に削除する。あるメッセージの処理に失敗した場合、同じグループの後続のメッセージは
+	 * 処理せず、可視性タイムアウトの経過後に失敗したメッセージから再配信させる。異なるグループは
+	 * {@code maxConcurrentMessageGroups} まで並行して処理し、{@link #loop()} は処理の完了を待たずに戻る。</p>
+	 * 
+	 * <p>ReceiveMessage には ReceiveRequestAttemptId を付与し、受信に失敗した場合は同じ ID で受信し直すことで、
+	 * 失敗した受信で SQS が返していたメッセージを受け取る。</p>
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private boolean fifo;
+	
+	/**
+	 * FIFO モードで並行して処理するメッセージグループの最大数
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	private int maxConcurrentMessageGroups = DEFAULT_MAX_CONCURRENT_MESSAGE_GROUPS;
+	
+	private volatile Semaphore messageGroupPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_MESSAGE_GROUPS);
+	
+	private final ThreadLocal<String> receiveRequestAttemptId = new ThreadLocal<>();
+	
+	/**
+	 * 受信結果に応じてロングポーリングの待ち時間と受信の間隔を調整する {@link SqsAdaptivePollingController}
+	 * 
+	 * <p>設定した場合、{@code waitTimeSeconds} は使われず、OverLimitException を受けても 60 秒のスリープは行わない。
+	 * 次の受信の前に、このコントローラが決めた間隔だけスリープする。</p>
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private SqsAdaptivePollingController pollingController;
+	
+	/**
+	 * ハンドラの処理時間から可視性タイムアウトと延長間隔を推定する {@link SqsVisibilityTimeoutEstimator}
+	 * 
+	 * <p>設定した場合、最初の推定以降は {@code visibilityTimeout} と {@code changeVisibilityThreshold} の代わりに
+	 * 推定値を使う。{@link #getVisibilityHeartbeat() visibilityHeartbeat} を設定しない場合、延長間隔が短くなる分だけ
+	 * {@link #getRetry() retry} の試行回数に余裕を持たせること。</p>
+	 * 
+	 * @since 1.2
+	 */
+	@Getter
+	@Setter
+	private SqsVisibilityTimeoutEstimator visibilityTimeoutEstimator;
+	
+	private volatile Semaphore inFlightPermits;
+	
 	
 	/**
 	 * コンストラクタ
 	 */
 	public SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl, Consumer<Message> messageHandler,
 			String handlerName) {
-		this.sqs = sqs;
-		this.retry = retry;
-		this.workerQueueUrl = workerQueueUrl;
-		this.messageHandler = messageHandler;
-		this.handlerName = handlerName;
+		this(sqs, retry, workerQueueUrl, messageHandler, null, handlerName);
 	}
 	
 	/**
 	 * コンストラクタ
-	 *
+	 * 
 	 * @deprecated handlerName を初期化するコンストラクタの利用を推奨
 	 */
 	public SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
 			Consumer<Message> messageHandler) {
+		this(sqs, retry, workerQueueUrl, messageHandler, null, null);
+	}
+	
+	private SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
+			Consumer<Message> messageHandler, SqsBatchMessageHandler batchMessageHandler, String handlerName) {
 		this.sqs = sqs;
 		this.retry = retry;
 		this.workerQueueUrl = workerQueueUrl;
 		this.messageHandler = messageHandler;
+		this.batchMessageHandler = batchMessageHandler;
+		this.handlerName = handlerName;
+	}
+	
+	/**
+	 * 受信したメッセージをまとめて {@link SqsBatchMessageHandler} で処理するインスタンスを生成する。
+	 * 
+	 * <p>ハンドラが成功を返したメッセージは 1 回の DeleteMessageBatch で削除し（{@code acknowledgementBatcher} が
+	 * 設定されていればそちらに委ねる）、失敗したメッセージは可視性タイムアウトの経過後に再配信させる。</p>
+	 * 
+	 * @param sqs {@link AmazonSQS}
+	 * @param retry 可視性タイムアウトの延長回数を制御する {@link RetryTemplate}
+	 * @param workerQueueUrl キュー URL
+	 * @param batchMessageHandler メッセージをまとめて処理するハンドラ
+	 * @param handlerName メッセージハンドラーの名称（ログ出力用）
+	 * @return {@link SqsMessagePoller}
+	 * @since 1.2
+	 */
+	public static SqsMessagePoller forBatchHandler(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
+			SqsBatchMessageHandler batchMessageHandler, String handlerName) {
+		return new SqsMessagePoller(sqs, retry, workerQueueUrl, null, batchMessageHandler, handlerName);
+	}
+	
+	/**
+	 * 同時に処理するメッセージの最大数を設定する。
+	 * 
+	 * <p>{@code 1} 以上を設定した場合、{@link #loop()} は空きの数だけメッセージを受信し、空きがなければ受信しない。
+	 * また {@link #getExecutor() executor} が既定のままであれば、スレッド数が {@code maxInFlightMessages} の
+	 * プールに置き換える。ポーリングの開始前に設定すること。</p>
+	 * 
+	 * @param maxInFlightMessages 同時に処理するメッセージの最大数。{@code 0} の場合は制限しない。
+	 * @since 1.2
+	 */
+	public void setMaxInFlightMessages(int maxInFlightMessages) {
+		this.maxInFlightMessages = maxInFlightMessages;
+		inFlightPermits = maxInFlightMessages > 0 ? new Semaphore(maxInFlightMessages) : null;
+		if (maxInFlightMessages > 0 && executor == defaultExecutor && virtualThreads == false) {
+			ThreadPoolExecutor bounded = new ThreadPoolExecutor(maxInFlightMessages, maxInFlightMessages,
+					60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), SqsMessagePoller::newHandlerThread);
+			bounded.allowCoreThreadTimeOut(true);
+			defaultExecutor.shutdown();
+			defaultExecutor = bounded;
+			executor = bounded;
+		}
+	}
+	
+	/**
+	 * FIFO モードで並行して処理するメッセージグループの最大数を設定する。ポーリングの開始前に設定すること。
+	 * 
+	 * @param maxConcurrentMessageGroups 並行して処理するメッセージグループの最大数
+	 * @since 1.2
+	 */
+	public void setMaxConcurrentMessageGroups(int maxConcurrentMessageGroups) {
+		this.maxConcurrentMessageGroups = maxConcurrentMessageGroups;
+		messageGroupPermits = new Semaphore(maxConcurrentMessageGroups);
+	}
+	
+	/**
+	 * メッセージ毎に仮想スレッドでハンドラを実行するかどうかを設定する。
+	 * 
+	 * <p>{@code true} を設定した場合、{@link #getExecutor() executor} が既定のままであれば
+	 * {@code Executors.newVirtualThreadPerTaskExecutor()} に置き換え、{@link #loop()} の中でハンドラの完了を待つ処理も
+	 * 仮想スレッドで行う。完了の待機はキャリアスレッドを占有しない。同時に処理するメッセージの数は
+	 * {@link #setMaxInFlightMessages(int) maxInFlightMessages} で制限すること（スレッドプールには置き換えない）。</p>
+	 * 
+	 * <p>仮想スレッドを利用できない JDK では、警告を出力して従来のスレッドプールのまま動作する。
+	 * その場合 {@link #isVirtualThreads()} は {@code false} を返す。ポーリングの開始前に設定すること。一度有効にした後は
+	 * 無効にできない。</p>
+	 * 
+	 * @param virtualThreads 仮想スレッドでハンドラを実行する場合は {@code true}
+	 * @since 1.2
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads == this.virtualThreads) {
+			return;
+		}
+		if (virtualThreads == false) {
+			throw new IllegalStateException("Virtual threads cannot be disabled once enabled");
+		}
+		ExecutorService handlerExecutor = newVirtualThreadPerTaskExecutor();
+		ExecutorService followups = newVirtualThreadPerTaskExecutor();
+		if (handlerExecutor == null || followups == null) {
+			log.warn("Virtual threads are not available on this JDK, fall back to platform threads for {}",
+					handlerName);
+			return;
+		}
+		this.virtualThreads = true;
+		followupExecutor.shutdown();
+		followupExecutor = followups;
+		if (executor == defaultExecutor) {
+			defaultExecutor.shutdown();
+			defaultExecutor = handlerExecutor;
+			executor = handlerExecutor;
+		} else {
+			handlerExecutor.shutdown(); // custom executor is used for handlers
+		}
+	}
+	
+	/**
+	 * 処理中のメッセージの数を返す。{@code maxInFlightMessages} が設定されていない場合は {@code 0} を返す。
+	 * 
+	 * @return 処理中のメッセージの数
+	 * @since 1.2
+	 */
+	public int getInFlightMessageCount() {
+		Semaphore permits = inFlightPermits;
+		return permits == null ? 0 : maxInFlightMessages - permits.availablePermits();
 	}
 	
 	/**
@@ -132,33 +380,176 @@ public class SqsMessagePoller { // NOPMD - cc
 	 */
 	@Scheduled(fixedDelay = 1) // SUPPRESS CHECKSTYLE bug?
 	public void loop() { // NOPMD - cc
+		int permits = acquirePermits();
+		if (permits == 0) {
+			log.trace("No room for SQS messages for {}", handlerName);
+			return;
+		}
+		int unusedPermits = permits;
 		try {
-			List<Message> messages = receiveMessages();
+			List<Message> messages = receiveMessages(permits);
+			long receivedNanos = System.nanoTime();
+			unusedPermits -= messages.size();
 			if (messages.isEmpty()) {
 				log.trace("No SQS message received for {}", handlerName);
 				return;
 			}
 			log.debug("{} SQS messages are received for {}", messages.size(), handlerName);
-			messages.stream().parallel().forEach(this::handleMessage);
+			if (fifo && batchMessageHandler == null) {
+				dispatchMessageGroups(messages, receivedNanos, NOOP);
+			} else if (batchMessageHandler != null) {
+				if (visibilityHeartbeat == null) {
+					handleBatch(messages, NOOP);
+				} else {
+					CountDownLatch completion = completionOf(messages);
+					dispatchBatch(messages, receivedNanos, completion::countDown);
+					completion.await();
+				}
+			} else if (visibilityHeartbeat == null) {
+				CompletableFuture.allOf(messages.stream()
+					.map(message -> CompletableFuture.runAsync(() -> handleMessage(message, NOOP), followupExecutor))
+					.toArray(CompletableFuture[]::new))
+					.join();
+			} else {
+				CountDownLatch completion = completionOf(messages);
+				messages.forEach(message -> dispatchMessage(message, receivedNanos, completion::countDown));
+				completion.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while waiting for handlers of {}", handlerName);
 		} catch (Throwable e) { // NOPMD
 			log.error("Exception occurred while processing Handler: {}. Error Message: {}", handlerName, e.getMessage(),
 					e);
 			// このメソッドは明示的に呼び出されず例外をハンドリングできないのでログをはいて例外を握り潰す
+		} finally {
+			releasePermits(unusedPermits);
+		}
+	}
+	
+	/**
+	 * {@link #visibilityHeartbeat} 使用時に {@link #loop()} がハンドラの完了を待つためのラッチを返す。
+	 * 
+	 * <p>{@link #setMaxInFlightMessages(int) maxInFlightMessages} が設定されていない場合、ハンドラの完了待ちが
+	 * 唯一のバックプレッシャーとなるため、受信したメッセージ数をカウントとする。設定されている場合は
+	 * permit で処理中メッセージ数が制限されるため、待たずに戻れるようカウント {@code 0} のラッチを返す。</p>
+	 * 
+	 * @param messages 受信したメッセージ
+	 * @return ラッチ
+	 */
+	private CountDownLatch completionOf(List<Message> messages) {
+		return new CountDownLatch(inFlightPermits == null ? messages.size() : 0);
+	}
+	
+	private int acquirePermits() {
+		Semaphore permits = inFlightPermits;
+		if (permits == null) {
+			return maxNumberOfMessages;
+		}
+		try {
+			if (permits.tryAcquire(PERMIT_WAIT_MILLIS, TimeUnit.MILLISECONDS) == false) {
+				return 0;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+		int acquired = 1;
+		while (acquired < maxNumberOfMessages && permits.tryAcquire()) {
+			acquired++;
+		}
+		return acquired;
+	}
+	
+	/**
+	 * 処理中メッセージの枠を 1 つ確保する。枠が空くまでブロックする。
+	 * 
+	 * @throws InterruptedException 割り込まれた場合
+	 */
+	void acquirePermit() throws InterruptedException {
+		Semaphore permits = inFlightPermits;
+		if (permits != null) {
+			permits.acquire();
 		}
 	}
 	
-	private List<Message> receiveMessages() {
+	/**
+	 * {@link #loop()} の外で受信したメッセージを処理する。呼び出し元はメッセージの数だけ {@link #acquirePermit()} で
+	 * 枠を確保しておくこと。
+	 * 
+	 * @param messages 処理するメッセージ。バッチモードの場合は 1 回のハンドラ呼び出しでまとめて処理する。
+	 * @param receivedNanos メッセージを受信した時刻（{@link System#nanoTime()}）。複数回の受信にまたがる場合は最も古いもの。
+	 *     {@link #getVisibilityHeartbeat() visibilityHeartbeat} は、この時刻から可視性タイムアウトの延長を計る。
+	 * @param onComplete メッセージ毎に、ハンドラの終了時（失敗を含む）に呼び出す処理
+	 */
+	void process(List<Message> messages, long receivedNanos, Runnable onComplete) {
+		if (batchMessageHandler != null) {
+			if (visibilityHeartbeat == null) {
+				followupExecutor.execute(() -> handleBatch(messages, onComplete));
+			} else {
+				dispatchBatch(messages, receivedNanos, onComplete);
+			}
+			return;
+		}
+		if (fifo) {
+			dispatchMessageGroups(messages, receivedNanos, onComplete);
+			return;
+		}
+		for (Message message : messages) {
+			if (visibilityHeartbeat == null) {
+				followupExecutor.execute(() -> handleMessage(message, onComplete));
+			} else {
+				dispatchMessage(message, receivedNanos, onComplete);
+			}
+		}
+	}
+	
+	private void releasePermits(int count) {
+		Semaphore permits = inFlightPermits;
+		if (permits != null && count > 0) {
+			permits.release(count);
+		}
+	}
+	
+	List<Message> receiveMessages(int maxMessages) {
+		SqsAdaptivePollingController controller = pollingController;
+		if (controller != null) {
+			try {
+				controller.pause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Collections.emptyList();
+			}
+		}
+		ReceiveMessageRequest request = new ReceiveMessageRequest(workerQueueUrl)
+			.withWaitTimeSeconds(controller == null ? waitTimeSeconds : controller.nextWaitTimeSeconds())
+			.withMaxNumberOfMessages(maxMessages)
+			.withVisibilityTimeout(currentVisibilityTimeout())
+			.withAttributeNames("ApproximateReceiveCount");
+		if (fifo) {
+			if (receiveRequestAttemptId.get() == null) {
+				// kept until the receive succeeds, to retry the failed receive with the same attempt
+				receiveRequestAttemptId.set(UUID.randomUUID().toString());
+			}
+			request.withAttributeNames(MESSAGE_GROUP_ID, "SequenceNumber")
+				.withReceiveRequestAttemptId(receiveRequestAttemptId.get());
+		}
 		ReceiveMessageResult receiveMessageResult;
 		try {
 			log.trace("Start SQS long polling");
-			receiveMessageResult = sqs.receiveMessage(new ReceiveMessageRequest(workerQueueUrl)
-				.withWaitTimeSeconds(waitTimeSeconds)
-				.withMaxNumberOfMessages(maxNumberOfMessages)
-				.withVisibilityTimeout(visibilityTimeout)
-				.withAttributeNames("ApproximateReceiveCount"));
-			return receiveMessageResult.getMessages();
+			receiveMessageResult = sqs.receiveMessage(request);
+			receiveRequestAttemptId.remove();
+			List<Message> messages = receiveMessageResult.getMessages();
+			if (controller != null) {
+				controller.onReceived(messages.size(), maxMessages);
+			}
+			return messages;
 		} catch (OverLimitException e) {
 			log.error("SQS over limit", e);
+			if (controller != null) {
+				controller.onThrottled();
+				return Collections.emptyList();
+			}
 			try {
 				Thread.sleep(60000);
 			} catch (InterruptedException e1) {
@@ -169,28 +560,308 @@ public class SqsMessagePoller { // NOPMD - cc
 		return Collections.emptyList();
 	}
 	
-	private void handleMessage(Message message) {
+	private void handleMessage(Message message, Runnable onComplete) {
+		logReceived(message);
+		
+		Future<Message> future;
+		try {
+			future = executor.submit(() -> runHandler(message, onComplete), message);
+		} catch (RejectedExecutionException e) {
+			releasePermits(1);
+			onComplete.run();
+			log.error("Job for SQS: {} was rejected", message.getMessageId(), e);
+			return;
+		}
+		log.debug("Main task for {} is submitted", message.getMessageId());
+		
+		doFollowup(message, future);
+	}
+	
+	private void dispatchMessage(Message message, long receivedNanos, Runnable onComplete) {
+		logReceived(message);
+		
+		SqsVisibilityHeartbeat.Tracking tracking = visibilityHeartbeat.track(message,
+				currentVisibilityTimeout(), currentChangeVisibilityThreshold(), receivedNanos);
+		CompletableFuture<Void> future;
+		try {
+			future = CompletableFuture.runAsync(() -> runHandler(message, onComplete), executor);
+		} catch (RejectedExecutionException e) {
+			tracking.complete();
+			releasePermits(1);
+			onComplete.run();
+			log.error("Job for SQS: {} was rejected", message.getMessageId(), e);
+			return;
+		}
+		future.whenComplete((r, e) -> {
+			if (tracking.complete() == false) {
+				log.warn("Job for SQS: {} was finished after visibility follow-up was given up",
+						message.getMessageId());
+			} else if (e != null) {
+				log.error("Job for SQS: {} was failed", message.getMessageId(), e.getCause());
+			} else {
+				log.debug("Job for SQS: {} was done", message.getMessageId());
+				try {
+					acknowledge(message);
+				} catch (RuntimeException ex) {
+					log.error("Failed to delete SQS: {}", message.getMessageId(), ex);
+				}
+			}
+		});
+		log.debug("Main task for {} is submitted", message.getMessageId());
+	}
+	
+	private void runHandler(Message message, Runnable onComplete) {
+		long startNanos = System.nanoTime();
+		try {
+			messageHandler.accept(message);
+		} finally {
+			recordDuration(startNanos);
+			releasePermits(1);
+			onComplete.run();
+		}
+	}
+	
+	private void handleBatch(List<Message> messages, Runnable onComplete) {
+		messages.forEach(this::logReceived);
+		
+		Future<Collection<String>> future;
+		try {
+			future = executor.submit(() -> runBatchHandler(messages, onComplete));
+		} catch (RejectedExecutionException e) {
+			releasePermits(messages.size());
+			messages.forEach(message -> onComplete.run());
+			log.error("Batch job for {} SQS messages was rejected", messages.size(), e);
+			return;
+		}
+		log.debug("Batch task for {} SQS messages is submitted", messages.size());
+		
+		try {
+			retry.execute(context -> {
+				try {
+					Collection<String> failed = future.get(currentChangeVisibilityThreshold(), TimeUnit.SECONDS);
+					log.debug("Batch job for {} SQS messages was done, {} failed", messages.size(), failed.size());
+					acknowledgeAll(succeededInOrder(messages, failed));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					log.warn("Batch job for {} SQS messages was interrupted", messages.size());
+				} catch (ExecutionException e) { // handle e.getCause()
+					log.error("Batch job for {} SQS messages was failed", messages.size(), e.getCause());
+				} catch (TimeoutException e) { // we need more time
+					extendTimeout(messages);
+					throw e;
+				}
+				return null;
+			});
+		} catch (Exception e) { // NOPMD - cc
+			log.error("Retry attempt exceeded?", e);
+		}
+	}
+	
+	private void dispatchBatch(List<Message> messages, long receivedNanos, Runnable onComplete) {
+		messages.forEach(this::logReceived);
+		
+		int timeout = currentVisibilityTimeout();
+		int extendAfter = currentChangeVisibilityThreshold();
+		List<SqsVisibilityHeartbeat.Tracking> trackings = messages.stream()
+			.map(message -> visibilityHeartbeat.track(message, timeout, extendAfter, receivedNanos))
+			.collect(Collectors.toList());
+		CompletableFuture<Collection<String>> future;
+		try {
+			future = CompletableFuture.supplyAsync(() -> runBatchHandler(messages, onComplete), executor);
+		} catch (RejectedExecutionException e) {
+			trackings.forEach(SqsVisibilityHeartbeat.Tracking::complete);
+			releasePermits(messages.size());
+			messages.forEach(message -> onComplete.run());
+			log.error("Batch job for {} SQS messages was rejected", messages.size(), e);
+			return;
+		}
+		future.whenComplete((failed, e) -> {
+			if (e != null) {
+				log.error("Batch job for {} SQS messages was failed", messages.size(), e.getCause());
+			}
+			Set<String> unacknowledged = new HashSet<>();
+			for (int i = 0; i < messages.size(); i++) {
+				Message message = messages.get(i);
+				if (trackings.get(i).complete() == false) {
+					log.warn("Job for SQS: {} was finished after visibility follow-up was given up",
+							message.getMessageId());
+					unacknowledged.add(message.getMessageId());
+				} else if (e != null || failed.contains(message.getMessageId())) {
+					unacknowledged.add(message.getMessageId());
+				}
+			}
+			List<Message> succeeded = succeededInOrder(messages, unacknowledged);
+			try {
+				acknowledgeAll(succeeded);
+			} catch (RuntimeException ex) {
+				log.error("Failed to delete {} SQS messages", succeeded.size(), ex);
+			}
+		});
+		log.debug("Batch task for {} SQS messages is submitted", messages.size());
+	}
+	
+	private Collection<String> runBatchHandler(List<Message> messages, Runnable onComplete) {
+		long startNanos = System.nanoTime();
+		try {
+			Collection<String> failed = batchMessageHandler.handle(messages);
+			return failed == null ? Collections.emptySet() : failed;
+		} finally {
+			recordDuration(startNanos);
+			releasePermits(messages.size());
+			messages.forEach(message -> onComplete.run());
+		}
+	}
+	
+	/**
+	 * 失敗していないメッセージを返す。FIFO モードの場合、失敗したメッセージより後にある同じグループのメッセージも除く。
+	 */
+	private List<Message> succeededInOrder(List<Message> messages, Collection<String> failedIds) {
+		Set<String> brokenGroups = new HashSet<>();
+		List<Message> succeeded = new ArrayList<>(messages.size());
+		for (Message message : messages) {
+			if (failedIds.contains(message.getMessageId())) {
+				brokenGroups.add(messageGroupIdOf(message));
+			} else if (fifo == false || brokenGroups.contains(messageGroupIdOf(message)) == false) {
+				succeeded.add(message);
+			}
+		}
+		return succeeded;
+	}
+	
+	/**
+	 * FIFO モードで、メッセージグループの空き枠の数を返す。
+	 * 
+	 * @return 空いているメッセージグループの枠の数
+	 */
+	int availableMessageGroupPermits() {
+		return messageGroupPermits.availablePermits();
+	}
+	
+	/**
+	 * メッセージに含まれるメッセージグループの数を返す。{@link #process(List, Runnable)} は FIFO モードの場合、
+	 * この数だけメッセージグループの枠を確保する。
+	 * 
+	 * @param messages メッセージ
+	 * @return メッセージグループの数
+	 */
+	static int countMessageGroups(List<Message> messages) {
+		return (int) messages.stream().map(SqsMessagePoller::messageGroupIdOf).distinct().count();
+	}
+	
+	private void dispatchMessageGroups(List<Message> messages, long receivedNanos, Runnable onComplete) {
+		List<List<Message>> groups = new ArrayList<>(messages.stream()
+			.collect(Collectors.groupingBy(SqsMessagePoller::messageGroupIdOf, LinkedHashMap::new, Collectors.toList()))
+			.values());
+		Semaphore permits = messageGroupPermits;
+		for (int i = 0; i < groups.size(); i++) {
+			List<Message> group = groups.get(i);
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				groups.subList(i, groups.size()).forEach(rest -> skipMessages(rest, onComplete));
+				return;
+			}
+			followupExecutor.execute(() -> {
+				try {
+					runMessageGroup(group, receivedNanos, onComplete);
+				} finally {
+					permits.release();
+				}
+			});
+		}
+	}
+	
+	private void runMessageGroup(List<Message> messages, long receivedNanos, Runnable onComplete) {
+		for (int i = 0; i < messages.size(); i++) {
+			if (handleInOrder(messages.get(i), receivedNanos, onComplete) == false) {
+				skipMessages(messages.subList(i + 1, messages.size()), onComplete);
+				return;
+			}
+		}
+	}
+	
+	private boolean handleInOrder(Message message, long receivedNanos, Runnable onComplete) {
+		logReceived(message);
+		
+		SqsVisibilityHeartbeat.Tracking tracking = visibilityHeartbeat == null ? null
+				: visibilityHeartbeat.track(message, currentVisibilityTimeout(), currentChangeVisibilityThreshold(),
+						receivedNanos);
+		Future<Message> future;
+		try {
+			future = executor.submit(() -> runHandler(message, onComplete), message);
+		} catch (RejectedExecutionException e) {
+			if (tracking != null) {
+				tracking.complete();
+			}
+			releasePermits(1);
+			onComplete.run();
+			log.error("Job for SQS: {} was rejected", message.getMessageId(), e);
+			return false;
+		}
+		log.debug("Main task for {} is submitted", message.getMessageId());
+		if (tracking == null) {
+			return doFollowup(message, future);
+		}
+		
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			tracking.complete();
+			log.warn("Job for SQS: {} was interrupted", message.getMessageId());
+			return false;
+		} catch (ExecutionException e) {
+			tracking.complete();
+			log.error("Job for SQS: {} was failed", message.getMessageId(), e.getCause());
+			return false;
+		}
+		if (tracking.complete() == false) {
+			log.warn("Job for SQS: {} was finished after visibility follow-up was given up", message.getMessageId());
+			return false;
+		}
+		log.debug("Job for SQS: {} was done", message.getMessageId());
+		try {
+			acknowledge(message);
+			return true;
+		} catch (RuntimeException e) {
+			log.error("Failed to delete SQS: {}", message.getMessageId(), e);
+			return false;
+		}
+	}
+	
+	private void skipMessages(List<Message> messages, Runnable onComplete) {
+		for (Message message : messages) {
+			log.warn("Job for SQS: {} was skipped to keep the order of message group {}",
+					message.getMessageId(), messageGroupIdOf(message));
+			releasePermits(1);
+			onComplete.run();
+		}
+	}
+	
+	private static String messageGroupIdOf(Message message) {
+		String messageGroupId = message.getAttributes().get(MESSAGE_GROUP_ID);
+		return messageGroupId == null ? message.getMessageId() : messageGroupId;
+	}
+	
+	private void logReceived(Message message) {
 		log.info("SQS message for {} was received: {}", handlerName, message.getMessageId());
 		log.debug("Receive SQS: {} C: {} RHD: {}",
 				message.getMessageId(),
 				message.getAttributes().get("ApproximateReceiveCount"),
 				computeReceiptHandleDigest(message));
-		
-		Future<Message> future = executor.submit(() -> messageHandler.accept(message), message);
-		log.debug("Main task for {} is submitted", message.getMessageId());
-		
-		doFollowup(message, future);
 	}
 	
-	private void doFollowup(Message message, Future<Message> future) {
+	private boolean doFollowup(Message message, Future<Message> future) {
 		log.debug("Start visibility timeout follow-up task for {}", message.getMessageId());
+		boolean done = false;
 		try {
-			retry.execute(context -> {
+			done = retry.execute(context -> {
 				try {
-					future.get(changeVisibilityThreshold, TimeUnit.SECONDS);
+					future.get(currentChangeVisibilityThreshold(), TimeUnit.SECONDS);
 					log.debug("Job for SQS: {} was done", message.getMessageId());
-					sqs.deleteMessage(new DeleteMessageRequest(workerQueueUrl, message.getReceiptHandle()));
-					log.info("SQS: {} was deleted", message.getMessageId());
+					acknowledge(message);
+					return true;
 				} catch (InterruptedException e) {
 					Thread.currentThread().interrupt();
 					log.warn("Job for SQS: {} was interrupted", message.getMessageId());
@@ -200,28 +871,125 @@ public class SqsMessagePoller { // NOPMD - cc
 					extendTimeout(message);
 					throw e;
 				}
-				return null;
+				return false;
 			});
 		} catch (Exception e) { // NOPMD - cc
 			log.error("Retry attempt exceeded?", e);
 		}
 		log.debug("Visibility timeout follow-up task for {} was finished", message.getMessageId());
+		return done;
+	}
+	
+	private void acknowledge(Message message) {
+		if (acknowledgementBatcher == null) {
+			sqs.deleteMessage(new DeleteMessageRequest(workerQueueUrl, message.getReceiptHandle()));
+			log.info("SQS: {} was deleted", message.getMessageId());
+		} else if (fifo) {
+			acknowledgementBatcher.acknowledge(message).join(); // keep the order within message group
+			log.info("SQS: {} was deleted", message.getMessageId());
+		} else {
+			acknowledgementBatcher.acknowledge(message);
+			log.info("SQS: {} was queued for deletion", message.getMessageId());
+		}
+	}
+	
+	private void acknowledgeAll(List<Message> messages) {
+		if (acknowledgementBatcher != null) {
+			messages.forEach(this::acknowledge);
+			return;
+		}
+		for (int from = 0; from < messages.size(); from += SqsAcknowledgementBatcher.MAX_BATCH_SIZE) {
+			List<Message> chunk = messages.subList(from,
+					Math.min(messages.size(), from + SqsAcknowledgementBatcher.MAX_BATCH_SIZE));
+			List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(chunk.size());
+			for (int i = 0; i < chunk.size(); i++) {
+				entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), chunk.get(i).getReceiptHandle()));
+			}
+			DeleteMessageBatchResult result =
+					sqs.deleteMessageBatch(new DeleteMessageBatchRequest(workerQueueUrl, entries));
+			for (DeleteMessageBatchResultEntry successful : result.getSuccessful()) {
+				log.info("SQS: {} was deleted", chunk.get(Integer.parseInt(successful.getId())).getMessageId());
+			}
+			for (BatchResultErrorEntry failed : result.getFailed()) {
+				log.error("Failed to delete SQS: {}: {}",
+						chunk.get(Integer.parseInt(failed.getId())).getMessageId(), failed.getCode());
+			}
+		}
+	}
+	
+	private void extendTimeout(List<Message> messages) {
+		log.debug("Batch job for {} SQS messages was timeout", messages.size());
+		int timeout = currentVisibilityTimeout();
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(messages.size());
+		for (int i = 0; i < messages.size(); i++) {
+			entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i),
+					messages.get(i).getReceiptHandle()).withVisibilityTimeout(timeout));
+		}
+		ChangeMessageVisibilityBatchResult result =
+				sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(workerQueueUrl, entries));
+		for (BatchResultErrorEntry failed : result.getFailed()) {
+			log.warn("Failed to update visibility for SQS: {}: {}",
+					messages.get(Integer.parseInt(failed.getId())).getMessageId(), failed.getCode());
+		}
+		log.debug("Visibility for {} SQS messages was updated VT: {}",
+				result.getSuccessful().size(), timeout);
 	}
 	
 	private void extendTimeout(Message message) {
 		log.debug("Job for SQS:{} was timeout RHD:{}", message.getMessageId(), computeReceiptHandleDigest(message));
+		int timeout = currentVisibilityTimeout();
 		sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(
-				workerQueueUrl, message.getReceiptHandle(), visibilityTimeout));
+				workerQueueUrl, message.getReceiptHandle(), timeout));
 		if (log.isDebugEnabled()) {
-			log.debug("Visibility for SQS: {} was updated VT: {}", message.getMessageId(), visibilityTimeout);
+			log.debug("Visibility for SQS: {} was updated VT: {}", message.getMessageId(), timeout);
 		} else if (log.isTraceEnabled()) {
 			log.trace("Visibility for SQS: {} was updated VT: {} RHD: {}",
 					message.getMessageId(),
-					visibilityTimeout,
+					timeout,
 					computeReceiptHandleDigest(message));
 		}
 	}
 	
+	private int currentVisibilityTimeout() {
+		SqsVisibilityTimeoutEstimator estimator = visibilityTimeoutEstimator;
+		int estimated = estimator == null ? 0 : estimator.getVisibilityTimeout();
+		return estimated > 0 ? estimated : visibilityTimeout;
+	}
+	
+	private int currentChangeVisibilityThreshold() {
+		SqsVisibilityTimeoutEstimator estimator = visibilityTimeoutEstimator;
+		int estimated = estimator == null ? 0 : estimator.getExtendAfterSeconds();
+		return estimated > 0 ? estimated : changeVisibilityThreshold;
+	}
+	
+	private void recordDuration(long startNanos) {
+		SqsVisibilityTimeoutEstimator estimator = visibilityTimeoutEstimator;
+		if (estimator != null) {
+			estimator.record(System.nanoTime() - startNanos, visibilityTimeout);
+		}
+	}
+	
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null; // before JDK 19
+		} catch (ReflectiveOperationException | RuntimeException e) { // NOPMD - preview feature is not enabled
+			log.debug("Failed to create virtual thread executor", e);
+			return null;
+		}
+	}
+	
+	private static Thread newHandlerThread(Runnable r) {
+		Thread thread = new Thread(r);
+		thread.setUncaughtExceptionHandler((t, e) -> {
+			synchronized (SqsMessagePoller.class) {
+				log.error("Uncaught exception in thread '{}': {}", t.getName(), e.getMessage());
+			}
+		});
+		return thread;
+	}
+	
 	private Object computeReceiptHandleDigest(Message message) {
 		return new Object() {
 			
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * 複数のロングポーリングを並行して行い、受信したメッセージを {@link SqsMessagePoller} で処理する
+ * 
+ * <p>{@link SqsMessagePoller#loop()} は 1 回のロングポーリングで最大 10 件しか受信できないため、ハンドラの処理能力に
+ * 受信が追いつかないことがある。このクラスは最大 {@code receiverConcurrency} 本の受信スレッドを動かし、
+ * 受信したメッセージを共有の作業キューに積む。ディスパッチャは {@link SqsMessagePoller#getMaxInFlightMessages()
+ * maxInFlightMessages} の枠が空き次第、作業キューからメッセージを取り出して処理させる。バッチモードの
+ * {@link SqsMessagePoller} には、作業キューにあるメッセージを最大 {@code maxNumberOfMessages} 件まとめて渡す。</p>
+ * 
+ * <p>受信スレッドは、処理中と作業キュー内のメッセージの合計が {@code maxInFlightMessages + prefetchCount} を
+ * 超えない範囲でのみ受信する。{@code prefetchCount} を {@code 1} 以上にすると、処理中のメッセージがある間に
+ * 次のメッセージを先読みする。先読みしたメッセージの可視性タイムアウトは作業キュー内でも経過するため、
+ * {@link SqsMessagePoller#getVisibilityHeartbeat() visibilityHeartbeat} は受信時から延長を計る。
+ * {@code visibilityHeartbeat} を設定しない場合の延長はディスパッチ時から計るため、先読みは控えめにすること。</p>
+ * 
+ * <p>受信スレッドの数は、満杯（10 件）の受信が返ってくる間は {@code receiverConcurrency} まで増やし、
+ * 空の受信が返ってくると {@code minReceivers} まで減らす。{@link SqsMessagePoller#getPollingController()
+ * pollingController} を設定した場合、各受信スレッドは空の受信や OverLimitException の後に間隔を空けて受信する。</p>
+ * 
+ * <p>FIFO モードの {@link SqsMessagePoller} には、作業キューを経由せず、受信スレッドから受信した単位でメッセージを渡す。
+ * メッセージグループが複数のディスパッチに分かれて、順序が崩れないようにするため。</p>
+ * 
+ * <p>このクラスを使う場合、{@link SqsMessagePoller#loop()} をスケジュールしないこと。</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class SqsMessageReceiverGroup implements InitializingBean, DisposableBean {
+	
+	private static final long SLOT_WAIT_MILLIS = 1000L;
+	
+	private static final long ERROR_BACKOFF_MILLIS = 1000L;
+	
+	private static final int DEFAULT_RECEIVER_CONCURRENCY = 4;
+	
+	@Getter
+	private final SqsMessagePoller poller;
+	
+	/**
+	 * 受信スレッドの最大数
+	 */
+	@Getter
+	@Setter
+	private int receiverConcurrency = DEFAULT_RECEIVER_CONCURRENCY;
+	
+	/**
+	 * 受信スレッドの最小数
+	 */
+	@Getter
+	@Setter
+	private int minReceivers = 1;
+	
+	/**
+	 * 処理中のメッセージとは別に、先読みして作業キューに保持するメッセージの最大数
+	 */
+	@Getter
+	@Setter
+	private int prefetchCount;
+	
+	private final BlockingQueue<Received> workQueue = new LinkedBlockingQueue<>();
+	
+	private final AtomicInteger activeReceivers = new AtomicInteger();
+	
+	private final LongAdder receiveCount = new LongAdder();
+	
+	private final LongAdder receivedMessageCount = new LongAdder();
+	
+	private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "sqs-receiver");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private Semaphore slots;
+	
+	private volatile boolean running;
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param poller メッセージを受信・処理する {@link SqsMessagePoller}。{@code maxInFlightMessages} を設定しておくこと。
+	 */
+	public SqsMessageReceiverGroup(SqsMessagePoller poller) {
+		this.poller = poller;
+	}
+	
+	@Override
+	public void afterPropertiesSet() {
+		Assert.state(poller.getMaxInFlightMessages() > 0, "maxInFlightMessages of the poller must be set");
+		Assert.state(minReceivers >= 1 && minReceivers <= receiverConcurrency,
+				"minReceivers must be between 1 and receiverConcurrency");
+		slots = new Semaphore(poller.getMaxInFlightMessages() + prefetchCount);
+		running = true;
+		threads.execute(this::dispatch);
+		for (int i = 0; i < minReceivers; i++) {
+			activeReceivers.incrementAndGet();
+			threads.execute(this::receive);
+		}
+		log.info("Started {} SQS receivers for {}", minReceivers, poller.getWorkerQueueUrl());
+	}
+	
+	@Override
+	public void destroy() {
+		running = false;
+		threads.shutdownNow();
+		log.info("Stopped SQS receivers for {}, {} messages are left to become visible again",
+				poller.getWorkerQueueUrl(), workQueue.size());
+		workQueue.clear();
+	}
+	
+	/**
+	 * 動作中の受信スレッドの数を返す。
+	 * 
+	 * @return active receiver count
+	 */
+	public int getActiveReceiverCount() {
+		return activeReceivers.get();
+	}
+	
+	/**
+	 * 作業キューで処理を待っているメッセージの数を返す。
+	 * 
+	 * @return queued message count
+	 */
+	public int getQueuedMessageCount() {
+		return workQueue.size();
+	}
+	
+	/**
+	 * 発行した ReceiveMessage リクエストの数を返す。
+	 * 
+	 * @return receive count
+	 */
+	public long getReceiveCount() {
+		return receiveCount.sum();
+	}
+	
+	/**
+	 * 受信したメッセージの数を返す。
+	 * 
+	 * @return received message count
+	 */
+	public long getReceivedMessageCount() {
+		return receivedMessageCount.sum();
+	}
+	
+	private void receive() {
+		boolean retired = false;
+		try {
+			while (running && retired == false) {
+				int acquired = acquireSlots();
+				if (acquired == 0) {
+					continue;
+				}
+				List<Message> messages;
+				long receivedNanos;
+				try {
+					receiveCount.increment();
+					messages = poller.receiveMessages(acquired);
+					receivedNanos = System.nanoTime();
+				} catch (RuntimeException e) {
+					slots.release(acquired);
+					if (running == false) {
+						break; // interrupted by destroy()
+					}
+					log.error("Failed to receive SQS messages from {}", poller.getWorkerQueueUrl(), e);
+					Thread.sleep(ERROR_BACKOFF_MILLIS);
+					continue;
+				}
+				slots.release(acquired - messages.size());
+				receivedMessageCount.add(messages.size());
+				if (poller.isFifo() && messages.isEmpty() == false) {
+					// hand the received batch as a whole, not to split a message group across dispatches
+					for (int i = 0; i < messages.size(); i++) {
+						poller.acquirePermit();
+					}
+					poller.process(messages, receivedNanos, slots::release);
+				} else {
+					messages.forEach(message -> workQueue.add(new Received(message, receivedNanos)));
+				}
+				
+				if (messages.size() == acquired) {
+					scaleUp(); // saturated, even if the request was limited by the slots
+				} else if (messages.isEmpty()) {
+					retired = scaleDown();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (retired == false) {
+				activeReceivers.decrementAndGet();
+			}
+		}
+	}
+	
+	private int acquireSlots() throws InterruptedException {
+		if (slots.tryAcquire(SLOT_WAIT_MILLIS, TimeUnit.MILLISECONDS) == false) {
+			return 0;
+		}
+		int acquired = 1;
+		while (acquired < poller.getMaxNumberOfMessages() && slots.tryAcquire()) {
+			acquired++;
+		}
+		return acquired;
+	}
+	
+	private void scaleUp() {
+		int current;
+		do {
+			current = activeReceivers.get();
+			if (current >= receiverConcurrency || running == false) {
+				return;
+			}
+		} while (activeReceivers.compareAndSet(current, current + 1) == false);
+		log.debug("Start SQS receiver #{} for {}", current + 1, poller.getWorkerQueueUrl());
+		threads.execute(this::receive);
+	}
+	
+	private boolean scaleDown() {
+		int current;
+		do {
+			current = activeReceivers.get();
+			if (current <= minReceivers) {
+				return false;
+			}
+		} while (activeReceivers.compareAndSet(current, current - 1) == false);
+		log.debug("Stop SQS receiver #{} for {}", current, poller.getWorkerQueueUrl());
+		return true;
+	}
+	
+	private void dispatch() {
+		try {
+			while (running) {
+				List<Received> received = new ArrayList<>(poller.getMaxNumberOfMessages());
+				received.add(workQueue.take());
+				if (poller.getBatchMessageHandler() != null) {
+					workQueue.drainTo(received, poller.getMaxNumberOfMessages() - 1);
+				}
+				for (int i = 0; i < received.size(); i++) {
+					poller.acquirePermit();
+				}
+				List<Message> messages = received.stream().map(r -> r.message).collect(Collectors.toList());
+				// the head is the oldest, as the work queue is FIFO
+				poller.process(messages, received.get(0).receivedNanos, slots::release);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	
+	private static final class Received {
+		
+		private final Message message;
+		
+		/** 受信した時刻（{@link System#nanoTime()}） */
+		private final long receivedNanos;
+		
+		
+		Received(Message message, long receivedNanos) {
+			this.message = message;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * 複数のキューを、共有する 1 つのワーカープールで処理する
+ * 
+ * <p>{@link #addQueue(SqsMessagePoller, int)} で登録したキュー毎に受信スレッドを 1 本動かし、受信したメッセージを
+ * キュー毎の先読みバッファ（最大 {@code maxNumberOfMessages} 件、空になってから次を受信する）に積む。ディスパッチャは、バッファにメッセージがある
+ * キューの中から重み付きラウンドロビン（smooth weighted round-robin）で 1 つを選び、共有の
+ * {@code maxInFlightMessages} の枠を確保して処理させる。重みの大きいキューほど先に処理されるが、
+ * 重みの小さいキューも重みの比率に応じて必ず処理される。</p>
+ * 
+ * <p>ハンドラは共有のワーカープール（スレッド数は {@code maxInFlightMessages}、アイドル時は 0 まで縮む）で実行するため、
+ * メッセージの来ないキューがスレッドを保持し続けることはない。バッチモードや FIFO モードの {@link SqsMessagePoller} には、
+ * 受信した単位でまとめて渡す（重みは渡した回数に対して働く）。</p>
+ * 
+ * <p>先読みしたメッセージの可視性タイムアウトはバッファ内でも経過するため、
+ * {@link SqsMessagePoller#getVisibilityHeartbeat() visibilityHeartbeat} は受信時から延長を計る。</p>
+ * 
+ * <p>このクラスを使う場合、登録した {@link SqsMessagePoller#loop()} をスケジュールしないこと。
+ * 登録した {@link SqsMessagePoller} の {@code executor} は共有のワーカープールに置き換える。</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class SqsMultiQueuePoller implements InitializingBean, DisposableBean {
+	
+	private static final long SLOT_WAIT_MILLIS = 1000L;
+	
+	private static final long BLOCKED_WAIT_MILLIS = 10L;
+	
+	private static final long ERROR_BACKOFF_MILLIS = 1000L;
+	
+	/**
+	 * 全てのキューで同時に処理するメッセージの最大数
+	 */
+	@Getter
+	private final int maxInFlightMessages;
+	
+	private final Map<String, QueueState> queues = new LinkedHashMap<>();
+	
+	private final Semaphore permits;
+	
+	private final ThreadPoolExecutor workers;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final Condition available = lock.newCondition();
+	
+	private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "sqs-multi-queue");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private volatile boolean running;
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param maxInFlightMessages 全てのキューで同時に処理するメッセージの最大数
+	 */
+	public SqsMultiQueuePoller(int maxInFlightMessages) {
+		Assert.isTrue(maxInFlightMessages > 0, "maxInFlightMessages must be positive");
+		this.maxInFlightMessages = maxInFlightMessages;
+		permits = new Semaphore(maxInFlightMessages);
+		workers = new ThreadPoolExecutor(maxInFlightMessages, maxInFlightMessages, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread thread = new Thread(r, "sqs-worker");
+					thread.setDaemon(true);
+					return thread;
+				});
+		workers.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * キューを登録する。{@link #afterPropertiesSet()} の前に呼び出すこと。
+	 * 
+	 * <p>バッチモードや FIFO モードの {@link SqsMessagePoller} は受信した単位でまとめて処理するため、
+	 * {@code maxNumberOfMessages} が {@code maxInFlightMessages} を超えてはならない。FIFO モードの場合は
+	 * {@code maxConcurrentMessageGroups} も超えてはならない。</p>
+	 * 
+	 * @param poller キューのメッセージを受信・処理する {@link SqsMessagePoller}。{@code maxInFlightMessages} は設定しないこと。
+	 * @param weight 重み（1 以上）
+	 */
+	public void addQueue(SqsMessagePoller poller, int weight) {
+		Assert.state(running == false, "Queues must be added before started");
+		Assert.isTrue(weight > 0, "weight must be positive");
+		Assert.isTrue(poller.getMaxInFlightMessages() == 0, "maxInFlightMessages of the poller must not be set");
+		if (poller.getBatchMessageHandler() != null || poller.isFifo()) {
+			// the received batch is dispatched as a whole, so it must fit into the shared permits
+			Assert.isTrue(poller.getMaxNumberOfMessages() <= maxInFlightMessages,
+					"maxNumberOfMessages of batch or FIFO poller must not exceed maxInFlightMessages");
+		}
+		if (poller.isFifo()) {
+			Assert.isTrue(poller.getMaxNumberOfMessages() <= poller.getMaxConcurrentMessageGroups(),
+					"maxNumberOfMessages of FIFO poller must not exceed maxConcurrentMessageGroups");
+		}
+		Assert.isTrue(queues.containsKey(poller.getWorkerQueueUrl()) == false,
+				"Queue is already added: " + poller.getWorkerQueueUrl());
+		queues.put(poller.getWorkerQueueUrl(), new QueueState(poller, weight));
+	}
+	
+	@Override
+	public void afterPropertiesSet() {
+		Assert.state(queues.isEmpty() == false, "No queue is added");
+		running = true;
+		threads.execute(this::dispatch);
+		for (QueueState queue : queues.values()) {
+			queue.poller.setExecutor(workers);
+			threads.execute(() -> receive(queue));
+		}
+		log.info("Started SQS multi-queue poller for {} queues", queues.size());
+	}
+	
+	@Override
+	public void destroy() {
+		running = false;
+		threads.shutdownNow();
+		try {
+			// let the dispatcher stop before the workers, not to reject dispatched messages
+			threads.awaitTermination(SLOT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdown();
+		for (QueueState queue : queues.values()) {
+			log.info("Stopped SQS receiver for {}, {} messages are left to become visible again",
+					queue.poller.getWorkerQueueUrl(), queue.metrics.getQueuedMessageCount());
+			queue.buffer.clear();
+		}
+	}
+	
+	/**
+	 * 登録したキューの URL を返す。
+	 * 
+	 * @return queue URLs
+	 */
+	public List<String> getQueueUrls() {
+		return Collections.unmodifiableList(new ArrayList<>(queues.keySet()));
+	}
+	
+	/**
+	 * キュー毎のメトリクスを返す。
+	 * 
+	 * @param queueUrl キュー URL
+	 * @return メトリクス。登録されていないキューの場合は {@code null}
+	 */
+	public QueueMetrics getMetrics(String queueUrl) {
+		QueueState queue = queues.get(queueUrl);
+		return queue == null ? null : queue.metrics;
+	}
+	
+	/**
+	 * 全てのキューで処理中のメッセージの数を返す。
+	 * 
+	 * @return in-flight message count
+	 */
+	public int getInFlightMessageCount() {
+		return maxInFlightMessages - permits.availablePermits();
+	}
+	
+	private void receive(QueueState queue) {
+		SqsMessagePoller poller = queue.poller;
+		try {
+			while (running) {
+				int acquired = acquireSlots(queue);
+				if (acquired == 0) {
+					continue;
+				}
+				List<Message> messages;
+				long receivedNanos;
+				try {
+					queue.metrics.receiveCount.increment();
+					messages = poller.receiveMessages(acquired);
+					receivedNanos = System.nanoTime();
+				} catch (RuntimeException e) {
+					queue.slots.release(acquired);
+					if (running == false) {
+						break; // interrupted by destroy()
+					}
+					log.error("Failed to receive SQS messages from {}", poller.getWorkerQueueUrl(), e);
+					Thread.sleep(ERROR_BACKOFF_MILLIS);
+					continue;
+				}
+				queue.slots.release(acquired - messages.size());
+				if (messages.isEmpty()) {
+					continue;
+				}
+				queue.metrics.receivedMessageCount.add(messages.size());
+				if (poller.getBatchMessageHandler() != null || poller.isFifo()) {
+					queue.buffer.add(new Received(messages, receivedNanos));
+				} else {
+					messages.forEach(message -> queue.buffer.add(
+							new Received(Collections.singletonList(message), receivedNanos)));
+				}
+				signal();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * 先読みバッファに 1 回の受信分の空きができるまで待つ。空いた枠の数だけ受信すると、処理が追いつかないキューでは
+	 * 1 件ずつの受信を繰り返し、リクエストの数が増えてしまうため。
+	 */
+	private int acquireSlots(QueueState queue) throws InterruptedException {
+		int batchSize = queue.poller.getMaxNumberOfMessages();
+		return queue.slots.tryAcquire(batchSize, SLOT_WAIT_MILLIS, TimeUnit.MILLISECONDS) ? batchSize : 0;
+	}
+	
+	private void signal() {
+		lock.lock();
+		try {
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void dispatch() {
+		try {
+			while (running) {
+				QueueState queue = select();
+				if (queue == null) {
+					continue;
+				}
+				Received received = queue.buffer.poll();
+				List<Message> messages = received.messages;
+				queue.slots.release(messages.size());
+				permits.acquire(messages.size());
+				if (running == false) {
+					break;
+				}
+				queue.metrics.inFlightCount.addAndGet(messages.size());
+				queue.metrics.dispatchedMessageCount.add(messages.size());
+				queue.poller.process(messages, received.receivedNanos, () -> {
+					queue.metrics.inFlightCount.decrementAndGet();
+					queue.metrics.completedMessageCount.increment();
+					permits.release();
+				});
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * バッファにメッセージがあるキューから、重み付きラウンドロビンで 1 つを選ぶ。
+	 * 
+	 * <p>FIFO モードのキューは、先頭の単位に含まれるメッセージグループの数だけ枠が空くまで選ばない。
+	 * ディスパッチャがメッセージグループの枠を待ってブロックし、他のキューが止まってしまうため。</p>
+	 * 
+	 * @return 選んだキュー。待ってもメッセージがなければ {@code null}
+	 */
+	private QueueState select() throws InterruptedException {
+		lock.lock();
+		try {
+			QueueState selected = selectReady();
+			if (selected == null) {
+				// group permits are released without signal, so check again soon while messages are waiting
+				boolean waiting = queues.values().stream().anyMatch(queue -> queue.buffer.isEmpty() == false);
+				available.await(waiting ? BLOCKED_WAIT_MILLIS : SLOT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				selected = selectReady();
+			}
+			return selected;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private QueueState selectReady() {
+		QueueState selected = null;
+		int totalWeight = 0;
+		for (QueueState queue : queues.values()) {
+			if (isReady(queue) == false) {
+				continue;
+			}
+			queue.currentWeight += queue.weight;
+			totalWeight += queue.weight;
+			if (selected == null || queue.currentWeight > selected.currentWeight) {
+				selected = queue;
+			}
+		}
+		if (selected != null) {
+			selected.currentWeight -= totalWeight;
+		}
+		return selected;
+	}
+	
+	private static boolean isReady(QueueState queue) {
+		Received head = queue.buffer.peek();
+		if (head == null) {
+			return false;
+		}
+		// only the dispatcher acquires the group permits of this poller, so they do not decrease until dispatched
+		return queue.poller.isFifo() == false
+				|| SqsMessagePoller.countMessageGroups(head.messages) <= queue.poller.availableMessageGroupPermits();
+	}
+	
+	
+	/**
+	 * キュー毎のメトリクス
+	 * 
+	 * @since 1.2
+	 */
+	public static final class QueueMetrics {
+		
+		private final LongAdder receiveCount = new LongAdder();
+		
+		private final LongAdder receivedMessageCount = new LongAdder();
+		
+		private final LongAdder dispatchedMessageCount = new LongAdder();
+		
+		private final LongAdder completedMessageCount = new LongAdder();
+		
+		private final AtomicInteger inFlightCount = new AtomicInteger();
+		
+		private final BlockingQueue<Received> buffer;
+		
+		
+		private QueueMetrics(BlockingQueue<Received> buffer) {
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * 発行した ReceiveMessage リクエストの数を返す。
+		 * 
+		 * @return receive count
+		 */
+		public long getReceiveCount() {
+			return receiveCount.sum();
+		}
+		
+		/**
+		 * 受信したメッセージの数を返す。
+		 * 
+		 * @return received message count
+		 */
+		public long getReceivedMessageCount() {
+			return receivedMessageCount.sum();
+		}
+		
+		/**
+		 * ワーカープールに渡したメッセージの数を返す。
+		 * 
+		 * @return dispatched message count
+		 */
+		public long getDispatchedMessageCount() {
+			return dispatchedMessageCount.sum();
+		}
+		
+		/**
+		 * ハンドラの処理が終わったメッセージの数（失敗を含む）を返す。
+		 * 
+		 * @return completed message count
+		 */
+		public long getCompletedMessageCount() {
+			return completedMessageCount.sum();
+		}
+		
+		/**
+		 * 処理中のメッセージの数を返す。
+		 * 
+		 * @return in-flight message count
+		 */
+		public int getInFlightMessageCount() {
+			return inFlightCount.get();
+		}
+		
+		/**
+		 * 先読みバッファで処理を待っているメッセージの数を返す。
+		 * 
+		 * @return queued message count
+		 */
+		public int getQueuedMessageCount() {
+			return buffer.stream().mapToInt(received -> received.messages.size()).sum();
+		}
+	}
+	
+	private static final class QueueState {
+		
+		private final SqsMessagePoller poller;
+		
+		private final int weight;
+		
+		private final BlockingQueue<Received> buffer = new LinkedBlockingQueue<>();
+		
+		private final Semaphore slots;
+		
+		private final QueueMetrics metrics = new QueueMetrics(buffer);
+		
+		private int currentWeight;
+		
+		
+		QueueState(SqsMessagePoller poller, int weight) {
+			this.poller = poller;
+			this.weight = weight;
+			slots = new Semaphore(poller.getMaxNumberOfMessages());
+		}
+	}
+	
+	private static final class Received {
+		
+		/** 1 回の受信分、またはそのうちの 1 件 */
+		private final List<Message> messages;
+		
+		/** 受信した時刻（{@link System#nanoTime()}） */
+		private final long receivedNanos;
+		
+		
+		Received(List<Message> messages, long receivedNanos) {
+			this.messages = messages;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * 処理中メッセージの可視性タイムアウトを、単一のスケジューラでまとめて延長する
+ * 
+ * <p>{@link #track(Message, int, int)} されたメッセージは、{@code extendAfter} 秒ごとに
+ * ChangeMessageVisibilityBatch で可視性タイムアウトが延長される。メッセージ毎にスレッドを
+ * ブロックさせることなく、処理の完了は {@link Tracking#complete()} で通知する。</p>
+ * 
+ * <p>延長が {@code maxExtensions} 回に達したメッセージ、および延長に失敗したメッセージ（送信者側の誤り）は
+ * 追跡を打ち切り、可視性タイムアウト経過後に再配信させる。</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class SqsVisibilityHeartbeat implements DisposableBean {
+	
+	/** Maximum number of entries in single ChangeMessageVisibilityBatch request */
+	static final int MAX_BATCH_SIZE = 10;
+	
+	private static final long DEFAULT_TICK_MILLIS = 1000L;
+	
+	@Getter
+	private final AmazonSQS sqs;
+	
+	@Getter
+	private final String queueUrl;
+	
+	/**
+	 * 延長が必要なメッセージを確認する間隔（ミリ秒）。最初の {@link #track(Message, int, int)} 以降の変更は反映されない。
+	 */
+	@Getter
+	@Setter
+	private long tickMillis = DEFAULT_TICK_MILLIS;
+	
+	/**
+	 * 1 メッセージあたりの最大延長回数
+	 */
+	@Getter
+	@Setter
+	private int maxExtensions = Integer.MAX_VALUE;
+	
+	private final Set<Tracking> trackings = ConcurrentHashMap.newKeySet();
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sqs-visibility-heartbeat");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final AtomicBoolean started = new AtomicBoolean();
+	
+	private final LongAdder requestCount = new LongAdder();
+	
+	private final LongAdder extendedCount = new LongAdder();
+	
+	private final LongAdder abandonedCount = new LongAdder();
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param sqs {@link AmazonSQS}
+	 * @param queueUrl 対象のキュー URL
+	 */
+	public SqsVisibilityHeartbeat(AmazonSQS sqs, String queueUrl) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+	}
+	
+	/**
+	 * 受信した直後のメッセージの追跡を開始する。
+	 * 
+	 * @param message 処理中のメッセージ
+	 * @param visibilityTimeout 延長時に設定する可視性タイムアウト（秒）
+	 * @param extendAfter 延長を行う間隔（秒）
+	 * @return 追跡のハンドル
+	 */
+	public Tracking track(Message message, int visibilityTimeout, int extendAfter) {
+		return track(message, visibilityTimeout, extendAfter, System.nanoTime());
+	}
+	
+	/**
+	 * メッセージの追跡を開始する。最初の延長は、受信時から {@code extendAfter} 秒後に行う。
+	 * 
+	 * <p>受信時からの経過時間が既に {@code extendAfter} 秒を超えている場合は、次の確認で直ちに延長する。
+	 * 先読みしたメッセージの可視性タイムアウトは、処理を待っている間にも経過するため。</p>
+	 * 
+	 * @param message 処理中のメッセージ
+	 * @param visibilityTimeout 延長時に設定する可視性タイムアウト（秒）
+	 * @param extendAfter 延長を行う間隔（秒）
+	 * @param receivedNanos メッセージを受信した時刻（{@link System#nanoTime()}）
+	 * @return 追跡のハンドル
+	 * @since 1.2
+	 */
+	public Tracking track(Message message, int visibilityTimeout, int extendAfter, long receivedNanos) {
+		if (started.compareAndSet(false, true)) {
+			scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		}
+		Tracking tracking =
+				new Tracking(message, visibilityTimeout, TimeUnit.SECONDS.toNanos(extendAfter), receivedNanos);
+		trackings.add(tracking);
+		return tracking;
+	}
+	
+	/**
+	 * 可視性タイムアウトの延長を停止する。
+	 * 
+	 * <p>シャットダウン中も処理中のメッセージを削除できるよう、追跡中のメッセージは破棄せず、
+	 * {@link Tracking#complete()} は引き続き {@code true} を返す。</p>
+	 */
+	@Override
+	public void destroy() {
+		scheduler.shutdownNow();
+	}
+	
+	/**
+	 * 追跡中のメッセージの数を返す。
+	 * 
+	 * @return tracking count
+	 */
+	public int getTrackingCount() {
+		return trackings.size();
+	}
+	
+	/**
+	 * 発行した ChangeMessageVisibilityBatch リクエストの数を返す。
+	 * 
+	 * @return request count
+	 */
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+	
+	/**
+	 * 可視性タイムアウトを延長した回数を返す。
+	 * 
+	 * @return extended count
+	 */
+	public long getExtendedCount() {
+		return extendedCount.sum();
+	}
+	
+	/**
+	 * 追跡を打ち切ったメッセージの数を返す。
+	 * 
+	 * @return abandoned count
+	 */
+	public long getAbandonedCount() {
+		return abandonedCount.sum();
+	}
+	
+	void tick() {
+		try {
+			long now = System.nanoTime();
+			List<Tracking> due = trackings.stream()
+				.filter(t -> now - t.nextExtensionNanos >= 0)
+				.collect(Collectors.toList());
+			List<Tracking> batch = new ArrayList<>(MAX_BATCH_SIZE);
+			for (Tracking tracking : due) {
+				if (tracking.extensions >= maxExtensions) {
+					abandon(tracking, "max extensions exceeded");
+					continue;
+				}
+				batch.add(tracking);
+				if (batch.size() == MAX_BATCH_SIZE) {
+					extend(batch, now);
+					batch.clear();
+				}
+			}
+			if (batch.isEmpty() == false) {
+				extend(batch, now);
+			}
+		} catch (RuntimeException e) {
+			log.error("Unexpected exception in visibility heartbeat", e);
+		}
+	}
+	
+	private void extend(List<Tracking> batch, long now) {
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			Tracking tracking = batch.get(i);
+			entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i),
+					tracking.message.getReceiptHandle()).withVisibilityTimeout(tracking.visibilityTimeout));
+		}
+		ChangeMessageVisibilityBatchResult result;
+		try {
+			requestCount.increment();
+			result = sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+		} catch (AmazonClientException e) {
+			log.warn("ChangeMessageVisibilityBatch for {} entries failed: {}", batch.size(), e.getMessage());
+			return; // retry in next tick
+		}
+		for (ChangeMessageVisibilityBatchResultEntry successful : result.getSuccessful()) {
+			Tracking tracking = batch.get(Integer.parseInt(successful.getId()));
+			tracking.extensions++;
+			tracking.nextExtensionNanos = now + tracking.extendAfterNanos;
+			extendedCount.increment();
+			log.debug("Visibility for SQS: {} was updated VT: {}",
+					tracking.message.getMessageId(), tracking.visibilityTimeout);
+		}
+		for (BatchResultErrorEntry failed : result.getFailed()) {
+			Tracking tracking = batch.get(Integer.parseInt(failed.getId()));
+			if (Boolean.TRUE.equals(failed.getSenderFault())) {
+				abandon(tracking, failed.getCode());
+			} else {
+				log.warn("Failed to update visibility for SQS: {}, retry in next tick: {}",
+						tracking.message.getMessageId(), failed.getCode());
+			}
+		}
+	}
+	
+	private void abandon(Tracking tracking, String reason) {
+		if (trackings.remove(tracking)) {
+			abandonedCount.increment();
+			log.error("Visibility follow-up for SQS: {} was given up: {}", tracking.message.getMessageId(), reason);
+		}
+	}
+	
+	
+	/**
+	 * 追跡中のメッセージのハンドル
+	 */
+	public final class Tracking {
+		
+		private final Message message;
+		
+		private final int visibilityTimeout;
+		
+		private final long extendAfterNanos;
+		
+		// written only by heartbeat thread
+		private volatile long nextExtensionNanos;
+		
+		private int extensions;
+		
+		
+		Tracking(Message message, int visibilityTimeout, long extendAfterNanos, long receivedNanos) {
+			this.message = message;
+			this.visibilityTimeout = visibilityTimeout;
+			this.extendAfterNanos = extendAfterNanos;
+			nextExtensionNanos = receivedNanos + extendAfterNanos;
+		}
+		
+		/**
+		 * メッセージの処理が完了したことを通知し、追跡を終了する。
+		 * 
+		 * @return 追跡中であった場合は {@code true}、既に打ち切られていた場合は {@code false}
+		 */
+		public boolean complete() {
+			return trackings.remove(this);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ハンドラの処理時間の分布から、可視性タイムアウトとその延長間隔を推定する
+ * 
+ * <p>処理時間は対数線形のバケット（2 のべき乗毎に 4 分割、誤差 25% 以内）に記録し、{@code windowSize} 件毎に
+ * {@code percentile} パーセンタイルの値から推定をやり直す。可視性タイムアウトはその値の {@code multiplier} 倍を
+ * 秒に切り上げ、{@code minVisibilityTimeout} から {@code maxVisibilityTimeout} の範囲に収めたもの、
+ * 延長間隔は可視性タイムアウトの半分とする。ほとんどのメッセージは最初の延長の前に処理を終え、
+ * 処理中にクラッシュしたメッセージは処理時間に見合った時間で再配信される。</p>
+ * 
+ * <p>推定前に受信したメッセージの可視性タイムアウトを延長間隔が超えないよう、1 回の推定で可視性タイムアウトが
+ * 増えるのは前回の 1.5 倍（少なくとも 1 秒）までとする。最初の推定までは {@link SqsMessagePoller} に設定した固定値を使い、
+ * 初回の推定はその固定値の 1.5 倍まで（{@link #record(long)} で記録した場合は {@code minVisibilityTimeout} の 1.5 倍まで）
+ * とする。</p>
+ * 
+ * <p>記録と推定のやり直しが重なった場合、その記録は次の推定に回ることがある。</p>
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@Slf4j
+public class SqsVisibilityTimeoutEstimator {
+	
+	/** Maximum visibility timeout which SQS accepts, in seconds */
+	static final int MAX_VISIBILITY_TIMEOUT = 43200;
+	
+	private static final int SUB_BUCKET_BITS = 2;
+	
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private static final double MAX_GROWTH = 1.5;
+	
+	/**
+	 * 推定に用いるパーセンタイル
+	 */
+	@Getter
+	@Setter
+	private double percentile = 99d;
+	
+	/**
+	 * パーセンタイルの値に対する、可視性タイムアウトの倍率
+	 */
+	@Getter
+	@Setter
+	private double multiplier = 2d;
+	
+	/**
+	 * 可視性タイムアウトの下限（秒）
+	 */
+	@Getter
+	@Setter
+	private int minVisibilityTimeout = 10;
+	
+	/**
+	 * 可視性タイムアウトの上限（秒）
+	 */
+	@Getter
+	@Setter
+	private int maxVisibilityTimeout = MAX_VISIBILITY_TIMEOUT;
+	
+	/**
+	 * 推定をやり直すまでに記録する処理時間の数
+	 */
+	@Getter
+	@Setter
+	private int windowSize = 100;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	
+	private final AtomicInteger windowCount = new AtomicInteger();
+	
+	private final LongAdder sampleCount = new LongAdder();
+	
+	private volatile int visibilityTimeout;
+	
+	
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+		int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		long width = 1L << (exp - SUB_BUCKET_BITS);
+		return ((long) (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS)) + width - 1;
+	}
+	
+	/**
+	 * ハンドラの処理時間を記録する。
+	 * 
+	 * @param nanos 処理時間（ナノ秒）
+	 */
+	public void record(long nanos) {
+		record(nanos, minVisibilityTimeout);
+	}
+	
+	/**
+	 * ハンドラの処理時間を記録する。
+	 * 
+	 * @param nanos 処理時間（ナノ秒）
+	 * @param initialVisibilityTimeout 最初の推定までに受信したメッセージの可視性タイムアウト（秒）
+	 */
+	public void record(long nanos, int initialVisibilityTimeout) {
+		counts.incrementAndGet(indexOf(nanos));
+		sampleCount.increment();
+		if (windowCount.incrementAndGet() >= windowSize) {
+			estimate(initialVisibilityTimeout);
+		}
+	}
+	
+	/**
+	 * 推定した可視性タイムアウトを返す。
+	 * 
+	 * @return 可視性タイムアウト（秒）。まだ推定していない場合は {@code 0}
+	 */
+	public int getVisibilityTimeout() {
+		return visibilityTimeout;
+	}
+	
+	/**
+	 * 推定した延長間隔を返す。
+	 * 
+	 * @return 延長間隔（秒）。まだ推定していない場合は {@code 0}
+	 */
+	public int getExtendAfterSeconds() {
+		int current = visibilityTimeout;
+		return current == 0 ? 0 : Math.max(1, current / 2);
+	}
+	
+	/**
+	 * 記録した処理時間の数を返す。
+	 * 
+	 * @return sample count
+	 */
+	public long getSampleCount() {
+		return sampleCount.sum();
+	}
+	
+	private synchronized void estimate(int initialVisibilityTimeout) {
+		if (windowCount.get() < windowSize) {
+			return; // already estimated by another thread
+		}
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.getAndSet(i, 0);
+			total += snapshot[i];
+		}
+		windowCount.set(0);
+		if (total == 0) {
+			return;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100d, percentile) / 100d));
+		long seen = 0;
+		long valueAtPercentile = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				valueAtPercentile = upperBoundOf(i);
+				break;
+			}
+		}
+		
+		double seconds = Math.ceil(valueAtPercentile * multiplier / TimeUnit.SECONDS.toNanos(1));
+		int previous = visibilityTimeout == 0 ? initialVisibilityTimeout : visibilityTimeout;
+		double growth = Math.max(previous + 1, previous * MAX_GROWTH);
+		double upper = Math.min(Math.min(maxVisibilityTimeout, MAX_VISIBILITY_TIMEOUT), growth);
+		int next = (int) Math.max(minVisibilityTimeout, Math.min(upper, seconds));
+		if (next != visibilityTimeout) {
+			log.debug("Visibility timeout is estimated {} s from p{} of {} samples: {} ns",
+					next, percentile, total, valueAtPercentile);
+		}
+		visibilityTimeout = next;
+	}
+}
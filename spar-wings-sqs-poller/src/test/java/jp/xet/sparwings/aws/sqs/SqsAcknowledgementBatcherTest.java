@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+
+/**
+ * Test for {@link SqsAcknowledgementBatcher}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class SqsAcknowledgementBatcherTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	SqsAcknowledgementBatcher sut;
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		sut = new SqsAcknowledgementBatcher(sqs, Q_URL);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).then(allSuccessful());
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		sut.destroy();
+	}
+	
+	static Answer<DeleteMessageBatchResult> allSuccessful() {
+		return invocation -> {
+			DeleteMessageBatchRequest request = invocation.getArgument(0);
+			return new DeleteMessageBatchResult().withSuccessful(request.getEntries().stream()
+				.map(e -> new DeleteMessageBatchResultEntry().withId(e.getId()))
+				.collect(Collectors.toList()));
+		};
+	}
+	
+	private static List<String> receiptHandlesOf(DeleteMessageBatchRequest request) {
+		return request.getEntries().stream()
+			.map(DeleteMessageBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList());
+	}
+	
+	@Test
+	public void test_25Acknowledgements_flushedIn3Batches() throws Exception {
+		// setup
+		sut.setLingerMillis(60000L);
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		// exercise
+		for (int i = 0; i < 25; i++) {
+			futures.add(sut.acknowledge("rh-" + i));
+		}
+		sut.flush();
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(1, TimeUnit.SECONDS);
+		// verify
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs, times(3)).deleteMessageBatch(captor.capture());
+		assertThat(captor.getAllValues().stream().mapToInt(r -> r.getEntries().size()).sum(), is(25));
+		assertThat(captor.getAllValues().stream().allMatch(r -> r.getEntries().size() <= 10), is(true));
+		assertThat(captor.getAllValues().get(0).getQueueUrl(), is(Q_URL));
+		assertThat(sut.getDeletedCount(), is(25L));
+	}
+	
+	@Test
+	public void test_lingerElapsed_flushed() throws Exception {
+		// setup
+		sut.setLingerMillis(10L);
+		// exercise
+		CompletableFuture<Void> future1 = sut.acknowledge("rh-1");
+		CompletableFuture<Void> future2 = sut.acknowledge("rh-2");
+		future1.get(1, TimeUnit.SECONDS);
+		future2.get(1, TimeUnit.SECONDS);
+		// verify
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs).deleteMessageBatch(captor.capture());
+		assertThat(receiptHandlesOf(captor.getValue()), contains("rh-1", "rh-2"));
+	}
+	
+	@Test
+	public void test_partialFailure_retriedPerEntry() throws Exception {
+		// setup
+		sut.setLingerMillis(60000L);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenReturn(new DeleteMessageBatchResult()
+				.withSuccessful(new DeleteMessageBatchResultEntry().withId("0"))
+				.withFailed(new BatchResultErrorEntry().withId("1").withSenderFault(false).withCode("InternalError")))
+			.then(allSuccessful());
+		// exercise
+		CompletableFuture<Void> future1 = sut.acknowledge("rh-1");
+		CompletableFuture<Void> future2 = sut.acknowledge("rh-2");
+		sut.flush();
+		// verify
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs, times(2)).deleteMessageBatch(captor.capture());
+		assertThat(receiptHandlesOf(captor.getAllValues().get(1)), contains("rh-2"));
+		assertThat(future1.isDone(), is(true));
+		assertThat(future2.isDone(), is(true));
+		assertThat(future2.isCompletedExceptionally(), is(false));
+		assertThat(sut.getDeletedCount(), is(2L));
+	}
+	
+	@Test
+	public void test_senderFault_notRetried() throws Exception {
+		// setup
+		sut.setLingerMillis(60000L);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenReturn(new DeleteMessageBatchResult()
+				.withFailed(new BatchResultErrorEntry().withId("0").withSenderFault(true)
+					.withCode("ReceiptHandleIsInvalid")));
+		// exercise
+		CompletableFuture<Void> future = sut.acknowledge("rh-1");
+		sut.flush();
+		// verify
+		verify(sqs, times(1)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		assertThat(future.isCompletedExceptionally(), is(true));
+		assertThat(sut.getFailedCount(), is(1L));
+	}
+	
+	@Test
+	public void test_acknowledgedAfterDestroy_sentImmediately() throws Exception {
+		// setup
+		sut.setLingerMillis(60000L);
+		sut.destroy();
+		// exercise
+		CompletableFuture<Void> future = sut.acknowledge("rh-1");
+		// verify
+		assertThat(future.isDone(), is(true));
+		assertThat(future.isCompletedExceptionally(), is(false));
+		assertThat(sut.getDeletedCount(), is(1L));
+	}
+	
+	@Test
+	public void test_unexpectedException_failsWholeBatch() throws Exception {
+		// setup
+		sut.setLingerMillis(60000L);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenThrow(new IllegalStateException("unexpected"));
+		// exercise
+		CompletableFuture<Void> future1 = sut.acknowledge("rh-1");
+		CompletableFuture<Void> future2 = sut.acknowledge("rh-2");
+		sut.flush();
+		// verify
+		verify(sqs, times(1)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		assertThat(future1.isCompletedExceptionally(), is(true));
+		assertThat(future2.isCompletedExceptionally(), is(true));
+		assertThat(sut.getFailedCount(), is(2L));
+	}
+}
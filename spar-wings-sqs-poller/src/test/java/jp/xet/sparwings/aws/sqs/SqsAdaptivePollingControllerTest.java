@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link SqsAdaptivePollingController}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class SqsAdaptivePollingControllerTest {
+	
+	SqsAdaptivePollingController sut;
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		sut = new SqsAdaptivePollingController();
+		sut.setMinWaitTimeSeconds(2);
+		sut.setIdleBackoffMillis(100L);
+		sut.setMaxIdleBackoffMillis(1000L);
+		sut.setThrottleBackoffMillis(200L);
+		sut.setMaxThrottleBackoffMillis(3000L);
+	}
+	
+	@Test
+	public void test_initial() throws Exception {
+		// exercise & verify
+		assertThat(sut.nextWaitTimeSeconds(), is(20));
+		assertThat(sut.nextDelayMillis(), is(0L));
+	}
+	
+	@Test
+	public void test_fullReceives_shortenWaitTime() throws Exception {
+		// exercise & verify
+		sut.onReceived(10, 10);
+		assertThat(sut.nextWaitTimeSeconds(), is(10));
+		sut.onReceived(10, 10);
+		assertThat(sut.nextWaitTimeSeconds(), is(5));
+		sut.onReceived(10, 10);
+		assertThat(sut.nextWaitTimeSeconds(), is(2));
+		sut.onReceived(10, 10);
+		assertThat(sut.nextWaitTimeSeconds(), is(2));
+		sut.onReceived(3, 10);
+		assertThat(sut.nextWaitTimeSeconds(), is(2));
+		assertThat(sut.nextDelayMillis(), is(0L));
+	}
+	
+	@Test
+	public void test_emptyReceives_backOffWithJitter() throws Exception {
+		// setup
+		sut.onReceived(10, 10);
+		// exercise & verify
+		sut.onReceived(0, 10);
+		assertThat(sut.nextWaitTimeSeconds(), is(20));
+		assertThat(sut.nextDelayMillis(), is(allOf(greaterThanOrEqualTo(50L), lessThanOrEqualTo(100L))));
+		sut.onReceived(0, 10);
+		assertThat(sut.nextDelayMillis(), is(allOf(greaterThanOrEqualTo(100L), lessThanOrEqualTo(200L))));
+		for (int i = 0; i < 100; i++) {
+			sut.onReceived(0, 10);
+		}
+		assertThat(sut.nextDelayMillis(), is(allOf(greaterThanOrEqualTo(500L), lessThanOrEqualTo(1000L))));
+		assertThat(sut.getIdleCount(), is(102L));
+		
+		sut.onReceived(1, 10);
+		assertThat(sut.nextDelayMillis(), is(0L));
+	}
+	
+	@Test
+	public void test_throttled_backOffExponentially() throws Exception {
+		// setup
+		sut.onReceived(0, 10);
+		// exercise & verify
+		sut.onThrottled();
+		assertThat(sut.nextDelayMillis(), is(allOf(greaterThanOrEqualTo(100L), lessThanOrEqualTo(200L))));
+		sut.onThrottled();
+		assertThat(sut.nextDelayMillis(), is(allOf(greaterThanOrEqualTo(200L), lessThanOrEqualTo(400L))));
+		sut.onThrottled();
+		assertThat(sut.nextDelayMillis(), is(allOf(greaterThanOrEqualTo(400L), lessThanOrEqualTo(800L))));
+		for (int i = 0; i < 100; i++) {
+			sut.onThrottled();
+		}
+		assertThat(sut.nextDelayMillis(), is(allOf(greaterThanOrEqualTo(1500L), lessThanOrEqualTo(3000L))));
+		assertThat(sut.getThrottledCount(), is(103L));
+		
+		sut.onReceived(2, 10);
+		assertThat(sut.nextDelayMillis(), is(0L));
+	}
+}
@@ -16,18 +16,29 @@
 package jp.xet.sparwings.aws.sqs;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.util.DigestUtils;
@@ -44,10 +55,15 @@ import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.OverLimitException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 
@@ -98,6 +114,12 @@ public class SqsMessagePollerTest {
 			.withMD5OfBody(DigestUtils.md5DigestAsHex(body.getBytes()));
 	}
 	
+	private Message createFifoMessage(int i, String messageGroupId) {
+		Message message = createMessage(i);
+		message.addAttributesEntry("MessageGroupId", messageGroupId);
+		return message;
+	}
+	
 	private DeleteMessageRequest createDeleteMessageRequest(int i) {
 		return new DeleteMessageRequest()
 			.withQueueUrl(Q_URL)
@@ -317,6 +339,312 @@ public class SqsMessagePollerTest {
 		verify(sqs).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
 	}
 	
+	@Test
+	public void test_3Message_batchedAcknowledgement() throws Exception {
+		// setup
+		SqsAcknowledgementBatcher batcher = new SqsAcknowledgementBatcher(sqs, Q_URL);
+		batcher.setLingerMillis(60000L);
+		sut.setAcknowledgementBatcher(batcher);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2), createMessage(3)));
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.then(SqsAcknowledgementBatcherTest.allSuccessful());
+		// exercise
+		sut.loop();
+		batcher.destroy();
+		// verify
+		verify(messageHandler, times(3)).accept(any(Message.class));
+		verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs).deleteMessageBatch(captor.capture());
+		assertThat(captor.getValue().getEntries().stream()
+			.map(DeleteMessageBatchRequestEntry::getReceiptHandle)
+			.sorted().collect(Collectors.toList()), contains("rh-1", "rh-2", "rh-3"));
+	}
+	
+	@Test
+	public void test_3HeavyMessage_visibilityHeartbeat() throws Exception {
+		// setup
+		SqsVisibilityHeartbeat heartbeat = new SqsVisibilityHeartbeat(sqs, Q_URL);
+		heartbeat.setTickMillis(100L);
+		sut.setVisibilityHeartbeat(heartbeat);
+		sut.setMaxInFlightMessages(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2), createMessage(3)));
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.then(SqsVisibilityHeartbeatTest.allSuccessful());
+		doAnswer(createHeavyJobAnswer(4, false)).when(messageHandler).accept(any(Message.class));
+		try {
+			// exercise
+			sut.loop();
+			// verify
+			verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class)); // not blocked
+			verify(sqs, timeout(3000)).deleteMessage(eq(createDeleteMessageRequest(1)));
+			verify(sqs, timeout(3000)).deleteMessage(eq(createDeleteMessageRequest(2)));
+			verify(sqs, timeout(3000)).deleteMessage(eq(createDeleteMessageRequest(3)));
+			ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+					ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+			verify(sqs, atLeastOnce()).changeMessageVisibilityBatch(captor.capture());
+			assertThat(captor.getAllValues().stream().mapToInt(r -> r.getEntries().size()).sum(), is(3));
+			assertThat(captor.getValue().getEntries().get(0).getVisibilityTimeout(), is(10));
+			verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+			assertThat(heartbeat.getTrackingCount(), is(0));
+		} finally {
+			heartbeat.destroy();
+		}
+	}
+	
+	@Test
+	public void test_1MessageWithFailureHandler_visibilityHeartbeat() throws Exception {
+		// setup
+		SqsVisibilityHeartbeat heartbeat = new SqsVisibilityHeartbeat(sqs, Q_URL);
+		sut.setVisibilityHeartbeat(heartbeat);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(createMessage(1)));
+		doThrow(RuntimeException.class).when(messageHandler).accept(any(Message.class));
+		try {
+			// exercise
+			sut.loop();
+			// verify
+			verify(messageHandler, timeout(1000)).accept(any(Message.class));
+			Thread.sleep(100);
+			verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
+			assertThat(heartbeat.getTrackingCount(), is(0));
+		} finally {
+			heartbeat.destroy();
+		}
+	}
+	
+	@Test
+	public void test_slowHandler_visibilityHeartbeatWithoutMaxInFlight_loopWaitsForHandlers() throws Exception {
+		// setup
+		SqsVisibilityHeartbeat heartbeat = new SqsVisibilityHeartbeat(sqs, Q_URL);
+		sut.setVisibilityHeartbeat(heartbeat);
+		sut.setChangeVisibilityThreshold(30);
+		CountDownLatch latch = new CountDownLatch(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2)));
+		doAnswer(invocation -> latch.await(5, TimeUnit.SECONDS)).when(messageHandler).accept(any(Message.class));
+		Thread poller = new Thread(() -> {
+			for (int i = 0; i < 3; i++) {
+				sut.loop();
+			}
+		});
+		try {
+			// exercise
+			poller.start();
+			// verify
+			verify(messageHandler, timeout(1000).times(2)).accept(any(Message.class));
+			Thread.sleep(300);
+			verify(sqs, times(1)).receiveMessage(any(ReceiveMessageRequest.class)); // blocked by slow handlers
+			verify(messageHandler, times(2)).accept(any(Message.class));
+			
+			latch.countDown();
+			poller.join(3000);
+			verify(sqs, times(3)).receiveMessage(any(ReceiveMessageRequest.class));
+			verify(sqs, timeout(1000).times(6)).deleteMessage(any(DeleteMessageRequest.class));
+		} finally {
+			latch.countDown();
+			heartbeat.destroy();
+		}
+	}
+	
+	@Test
+	public void test_maxInFlightMessages_receivesFreePermitsOnly() throws Exception {
+		// setup
+		SqsVisibilityHeartbeat heartbeat = new SqsVisibilityHeartbeat(sqs, Q_URL);
+		sut.setVisibilityHeartbeat(heartbeat);
+		sut.setChangeVisibilityThreshold(30);
+		sut.setMaxInFlightMessages(2);
+		CountDownLatch latch = new CountDownLatch(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2)));
+		doAnswer(invocation -> latch.await(5, TimeUnit.SECONDS)).when(messageHandler).accept(any(Message.class));
+		try {
+			// exercise
+			sut.loop();
+			sut.loop(); // no permits
+			// verify
+			ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+			verify(sqs, times(1)).receiveMessage(captor.capture());
+			assertThat(captor.getValue().getMaxNumberOfMessages(), is(2));
+			assertThat(sut.getInFlightMessageCount(), is(2));
+			
+			latch.countDown();
+			verify(sqs, timeout(1000).times(2)).deleteMessage(any(DeleteMessageRequest.class));
+			assertThat(sut.getInFlightMessageCount(), is(0));
+		} finally {
+			latch.countDown();
+			heartbeat.destroy();
+		}
+	}
+	
+	@Test
+	public void test_batchHandler_partialFailure() throws Exception {
+		// setup
+		List<List<Message>> batches = new ArrayList<>();
+		sut = SqsMessagePoller.forBatchHandler(sqs, retry, Q_URL, messages -> {
+			batches.add(messages);
+			return Collections.singleton("mid-2");
+		}, "testHandler");
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2), createMessage(3)));
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.then(SqsAcknowledgementBatcherTest.allSuccessful());
+		// exercise
+		sut.loop();
+		// verify
+		assertThat(batches.size(), is(1));
+		assertThat(batches.get(0).size(), is(3));
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs).deleteMessageBatch(captor.capture());
+		assertThat(captor.getValue().getEntries().stream()
+			.map(DeleteMessageBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList()), contains("rh-1", "rh-3"));
+		verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
+	}
+	
+	@Test
+	public void test_batchHandlerThrowsException_noneDeleted() throws Exception {
+		// setup
+		sut = SqsMessagePoller.forBatchHandler(sqs, retry, Q_URL, messages -> {
+			throw new IllegalStateException();
+		}, "testHandler");
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2)));
+		// exercise
+		sut.loop();
+		// verify
+		verify(sqs, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
+	}
+	
+	@Test
+	public void test_pollingController_throttledWithoutFixedSleep() throws Exception {
+		// setup
+		SqsAdaptivePollingController controller = new SqsAdaptivePollingController();
+		controller.setThrottleBackoffMillis(10L);
+		sut.setPollingController(controller);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenThrow(new OverLimitException("test"))
+			.thenReturn(receiveMessageResultOf(createMessage(1)));
+		// exercise
+		sut.loop();
+		sut.loop();
+		// verify
+		ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+		verify(sqs, times(2)).receiveMessage(captor.capture());
+		assertThat(captor.getAllValues().get(0).getWaitTimeSeconds(), is(20));
+		assertThat(controller.getThrottledCount(), is(1L));
+		assertThat(controller.getPausedMillis() > 0, is(true));
+		verify(messageHandler).accept(eq(createMessage(1)));
+		verify(sqs).deleteMessage(eq(createDeleteMessageRequest(1)));
+	}
+	
+	@Test
+	public void test_visibilityTimeoutEstimator_nextReceiveUsesEstimation() throws Exception {
+		// setup
+		SqsVisibilityTimeoutEstimator estimator = new SqsVisibilityTimeoutEstimator();
+		estimator.setWindowSize(1);
+		estimator.setMinVisibilityTimeout(3);
+		sut.setVisibilityTimeoutEstimator(estimator);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1)))
+			.thenReturn(receiveMessageResultOf(createMessage(2)));
+		// exercise
+		sut.loop();
+		sut.loop();
+		// verify
+		ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+		verify(sqs, times(2)).receiveMessage(captor.capture());
+		assertThat(captor.getAllValues().get(0).getVisibilityTimeout(), is(10));
+		assertThat(captor.getAllValues().get(1).getVisibilityTimeout(), is(3));
+		assertThat(estimator.getSampleCount(), is(2L));
+		verify(sqs).deleteMessage(eq(createDeleteMessageRequest(1)));
+		verify(sqs).deleteMessage(eq(createDeleteMessageRequest(2)));
+	}
+	
+	@Test
+	public void test_virtualThreads_fallBackOnOlderJdk() throws Exception {
+		// setup
+		boolean available = Arrays.stream(Executors.class.getMethods())
+			.anyMatch(m -> m.getName().equals("newVirtualThreadPerTaskExecutor"));
+		List<Thread> threads = new ArrayList<>();
+		doAnswer(invocation -> threads.add(Thread.currentThread())).when(messageHandler).accept(any());
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2)));
+		sut.setMaxInFlightMessages(2);
+		// exercise
+		sut.setVirtualThreads(true);
+		sut.loop();
+		// verify
+		if (available == false) {
+			assertThat(sut.isVirtualThreads(), is(false));
+		}
+		assertThat(threads.size(), is(2));
+		for (Thread thread : threads) {
+			assertThat(thread.getClass().getSimpleName().contains("Virtual"), is(sut.isVirtualThreads()));
+		}
+		verify(sqs).deleteMessage(eq(createDeleteMessageRequest(1)));
+		verify(sqs).deleteMessage(eq(createDeleteMessageRequest(2)));
+		assertThat(sut.getInFlightMessageCount(), is(0));
+	}
+	
+	@Test
+	public void test_fifo_failureSkipsFollowingMessagesInGroup() throws Exception {
+		// setup
+		sut.setFifo(true);
+		List<String> handled = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			Message message = invocation.getArgument(0);
+			handled.add(message.getMessageId());
+			if (message.getMessageId().equals("mid-2")) {
+				throw new IllegalStateException();
+			}
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(
+				createFifoMessage(1, "A"), createFifoMessage(2, "A"), createFifoMessage(3, "B"),
+				createFifoMessage(4, "A"), createFifoMessage(5, "B")));
+		// exercise
+		sut.loop();
+		// verify
+		verify(sqs, timeout(5000)).deleteMessage(eq(createDeleteMessageRequest(1)));
+		verify(sqs, timeout(5000)).deleteMessage(eq(createDeleteMessageRequest(3)));
+		verify(sqs, timeout(5000)).deleteMessage(eq(createDeleteMessageRequest(5)));
+		verify(sqs, never()).deleteMessage(eq(createDeleteMessageRequest(2)));
+		verify(sqs, never()).deleteMessage(eq(createDeleteMessageRequest(4)));
+		assertThat(handled.contains("mid-4"), is(false));
+		assertThat(handled.indexOf("mid-1") < handled.indexOf("mid-2"), is(true));
+		assertThat(handled.indexOf("mid-3") < handled.indexOf("mid-5"), is(true));
+		
+		ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+		verify(sqs).receiveMessage(captor.capture());
+		assertThat(captor.getValue().getAttributeNames().contains("MessageGroupId"), is(true));
+		assertThat(captor.getValue().getReceiveRequestAttemptId() != null, is(true));
+	}
+	
+	@Test
+	public void test_fifo_failedReceiveRetriedWithSameAttemptId() throws Exception {
+		// setup
+		sut.setFifo(true);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenThrow(new AmazonClientException("test"))
+			.thenReturn(receiveMessageResultOf())
+			.thenReturn(receiveMessageResultOf());
+		// exercise
+		sut.loop();
+		sut.loop();
+		sut.loop();
+		// verify
+		ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+		verify(sqs, times(3)).receiveMessage(captor.capture());
+		List<String> attemptIds = captor.getAllValues().stream()
+			.map(ReceiveMessageRequest::getReceiveRequestAttemptId)
+			.collect(Collectors.toList());
+		assertThat(attemptIds.get(1), is(attemptIds.get(0)));
+		assertThat(attemptIds.get(2).equals(attemptIds.get(1)), is(false));
+	}
+	
 	@Test
 	public void test_ReceiveMessageFailed() throws Exception {
 		// setup
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.springframework.retry.support.RetryTemplate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+/**
+ * Test for {@link SqsMessageReceiverGroup}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class SqsMessageReceiverGroupTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	@Mock
+	Consumer<Message> messageHandler;
+	
+	SqsMessagePoller poller;
+	
+	SqsMessageReceiverGroup sut;
+	
+	AtomicBoolean busy = new AtomicBoolean(true);
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		poller = new SqsMessagePoller(sqs, new RetryTemplate(), Q_URL, messageHandler, "testHandler");
+		poller.setMaxInFlightMessages(20);
+		sut = new SqsMessageReceiverGroup(poller);
+		sut.setReceiverConcurrency(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).then(invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			if (busy.get() == false) {
+				Thread.sleep(50); // long polling
+				return new ReceiveMessageResult();
+			}
+			List<Message> messages = new ArrayList<>();
+			for (int i = 0; i < request.getMaxNumberOfMessages(); i++) {
+				messages.add(new Message().withMessageId("mid").withReceiptHandle("rh"));
+			}
+			return new ReceiveMessageResult().withMessages(messages);
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		sut.destroy();
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void test_maxInFlightMessagesNotSet() throws Exception {
+		// setup
+		SqsMessagePoller unbounded = new SqsMessagePoller(sqs, new RetryTemplate(), Q_URL, messageHandler, "test");
+		// exercise
+		new SqsMessageReceiverGroup(unbounded).afterPropertiesSet();
+	}
+	
+	@Test
+	public void test_fullBatches_scaleUp_emptyBatches_scaleDown() throws Exception {
+		// exercise
+		sut.afterPropertiesSet();
+		// verify
+		verify(sqs, timeout(1000).atLeast(100)).deleteMessage(any(DeleteMessageRequest.class));
+		assertThat(sut.getActiveReceiverCount(), is(3));
+		
+		busy.set(false);
+		Thread.sleep(500);
+		assertThat(sut.getActiveReceiverCount(), is(1));
+	}
+	
+	@Test
+	public void test_fullBatchesLimitedBySlots_scaleUp() throws Exception {
+		// setup
+		poller.setMaxInFlightMessages(5);
+		// exercise
+		sut.afterPropertiesSet();
+		// verify
+		verify(sqs, timeout(1000).atLeast(100)).deleteMessage(any(DeleteMessageRequest.class));
+		assertThat(sut.getActiveReceiverCount(), is(3));
+	}
+	
+	@Test
+	public void test_inFlightMessagesAreBounded() throws Exception {
+		// setup
+		AtomicBoolean exceeded = new AtomicBoolean();
+		when(sqs.deleteMessage(any(DeleteMessageRequest.class))).then(invocation -> {
+			exceeded.compareAndSet(false, poller.getInFlightMessageCount() > 20);
+			return null;
+		});
+		// exercise
+		sut.afterPropertiesSet();
+		// verify
+		verify(sqs, timeout(1000).atLeast(100)).deleteMessage(any(DeleteMessageRequest.class));
+		assertThat(exceeded.get(), is(false));
+		assertThat(sut.getQueuedMessageCount() <= 20, is(true));
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.springframework.retry.support.RetryTemplate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+/**
+ * Test for {@link SqsMultiQueuePoller}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class SqsMultiQueuePollerTest {
+	
+	private static final String HIGH_URL = "http://example.com/high";
+	
+	private static final String LOW_URL = "http://example.com/low";
+	
+	private static final String IDLE_URL = "http://example.com/idle";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	SqsMultiQueuePoller sut;
+	
+	AtomicInteger inFlight = new AtomicInteger();
+	
+	AtomicInteger peak = new AtomicInteger();
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		sut = new SqsMultiQueuePoller(4);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).then(invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			if (request.getQueueUrl().equals(IDLE_URL)) {
+				Thread.sleep(50); // long polling
+				return new ReceiveMessageResult();
+			}
+			List<Message> messages = new ArrayList<>();
+			for (int i = 0; i < request.getMaxNumberOfMessages(); i++) {
+				messages.add(new Message().withMessageId("mid").withReceiptHandle("rh"));
+			}
+			return new ReceiveMessageResult().withMessages(messages);
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		sut.destroy();
+	}
+	
+	private SqsMessagePoller createPoller(String queueUrl) {
+		Consumer<Message> handler = message -> {
+			peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		};
+		SqsMessagePoller poller = new SqsMessagePoller(sqs, new RetryTemplate(), queueUrl, handler, queueUrl);
+		poller.setVisibilityHeartbeat(new SqsVisibilityHeartbeat(sqs, queueUrl));
+		return poller;
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void test_noQueue() throws Exception {
+		// exercise
+		sut.afterPropertiesSet();
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void test_boundedPoller() throws Exception {
+		// setup
+		SqsMessagePoller poller = createPoller(HIGH_URL);
+		poller.setMaxInFlightMessages(10);
+		// exercise
+		sut.addQueue(poller, 1);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void test_batchLargerThanMaxInFlightMessages() throws Exception {
+		// setup
+		SqsMessagePoller poller =
+				SqsMessagePoller.forBatchHandler(sqs, new RetryTemplate(), HIGH_URL, messages -> null, HIGH_URL);
+		// exercise
+		sut.addQueue(poller, 1); // 10 messages per receive, but only 4 permits
+	}
+	
+	@Test
+	public void test_busyFifoQueueDoesNotBlockOthers() throws Exception {
+		// setup
+		SqsMessagePoller fifo = new SqsMessagePoller(sqs, new RetryTemplate(), HIGH_URL, message -> {
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, HIGH_URL);
+		fifo.setFifo(true);
+		fifo.setMaxNumberOfMessages(1);
+		fifo.setMaxConcurrentMessageGroups(1);
+		fifo.setVisibilityHeartbeat(new SqsVisibilityHeartbeat(sqs, HIGH_URL));
+		sut.addQueue(fifo, 10);
+		sut.addQueue(createPoller(LOW_URL), 1);
+		// exercise
+		sut.afterPropertiesSet();
+		Thread.sleep(1000);
+		// verify
+		assertThat(sut.getMetrics(HIGH_URL).getDispatchedMessageCount() <= 5, is(true));
+		assertThat(sut.getMetrics(LOW_URL).getDispatchedMessageCount() > 100, is(true));
+	}
+	
+	@Test
+	public void test_weightedFairScheduling() throws Exception {
+		// setup
+		sut.addQueue(createPoller(HIGH_URL), 3);
+		sut.addQueue(createPoller(LOW_URL), 1);
+		sut.addQueue(createPoller(IDLE_URL), 1);
+		// exercise
+		sut.afterPropertiesSet();
+		Thread.sleep(1000);
+		// verify
+		assertThat(sut.getQueueUrls(), contains(HIGH_URL, LOW_URL, IDLE_URL));
+		long high = sut.getMetrics(HIGH_URL).getDispatchedMessageCount();
+		long low = sut.getMetrics(LOW_URL).getDispatchedMessageCount();
+		assertThat(low > 0, is(true)); // not starved
+		assertThat(high > low * 2, is(true));
+		assertThat(high < low * 4, is(true));
+		assertThat(sut.getMetrics(IDLE_URL).getReceiveCount() > 0, is(true));
+		assertThat(sut.getMetrics(IDLE_URL).getDispatchedMessageCount(), is(0L));
+		assertThat(peak.get() <= 4, is(true));
+		assertThat(sut.getMetrics(HIGH_URL).getQueuedMessageCount() <= 10, is(true));
+	}
+}
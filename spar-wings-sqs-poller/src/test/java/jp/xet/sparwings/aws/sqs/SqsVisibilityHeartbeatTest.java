@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Test for {@link SqsVisibilityHeartbeat}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class SqsVisibilityHeartbeatTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	SqsVisibilityHeartbeat sut;
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		sut = new SqsVisibilityHeartbeat(sqs, Q_URL);
+		sut.setTickMillis(100L);
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.then(allSuccessful());
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		sut.destroy();
+	}
+	
+	static Answer<ChangeMessageVisibilityBatchResult> allSuccessful() {
+		return invocation -> {
+			ChangeMessageVisibilityBatchRequest request = invocation.getArgument(0);
+			return new ChangeMessageVisibilityBatchResult().withSuccessful(request.getEntries().stream()
+				.map(e -> new ChangeMessageVisibilityBatchResultEntry().withId(e.getId()))
+				.collect(Collectors.toList()));
+		};
+	}
+	
+	private Message createMessage(int i) {
+		return new Message()
+			.withMessageId("mid-" + i)
+			.withReceiptHandle("rh-" + i);
+	}
+	
+	@Test
+	public void test_completedBeforeThreshold_notExtended() throws Exception {
+		// exercise
+		SqsVisibilityHeartbeat.Tracking tracking = sut.track(createMessage(1), 10, 1);
+		Thread.sleep(300);
+		boolean actual = tracking.complete();
+		Thread.sleep(1000);
+		// verify
+		assertThat(actual, is(true));
+		verify(sqs, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.getTrackingCount(), is(0));
+	}
+	
+	@Test
+	public void test_heavyMessage_extendedOnce() throws Exception {
+		// exercise
+		SqsVisibilityHeartbeat.Tracking tracking = sut.track(createMessage(1), 10, 1);
+		Thread.sleep(1500);
+		boolean actual = tracking.complete();
+		// verify
+		assertThat(actual, is(true));
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+				ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqs).changeMessageVisibilityBatch(captor.capture());
+		ChangeMessageVisibilityBatchRequestEntry entry = captor.getValue().getEntries().get(0);
+		assertThat(captor.getValue().getQueueUrl(), is(Q_URL));
+		assertThat(entry.getReceiptHandle(), is("rh-1"));
+		assertThat(entry.getVisibilityTimeout(), is(10));
+		assertThat(sut.getExtendedCount(), is(1L));
+	}
+	
+	@Test
+	public void test_queuedLongerThanThreshold_extendedFromReceiveTime() throws Exception {
+		// setup
+		long receivedNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(2);
+		// exercise
+		SqsVisibilityHeartbeat.Tracking tracking = sut.track(createMessage(1), 10, 1, receivedNanos);
+		Thread.sleep(300);
+		boolean actual = tracking.complete();
+		// verify
+		assertThat(actual, is(true));
+		verify(sqs).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.getExtendedCount(), is(1L));
+	}
+	
+	@Test
+	public void test_12HeavyMessages_extendedInBatches() throws Exception {
+		// exercise
+		for (int i = 0; i < 12; i++) {
+			sut.track(createMessage(i), 10, 1);
+		}
+		Thread.sleep(1500);
+		// verify
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+				ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqs, atLeast(2)).changeMessageVisibilityBatch(captor.capture());
+		assertThat(captor.getAllValues().stream().mapToInt(r -> r.getEntries().size()).sum(), is(12));
+		assertThat(captor.getAllValues().stream().allMatch(r -> r.getEntries().size() <= 10), is(true));
+		assertThat(sut.getExtendedCount(), is(12L));
+	}
+	
+	@Test
+	public void test_completedAfterDestroy_stillTracked() throws Exception {
+		// setup
+		SqsVisibilityHeartbeat.Tracking tracking = sut.track(createMessage(1), 10, 1);
+		// exercise
+		sut.destroy();
+		Thread.sleep(1500);
+		boolean actual = tracking.complete();
+		// verify
+		assertThat(actual, is(true));
+		verify(sqs, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.getTrackingCount(), is(0));
+	}
+	
+	@Test
+	public void test_maxExtensionsExceeded_abandoned() throws Exception {
+		// setup
+		sut.setMaxExtensions(1);
+		// exercise
+		SqsVisibilityHeartbeat.Tracking tracking = sut.track(createMessage(1), 10, 1);
+		Thread.sleep(2500);
+		boolean actual = tracking.complete();
+		// verify
+		assertThat(actual, is(false));
+		verify(sqs, times(1)).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.getAbandonedCount(), is(1L));
+	}
+	
+	@Test
+	public void test_senderFault_abandoned() throws Exception {
+		// setup
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenReturn(new ChangeMessageVisibilityBatchResult()
+				.withFailed(new BatchResultErrorEntry().withId("0").withSenderFault(true)
+					.withCode("ReceiptHandleIsInvalid")));
+		// exercise
+		SqsVisibilityHeartbeat.Tracking tracking = sut.track(createMessage(1), 10, 1);
+		Thread.sleep(1500);
+		// verify
+		assertThat(tracking.complete(), is(false));
+		assertThat(sut.getAbandonedCount(), is(1L));
+	}
+}
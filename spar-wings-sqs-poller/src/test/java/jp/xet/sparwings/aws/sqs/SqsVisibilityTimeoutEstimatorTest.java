@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link SqsVisibilityTimeoutEstimator}.
+ * 
+ * @since 1.2
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class SqsVisibilityTimeoutEstimatorTest {
+	
+	SqsVisibilityTimeoutEstimator sut;
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		sut = new SqsVisibilityTimeoutEstimator();
+		sut.setWindowSize(100);
+	}
+	
+	private void recordWindow(long millis) {
+		for (int i = 0; i < 100; i++) {
+			sut.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+	}
+	
+	@Test
+	public void test_buckets_coverWholeRange() throws Exception {
+		// verify
+		for (int i = 1; i < 248; i++) {
+			assertThat(SqsVisibilityTimeoutEstimator.indexOf(SqsVisibilityTimeoutEstimator.upperBoundOf(i - 1) + 1),
+					is(i));
+		}
+		assertThat(SqsVisibilityTimeoutEstimator.upperBoundOf(247), is(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void test_notEstimatedYet() throws Exception {
+		// exercise
+		for (int i = 0; i < 99; i++) {
+			sut.record(TimeUnit.SECONDS.toNanos(1));
+		}
+		// verify
+		assertThat(sut.getSampleCount(), is(99L));
+		assertThat(sut.getVisibilityTimeout(), is(0));
+		assertThat(sut.getExtendAfterSeconds(), is(0));
+	}
+	
+	@Test
+	public void test_fastHandler_minVisibilityTimeout() throws Exception {
+		// setup
+		sut.setMinVisibilityTimeout(2);
+		// exercise
+		recordWindow(100);
+		// verify
+		assertThat(sut.getVisibilityTimeout(), is(2));
+		assertThat(sut.getExtendAfterSeconds(), is(1));
+	}
+	
+	@Test
+	public void test_percentileOfHandlerDurations() throws Exception {
+		// setup
+		sut.setMultiplier(1d);
+		// exercise
+		for (int i = 0; i < 98; i++) {
+			sut.record(TimeUnit.MILLISECONDS.toNanos(100));
+		}
+		sut.record(TimeUnit.SECONDS.toNanos(12)); // p99
+		sut.record(TimeUnit.SECONDS.toNanos(60));
+		// verify
+		assertThat(sut.getVisibilityTimeout(), is(13));
+		assertThat(sut.getExtendAfterSeconds(), is(6));
+	}
+	
+	@Test
+	public void test_slowHandler_growsGradually() throws Exception {
+		// exercise & verify
+		recordWindow(100000);
+		assertThat(sut.getVisibilityTimeout(), is(15));
+		assertThat(sut.getExtendAfterSeconds(), is(7));
+		recordWindow(100000);
+		assertThat(sut.getVisibilityTimeout(), is(22));
+		assertThat(sut.getExtendAfterSeconds(), is(11));
+		for (int i = 0; i < 10; i++) {
+			recordWindow(100000);
+		}
+		assertThat(sut.getVisibilityTimeout() > 200, is(true));
+		assertThat(sut.getVisibilityTimeout() <= 250, is(true));
+		
+		recordWindow(100);
+		assertThat(sut.getVisibilityTimeout(), is(10));
+	}
+	
+	@Test
+	public void test_slowHandler_firstEstimationBoundedByInitialVisibilityTimeout() throws Exception {
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.record(TimeUnit.SECONDS.toNanos(60), 300);
+		}
+		// verify
+		assertThat(sut.getVisibilityTimeout(), is(121));
+		assertThat(sut.getExtendAfterSeconds(), is(60));
+	}
+	
+	@Test
+	public void test_maxVisibilityTimeout() throws Exception {
+		// setup
+		sut.setMaxVisibilityTimeout(30);
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			recordWindow(100000);
+		}
+		// verify
+		assertThat(sut.getVisibilityTimeout(), is(30));
+		assertThat(sut.getExtendAfterSeconds(), is(15));
+	}
+}